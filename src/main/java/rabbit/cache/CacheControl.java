@@ -0,0 +1,186 @@
+package rabbit.cache;
+
+import java.util.List;
+import rabbit.http.HeaderValueTokenizer;
+import rabbit.http.HttpHeader;
+
+/** The Cache-Control directives of a request or a response.
+ *
+ *  <p>All the Cache-Control headers are read and "Pragma: no-cache"
+ *  is treated as "Cache-Control: no-cache". Time values are in
+ *  seconds, -1 means that the directive was not given.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class CacheControl {
+    private boolean noStore;
+    private boolean noCache;
+    private boolean isPrivate;
+    private boolean isPublic;
+    private boolean mustRevalidate;
+    private boolean onlyIfCached;
+    private long maxAge = -1;
+    private long sMaxAge = -1;
+    private long minFresh = -1;
+    private long maxStale = -1;
+    private long staleWhileRevalidate = -1;
+    private long staleIfError = -1;
+
+    private CacheControl() {
+        // use parse
+    }
+
+    /** Parse the cache directives of the given header.
+     * @param header the request or response header
+     * @return the directives
+     */
+    public static CacheControl parse(final HttpHeader header) {
+        final CacheControl cc = new CacheControl();
+        final List<String> ccs = header.getHeaders("Cache-Control");
+        if (!ccs.isEmpty()) {
+            final HeaderValueTokenizer hvt = new HeaderValueTokenizer(null);
+            for (String val : ccs) {
+                cc.parse(hvt.reset(val));
+            }
+        }
+        final List<String> pragmas = header.getHeaders("Pragma");
+        if (!pragmas.isEmpty()) {
+            final HeaderValueTokenizer hvt = new HeaderValueTokenizer(null);
+            for (String val : pragmas) {
+                hvt.reset(val);
+                while (hvt.nextElement()) {
+                    if (hvt.elementNameIs("no-cache")) {
+                        cc.noCache = true;
+                    }
+                }
+            }
+        }
+        return cc;
+    }
+
+    private void parse(final HeaderValueTokenizer hvt) {
+        while (hvt.nextElement()) {
+            if (hvt.elementNameIs("no-store")) {
+                noStore = true;
+            } else if (hvt.elementNameIs("no-cache")) {
+                noCache = true;
+            } else if (hvt.elementNameIs("private")) {
+                isPrivate = true;
+            } else if (hvt.elementNameIs("public")) {
+                isPublic = true;
+            } else if (hvt.elementNameIs("must-revalidate") ||
+                       hvt.elementNameIs("proxy-revalidate")) {
+                mustRevalidate = true;
+            } else if (hvt.elementNameIs("only-if-cached")) {
+                onlyIfCached = true;
+            } else if (hvt.elementNameIs("max-age")) {
+                maxAge = hvt.getElementLongValue(0);
+            } else if (hvt.elementNameIs("s-maxage")) {
+                sMaxAge = hvt.getElementLongValue(0);
+            } else if (hvt.elementNameIs("min-fresh")) {
+                minFresh = hvt.getElementLongValue(0);
+            } else if (hvt.elementNameIs("max-stale")) {
+                // max-stale without a value accepts any staleness
+                maxStale = hvt.getElementLongValue(Long.MAX_VALUE);
+            } else if (hvt.elementNameIs("stale-while-revalidate")) {
+                staleWhileRevalidate = hvt.getElementLongValue(0);
+            } else if (hvt.elementNameIs("stale-if-error")) {
+                staleIfError = hvt.getElementLongValue(0);
+            }
+        }
+    }
+
+    /** Check if the message may be stored at all, that is if it has
+     *  neither no-store nor private.
+     * @return true if a shared cache may store the message
+     */
+    public boolean mayStore() {
+        return !noStore && !isPrivate;
+    }
+
+    /** Check if no-store was given.
+     * @return true if the message must not be stored
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /** Check if no-cache was given, in Cache-Control or in Pragma.
+     * @return true if a stored response must be validated before use
+     */
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    /** Check if private was given.
+     * @return true if the response is for a single user
+     */
+    public boolean isPrivate() {
+        return isPrivate;
+    }
+
+    /** Check if public was given.
+     * @return true if the response may be stored even for authorized requests
+     */
+    public boolean isPublic() {
+        return isPublic;
+    }
+
+    /** Check if must-revalidate or proxy-revalidate was given.
+     * @return true if a stale response must not be used
+     */
+    public boolean isMustRevalidate() {
+        return mustRevalidate;
+    }
+
+    /** Check if only-if-cached was given.
+     * @return true if the client only wants a stored response
+     */
+    public boolean isOnlyIfCached() {
+        return onlyIfCached;
+    }
+
+    /** Get the max-age.
+     * @return the max-age in seconds or -1
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /** Get the s-maxage.
+     * @return the s-maxage in seconds or -1
+     */
+    public long getSMaxAge() {
+        return sMaxAge;
+    }
+
+    /** Get the min-fresh.
+     * @return the min-fresh in seconds or -1
+     */
+    public long getMinFresh() {
+        return minFresh;
+    }
+
+    /** Get the max-stale.
+     * @return the max-stale in seconds, Long.MAX_VALUE for any staleness, or -1
+     */
+    public long getMaxStale() {
+        return maxStale;
+    }
+
+    /** Get the stale-while-revalidate, rfc 5861.
+     * @return the time a stale response may be used while it is
+     *         revalidated, in seconds, or -1
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /** Get the stale-if-error, rfc 5861.
+     * @return the time a stale response may be used when the origin
+     *         fails, in seconds, or -1
+     */
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+}
@@ -0,0 +1,453 @@
+package rabbit.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import rabbit.http.HttpDateParser;
+import rabbit.http.HttpHeader;
+import rabbit.httpio.ByteBufferResourceSource;
+import rabbit.httpio.FileResourceSource;
+import rabbit.httpio.ResourceSource;
+import rabbit.rnio.BufferHandler;
+import rabbit.rnio.NioHandler;
+
+/** A stored response, the header and the body of one resource.
+ *
+ *  <p>The body is either kept in a read only direct buffer, so that
+ *  large caches do not fill up the java heap, or in a part of a
+ *  file of the disk cache. The age and freshness
+ *  calculations follow rfc 7234, times are in seconds.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CacheEntry {
+    /** The heuristic freshness is never longer than this, in seconds. */
+    private static final long MAX_HEURISTIC = 24 * 60 * 60;
+
+    /** The headers that a 304 response should repeat. */
+    private static final String[] NOT_MODIFIED_HEADERS = {
+        "Cache-Control", "Content-Location", "Date", "ETag", "Expires",
+        "Last-Modified", "Vary"
+    };
+
+    /** The headers of a 304 response that do not update the stored header. */
+    private static final String[] NOT_UPDATED_HEADERS = {
+        "Content-Length", "Content-Range", "Transfer-Encoding", "Connection",
+        "Proxy-Connection", "Keep-Alive", "Trailer", "Upgrade", "TE"
+    };
+
+    private final String key;
+    private final HttpHeader header;
+    private final ByteBuffer body;
+    private final File file;
+    private final long bodyOffset;
+    private final long bodySize;
+    private final long requestTime;
+    private final long responseTime;
+    private final long initialAge;
+    private final long freshnessLifetime;
+    private final CacheControl cacheControl;
+
+    /** Create a new CacheEntry.
+     * @param key the cache key of the resource
+     * @param header the response header, the entry keeps it as it is
+     * @param body the response body, the entry keeps it as it is
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was read, in milliseconds
+     */
+    public CacheEntry(final String key, final HttpHeader header,
+                      final ByteBuffer body, final long requestTime,
+                      final long responseTime) {
+        this(key, header, body.asReadOnlyBuffer(), null, 0, body.remaining(),
+             requestTime, responseTime);
+    }
+
+    /** Create a new CacheEntry that has its body in a file.
+     * @param key the cache key of the resource
+     * @param header the response header, the entry keeps it as it is
+     * @param file the file that holds the body
+     * @param bodyOffset the position of the body in the file
+     * @param bodySize the size of the body
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was read, in milliseconds
+     */
+    public CacheEntry(final String key, final HttpHeader header, final File file,
+                      final long bodyOffset, final long bodySize,
+                      final long requestTime, final long responseTime) {
+        this(key, header, null, file, bodyOffset, bodySize, requestTime, responseTime);
+    }
+
+    private CacheEntry(final String key, final HttpHeader header, final ByteBuffer body,
+                       final File file, final long bodyOffset, final long bodySize,
+                       final long requestTime, final long responseTime) {
+        this.key = key;
+        this.header = header;
+        this.body = body;
+        this.file = file;
+        this.bodyOffset = bodyOffset;
+        this.bodySize = bodySize;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+        this.cacheControl = CacheControl.parse(header);
+        this.initialAge = getAge(header);
+        this.freshnessLifetime = getFreshnessLifetime(header, cacheControl, responseTime);
+    }
+
+    /** Get the age the response had when it was read, the Age header
+     *  has already been corrected for the time spent on the way.
+     * @param header the response header
+     * @return the age in seconds
+     */
+    static long getAge(final HttpHeader header) {
+        final String age = header.getHeader("Age");
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(age.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Get the time the response is fresh, counted from its Date.
+     *  The order is s-maxage, max-age, Expires and last a heuristic
+     *  of a tenth of the time since Last-Modified.
+     * @param header the response header
+     * @param cc the cache directives of the response
+     * @param responseTime the time the response was read, used when
+     *        there is no Date, in milliseconds
+     * @return the freshness lifetime in seconds
+     */
+    static long getFreshnessLifetime(final HttpHeader header, final CacheControl cc,
+                                     final long responseTime) {
+        if (cc.getSMaxAge() >= 0) {
+            return cc.getSMaxAge();
+        }
+        if (cc.getMaxAge() >= 0) {
+            return cc.getMaxAge();
+        }
+        final Date dd = HttpDateParser.getDate(header.getHeader("Date"));
+        final long date = dd != null ? dd.getTime() : responseTime;
+        final String expires = header.getHeader("Expires");
+        if (expires != null) {
+            // an invalid date, like "0", means already expired
+            final Date exp = HttpDateParser.getDate(expires);
+            return exp == null ? 0 : Math.max(0, (exp.getTime() - date) / 1000);
+        }
+        final Date lm = HttpDateParser.getDate(header.getHeader("Last-Modified"));
+        if (lm != null && lm.getTime() < date) {
+            return Math.min(MAX_HEURISTIC, (date - lm.getTime()) / 10000);
+        }
+        return 0;
+    }
+
+    /** Check if a response has a validator, an ETag or a Last-Modified.
+     * @param header the response header
+     * @return true if the response can be revalidated
+     */
+    static boolean hasValidators(final HttpHeader header) {
+        return header.getHeader("ETag") != null ||
+               header.getHeader("Last-Modified") != null;
+    }
+
+    /** Check if a request has any conditional headers.
+     * @param request the request header
+     * @return true if the client sent its own conditions
+     */
+    public static boolean isConditional(final HttpHeader request) {
+        return request.getHeader("If-None-Match") != null ||
+               request.getHeader("If-Modified-Since") != null ||
+               request.getHeader("If-Match") != null ||
+               request.getHeader("If-Unmodified-Since") != null ||
+               request.getHeader("If-Range") != null;
+    }
+
+    /** Get the cache key of this entry.
+     * @return the normalized request uri
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /** Get the stored header, do not modify it.
+     * @return the response header as it was stored
+     */
+    public HttpHeader getHeader() {
+        return header;
+    }
+
+    /** Get a copy of the stored header that can be sent.
+     * @param now the current time, in milliseconds
+     * @return a new header with the current Age
+     */
+    public HttpHeader getResponseHeader(final long now) {
+        final HttpHeader ret = new HttpHeader();
+        ret.setStatusLine(header.getStatusLine());
+        header.copyHeader(ret);
+        final long age = getCurrentAge(now);
+        if (age > 0) {
+            ret.setHeader("Age", Long.toString(age));
+        }
+        if (age >= freshnessLifetime) {
+            ret.addHeader("Warning", "110 RabbIT \"Response is stale\"");
+        }
+        return ret;
+    }
+
+    /** Get a 304 response for this entry, with the headers that a
+     *  304 should repeat.
+     * @param now the current time, in milliseconds
+     * @return a new not modified header
+     */
+    public HttpHeader getNotModifiedHeader(final long now) {
+        final HttpHeader ret = new HttpHeader();
+        ret.setStatusLine("HTTP/1.1 304 Not Modified");
+        for (String type : NOT_MODIFIED_HEADERS) {
+            for (String val : header.getHeaders(type)) {
+                ret.addHeader(type, val);
+            }
+        }
+        final long age = getCurrentAge(now);
+        if (age > 0) {
+            ret.setHeader("Age", Long.toString(age));
+        }
+        return ret;
+    }
+
+    /** Check if this entry has a validator, an ETag or a Last-Modified.
+     * @return true if this entry can be revalidated
+     */
+    public boolean hasValidators() {
+        return hasValidators(header);
+    }
+
+    /** Add the validators of this entry to a request so that the
+     *  origin server can answer with a 304 if the entry is still valid.
+     * @param request the request to send upstream
+     */
+    public void addValidators(final HttpHeader request) {
+        final String etag = header.getHeader("ETag");
+        if (etag != null) {
+            request.setHeader("If-None-Match", etag);
+        }
+        final String lm = header.getHeader("Last-Modified");
+        if (lm != null) {
+            request.setHeader("If-Modified-Since", lm);
+        }
+    }
+
+    /** Check if the conditions of a client request match this entry,
+     *  so that a 304 can be sent. If-None-Match takes precedence over
+     *  If-Modified-Since.
+     * @param request the client request
+     * @return true if the client already has this entry
+     */
+    public boolean isNotModified(final HttpHeader request) {
+        final List<String> inms = request.getHeaders("If-None-Match");
+        if (!inms.isEmpty()) {
+            final String etag = header.getHeader("ETag");
+            for (String inm : inms) {
+                for (String tag : inm.split(",")) {
+                    tag = tag.trim();
+                    if (tag.equals("*") ||
+                        (etag != null && getOpaqueTag(tag).equals(getOpaqueTag(etag)))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        final Date ims = HttpDateParser.getDate(request.getHeader("If-Modified-Since"));
+        final Date lm = HttpDateParser.getDate(header.getHeader("Last-Modified"));
+        return ims != null && lm != null && !lm.after(ims);
+    }
+
+    /** Check if the If-Range condition of a request matches this
+     *  entry, so that the ranges may be sent. The condition has to be
+     *  a strong ETag or the exact Last-Modified date of the entry.
+     * @param request the client request
+     * @return true if there is no If-Range or if it matches
+     */
+    public boolean isRangeValid(final HttpHeader request) {
+        final String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        final String cond = ifRange.trim();
+        if (cond.startsWith("\"") || cond.startsWith("W/")) {
+            final String etag = header.getHeader("ETag");
+            return etag != null && !cond.startsWith("W/") && cond.equals(etag.trim());
+        }
+        final Date date = HttpDateParser.getDate(cond);
+        final Date lm = HttpDateParser.getDate(header.getHeader("Last-Modified"));
+        return date != null && lm != null && date.getTime() == lm.getTime();
+    }
+
+    /** Get the tag without any weak indicator, If-None-Match uses
+     *  the weak comparison.
+     * @param tag the entity tag
+     * @return the opaque tag
+     */
+    private static String getOpaqueTag(final String tag) {
+        final String t = tag.trim();
+        return t.startsWith("W/") ? t.substring(2) : t;
+    }
+
+    /** Create the entry that a 304 response gives, the stored header
+     *  is updated with the headers of the 304 and the body is shared.
+     * @param notModified the 304 response header
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was read, in milliseconds
+     * @return a new entry
+     */
+    public CacheEntry update(final HttpHeader notModified, final long requestTime,
+                             final long responseTime) {
+        final HttpHeader updated = new HttpHeader();
+        updated.setStatusLine(header.getStatusLine());
+        header.copyHeader(updated);
+        // the age is that of the new response.
+        updated.removeHeader("Age");
+        for (String type : notModified.getHeaderTypes()) {
+            if (isNotUpdated(type)) {
+                continue;
+            }
+            updated.removeHeader(type);
+            for (String val : notModified.getHeaders(type)) {
+                updated.addHeader(type, val);
+            }
+        }
+        return new CacheEntry(key, updated, body, file, bodyOffset, bodySize,
+                              requestTime, responseTime);
+    }
+
+    private static boolean isNotUpdated(final String type) {
+        for (String t : NOT_UPDATED_HEADERS) {
+            if (t.equalsIgnoreCase(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Get the body of this entry.
+     * @return a new read only view of the body or null if the body is in a file
+     */
+    public ByteBuffer getBody() {
+        return body != null ? body.duplicate() : null;
+    }
+
+    /** Get the size of the body.
+     * @return the number of bytes in the body
+     */
+    public long getBodySize() {
+        return bodySize;
+    }
+
+    /** Get a resource source that sends the body of this entry.
+     * @param nioHandler the NioHandler to use for background tasks
+     * @param bufHandler the BufferHandler to use for reading
+     * @return a new ResourceSource for the body
+     * @throws IOException if the file that holds the body can not be opened
+     */
+    public ResourceSource getResourceSource(final NioHandler nioHandler,
+                                            final BufferHandler bufHandler)
+            throws IOException {
+        if (body != null) {
+            return new ByteBufferResourceSource(body.duplicate());
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        return new FileResourceSource(raf.getChannel(), bodyOffset, bodySize,
+                                      nioHandler, bufHandler);
+    }
+
+    /** Get the number of bytes of memory this entry holds.
+     * @return the body size plus an estimate of the header and key
+     */
+    public long getSize() {
+        final long bodyMemory = body != null ? body.capacity() : 0;
+        return bodyMemory + 2 * key.length() + 64L * (header.size() + 1);
+    }
+
+    /** Get the time the request was sent.
+     * @return the request time, in milliseconds
+     */
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    /** Get the time the response was read.
+     * @return the response time, in milliseconds
+     */
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /** Get the cache directives of the stored response.
+     * @return the response Cache-Control
+     */
+    public CacheControl getCacheControl() {
+        return cacheControl;
+    }
+
+    /** Get the time this entry is fresh, counted from when it was created.
+     * @return the freshness lifetime, in seconds
+     */
+    public long getFreshnessLifetime() {
+        return freshnessLifetime;
+    }
+
+    /** Get the current age of this entry.
+     * @param now the current time, in milliseconds
+     * @return the age, in seconds
+     */
+    public long getCurrentAge(final long now) {
+        return initialAge + Math.max(0, now - responseTime) / 1000;
+    }
+
+    /** Check if this entry may be used for a request without asking
+     *  the origin server.
+     * @param now the current time, in milliseconds
+     * @param request the cache directives of the request
+     * @return true if the entry may be sent as it is
+     */
+    public boolean isFresh(final long now, final CacheControl request) {
+        if (cacheControl.isNoCache() || request.isNoCache()) {
+            return false;
+        }
+        final long age = getCurrentAge(now);
+        long lifetime = freshnessLifetime;
+        if (request.getMaxAge() >= 0) {
+            lifetime = Math.min(lifetime, request.getMaxAge());
+        }
+        if (request.getMinFresh() > 0) {
+            lifetime -= request.getMinFresh();
+        }
+        if (age < lifetime) {
+            return true;
+        }
+        if (request.getMaxStale() < 0 || cacheControl.isMustRevalidate()) {
+            return false;
+        }
+        return age - lifetime < request.getMaxStale();
+    }
+
+    /** Check if this entry has been stale for less than the given time,
+     *  so that it may be used while it is revalidated or when the
+     *  origin server fails, rfc 5861. Entries that must be revalidated
+     *  are never used stale.
+     * @param now the current time, in milliseconds
+     * @param window the time the entry may be used after it went stale,
+     *        in seconds
+     * @return true if the stale entry may be used
+     */
+    public boolean isUsableStale(final long now, final long window) {
+        if (window <= 0 || cacheControl.isNoCache() || cacheControl.isMustRevalidate()) {
+            return false;
+        }
+        return getCurrentAge(now) - freshnessLifetime < window;
+    }
+}
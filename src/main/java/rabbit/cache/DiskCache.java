@@ -0,0 +1,1110 @@
+package rabbit.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.http.HttpHeader;
+import rabbit.rnio.NioHandler;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
+import rabbit.util.Counter;
+import rabbit.util.SProperties;
+
+/** A log structured disk cache of http responses.
+ *
+ *  <p>Responses are appended to large segment files, the segment
+ *  that is written to is memory mapped. Each record holds the key,
+ *  the stored header and the body and it ends with a commit marker
+ *  that is written once the whole body is in place. The index of
+ *  the records is kept in memory.
+ *
+ *  <p>The index is written to a checkpoint file now and then and when
+ *  the cache is closed. The checkpoint holds the records of all the
+ *  segments that can no longer change, the newer segments act as a
+ *  journal. On open the checkpoint is memory mapped and loaded and
+ *  only the segments after it are read, without a checkpoint all the
+ *  segments are read. Records from the checkpoint are checked against
+ *  the segment the first time they are used.
+ *
+ *  <p>Overwritten, removed and expired records are never changed on
+ *  disk, a record that is being written when its key is removed is
+ *  not committed. A background task removes the oldest segments when
+ *  the cache is too large and compacts segments where few records
+ *  are still in use by copying the live records to the current
+ *  segment, removals are copied along as long as there are older
+ *  segments. A checkpoint is written before any segment of the
+ *  journal is collected. All disk writes are sequential appends.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class DiskCache {
+    private static final int MAGIC = 0x52424331;
+    private static final int COMMIT = 0x52424332;
+    /** magic, header length and body length. */
+    private static final int RECORD_START = 16;
+    /** The record start and the commit marker. */
+    private static final int RECORD_OVERHEAD = RECORD_START + 4;
+    private static final String SUFFIX = ".seg";
+    private static final int CHECKPOINT_MAGIC = 0x52424349;
+    private static final String CHECKPOINT = "index.ckp";
+
+    private final Counter counter;
+    private final NioHandler nioHandler;
+
+    /** The directory of the segments, null if the disk cache is off. */
+    private File dir = null;
+    private int segmentSize = 64 * 1024 * 1024;
+    private long maxSize = 1024L * 1024 * 1024;
+    private long maxEntrySize = 16 * 1024 * 1024;
+    /** Segments with less live data than this are compacted. */
+    private int compactPercent = 50;
+    private long gcInterval = 10000;
+    /** The time stale entries are kept, in seconds. */
+    private long staleGrace = 0;
+    /** The time between checkpoints, 0 to not write any. */
+    private long checkpointInterval = 60000;
+    /** The number of index changes, to know if a checkpoint is needed. */
+    private final AtomicLong changes = new AtomicLong();
+    private long checkpointedChanges = 0;
+    private long lastCheckpoint = 0;
+    /** The first segment that is not in the last checkpoint. */
+    private volatile int checkpointFrom = Integer.MAX_VALUE;
+
+    private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<>();
+    /** The records that are being written, by key, guarded by itself. */
+    private final Map<String, List<Writer>> writing = new HashMap<>();
+    /** All the segments, oldest first, guarded by this. */
+    private final List<Segment> segments = new ArrayList<>();
+    /** The segment that is written to, guarded by this. */
+    private Segment active;
+    private final AtomicBoolean collecting = new AtomicBoolean(false);
+    private ScheduledFuture<?> gcTask;
+
+    /** Create a new DiskCache.
+     * @param counter the Counter to update with cache statistics
+     * @param nioHandler the NioHandler to run the garbage collection in
+     */
+    public DiskCache(final Counter counter, final NioHandler nioHandler) {
+        this.counter = counter;
+        this.nioHandler = nioHandler;
+    }
+
+    /** Configure this cache, call open after this.
+     * @param config the properties to read the settings from
+     */
+    public void setup(final SProperties config) {
+        if (config == null) {
+            return;
+        }
+        final String d = config.getProperty("directory", "").trim();
+        dir = d.isEmpty() ? null : new File(d);
+        segmentSize = (int) Math.max(1024 * 1024,
+                                     Math.min(Integer.MAX_VALUE,
+                                              getLong(config, "segment_size", segmentSize)));
+        maxSize = Math.max(2L * segmentSize, getLong(config, "max_size", maxSize));
+        maxEntrySize = getLong(config, "max_entry_size", maxEntrySize);
+        compactPercent = (int) getLong(config, "compact_percent", compactPercent);
+        gcInterval = Math.max(100, getLong(config, "gc_interval", gcInterval));
+        checkpointInterval = Math.max(0, getLong(config, "checkpoint_interval",
+                                                 checkpointInterval));
+    }
+
+    /** Set the time that entries are kept after they go stale, so
+     *  that they can be used with stale-while-revalidate and
+     *  stale-if-error. Must be set before the cache is opened.
+     * @param staleGrace the grace time, in seconds
+     */
+    public void setStaleGrace(final long staleGrace) {
+        this.staleGrace = staleGrace;
+    }
+
+    /** Check if this cache has a directory to use.
+     * @return true if the disk cache is configured
+     */
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /** Get the largest body this cache will store.
+     * @return the maximum body size in bytes
+     */
+    public long getMaxEntrySize() {
+        return Math.min(maxEntrySize, segmentSize / 2);
+    }
+
+    /** Open the cache, read the index from the checkpoint and the
+     *  existing segments and start a new segment to write to.
+     * @throws IOException if the directory can not be used
+     */
+    public synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create cache directory: " + dir);
+        }
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Failed to list cache directory: " + dir);
+        }
+        Arrays.sort(files);
+        int nextId = 0;
+        for (File f : files) {
+            nextId = Math.max(nextId, getSegmentId(f) + 1);
+        }
+        final File ckp = new File(dir, CHECKPOINT);
+        if (checkpointInterval <= 0) {
+            // an old checkpoint would be out of date the next time it is used.
+            Files.deleteIfExists(ckp.toPath());
+        }
+        if (!ckp.isFile() || !openFromCheckpoint(ckp, files)) {
+            for (File f : files) {
+                final int id = getSegmentId(f);
+                if (id < 0) {
+                    continue;
+                }
+                final Segment s = new Segment(id, f);
+                scan(s);
+                segments.add(s);
+            }
+        }
+        roll(nextId);
+        checkpointedChanges = changes.get();
+        lastCheckpoint = System.currentTimeMillis();
+        log.info("Disk cache opened: {} entries in {} segments", index.size(),
+                 segments.size());
+    }
+
+    /** Load the index from a checkpoint and read the segments that
+     *  were written after it.
+     * @param ckp the checkpoint file
+     * @param files the files of the cache directory, sorted
+     * @return false if the checkpoint can not be used
+     * @throws IOException if the segments after the checkpoint can not be read
+     */
+    private boolean openFromCheckpoint(final File ckp, final File[] files)
+            throws IOException {
+        final List<Segment> replay = new ArrayList<>();
+        final List<File> dropped = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(ckp, "r")) {
+            final long size = raf.length();
+            if (size < 20 || size > Integer.MAX_VALUE) {
+                log.warn("Ignoring bad disk cache checkpoint: {}", ckp);
+                return false;
+            }
+            final MappedByteBuffer map =
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt() != CHECKPOINT_MAGIC || map.getInt((int) size - 4) != COMMIT) {
+                log.warn("Ignoring bad disk cache checkpoint: {}", ckp);
+                return false;
+            }
+            final int replayFrom = map.getInt();
+            final Map<Integer, Integer> used = new HashMap<>();
+            for (int i = map.getInt(); i > 0; i--) {
+                used.put(map.getInt(), map.getInt());
+            }
+            final Map<Integer, Segment> sealed = new HashMap<>();
+            for (File f : files) {
+                final int id = getSegmentId(f);
+                if (id < 0) {
+                    continue;
+                }
+                final Segment s = new Segment(id, f);
+                if (id >= replayFrom) {
+                    replay.add(s);
+                } else if (used.containsKey(id)) {
+                    s.used = used.get(id);
+                    segments.add(s);
+                    sealed.put(id, s);
+                } else {
+                    // collected but not deleted.
+                    dropped.add(f);
+                }
+            }
+            int keyLength;
+            while ((keyLength = map.getInt()) >= 0) {
+                final byte[] key = new byte[keyLength];
+                map.get(key);
+                final Segment s = sealed.get(map.getInt());
+                final Entry e = s == null ? null :
+                        new Entry(s, map.getInt(), map.getInt(), map.getLong(),
+                                  map.getLong(), false);
+                if (e == null) {
+                    map.position(map.position() + 24);
+                } else {
+                    addToIndex(new String(key, StandardCharsets.UTF_8), e);
+                }
+            }
+            checkpointFrom = replayFrom;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            log.warn("Failed to read disk cache checkpoint: {}: {}", ckp, e.toString());
+            index.clear();
+            segments.clear();
+            return false;
+        }
+        for (Segment s : replay) {
+            scan(s);
+            segments.add(s);
+        }
+        for (File f : dropped) {
+            if (!f.delete()) {
+                log.warn("Failed to delete segment: {}", f);
+            }
+        }
+        log.info("Disk cache index loaded from checkpoint, {} segments read",
+                 replay.size());
+        return true;
+    }
+
+    /** Write the index to the checkpoint file, the entries in the
+     *  segments that may still change are left out since they are
+     *  read from the segments when the cache is opened.
+     */
+    void checkpoint() {
+        final int replayFrom;
+        final List<Segment> sealed = new ArrayList<>();
+        synchronized (this) {
+            if (active == null) {
+                return;
+            }
+            int from = active.id;
+            for (Segment s : segments) {
+                if (s.pending.get() > 0) {
+                    from = Math.min(from, s.id);
+                }
+            }
+            replayFrom = from;
+            for (Segment s : segments) {
+                if (s.id < replayFrom) {
+                    sealed.add(s);
+                }
+            }
+        }
+        final long changed = changes.get();
+        final File tmp = new File(dir, CHECKPOINT + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+                dos.writeInt(CHECKPOINT_MAGIC);
+                dos.writeInt(replayFrom);
+                dos.writeInt(sealed.size());
+                for (Segment s : sealed) {
+                    dos.writeInt(s.id);
+                    dos.writeInt(s.used);
+                }
+                for (Map.Entry<String, Entry> me : index.entrySet()) {
+                    final Entry e = me.getValue();
+                    if (e.segment.id >= replayFrom) {
+                        continue;
+                    }
+                    final byte[] key = me.getKey().getBytes(StandardCharsets.UTF_8);
+                    dos.writeInt(key.length);
+                    dos.write(key);
+                    dos.writeInt(e.segment.id);
+                    dos.writeInt(e.offset);
+                    dos.writeInt(e.headerLength);
+                    dos.writeLong(e.bodyLength);
+                    dos.writeLong(e.expires);
+                }
+                dos.writeInt(-1);
+                dos.writeInt(COMMIT);
+                dos.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                checkpointedChanges = changed;
+            }
+            checkpointFrom = replayFrom;
+            counter.inc("Disk cache checkpoints written");
+        } catch (IOException e) {
+            log.warn("Failed to write disk cache checkpoint: {}", e.toString());
+        }
+    }
+
+    private void checkpointIfNeeded(final long now) {
+        synchronized (this) {
+            if (checkpointInterval <= 0 || now - lastCheckpoint < checkpointInterval ||
+                changes.get() == checkpointedChanges) {
+                return;
+            }
+            lastCheckpoint = now;
+        }
+        checkpoint();
+    }
+
+    private int getSegmentId(final File f) {
+        final String name = f.getName();
+        if (!name.endsWith(SUFFIX) || !f.isFile()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Start the background removal of old and dead records.
+     * @param scheduler the scheduler that triggers the collection
+     */
+    public synchronized void startGc(final ScheduledExecutorService scheduler) {
+        gcTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                if (!collecting.compareAndSet(false, true)) {
+                    return;
+                }
+                nioHandler.runThreadTask(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            final long now = System.currentTimeMillis();
+                            collect(now);
+                            checkpointIfNeeded(now);
+                        } finally {
+                            collecting.set(false);
+                        }
+                    }
+                }, new DefaultTaskIdentifier(DiskCache.class.getSimpleName(), "collect"));
+            }
+        }, gcInterval, gcInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop the garbage collection, write out the current segment
+     *  and write a checkpoint.
+     */
+    public synchronized void close() {
+        if (gcTask != null) {
+            gcTask.cancel(false);
+            gcTask = null;
+        }
+        if (active != null && active.map != null) {
+            active.map.force();
+        }
+        if (checkpointInterval > 0 && changes.get() != checkpointedChanges) {
+            checkpoint();
+        }
+    }
+
+    /** Get the entry for the given key, the header is read from disk.
+     * @param key the cache key
+     * @return the entry or null if there is none
+     */
+    public CacheEntry get(final String key) {
+        final Entry e = index.get(key);
+        if (e == null) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(e.segment.file, "r")) {
+            final FileChannel fc = raf.getChannel();
+            final ByteBuffer start = ByteBuffer.allocate(RECORD_START);
+            readFully(fc, start, e.offset);
+            start.flip();
+            final ByteBuffer buf = ByteBuffer.allocate(e.headerLength);
+            if (start.getInt() != MAGIC || start.getInt() != e.headerLength ||
+                start.getLong() != e.bodyLength || !isCommitted(fc, e)) {
+                return invalid(key, e);
+            }
+            readFully(fc, buf, e.offset + RECORD_START);
+            final Record r = parseHeader(buf.array());
+            if (!r.key.equals(key)) {
+                return invalid(key, e);
+            }
+            e.verified = true;
+            counter.inc("Disk cache lookups found");
+            return new CacheEntry(key, r.header, e.segment.file, e.getBodyOffset(),
+                                  e.bodyLength, r.requestTime, r.responseTime);
+        } catch (IOException ex) {
+            // most likely the segment was collected.
+            log.debug("Failed to read cache entry for: {}: {}", key, ex.toString());
+            return null;
+        }
+    }
+
+    /** Check the commit marker of an entry that has not been used
+     *  since it was read from a checkpoint.
+     */
+    private boolean isCommitted(final FileChannel fc, final Entry e) throws IOException {
+        if (e.verified) {
+            return true;
+        }
+        final ByteBuffer commit = ByteBuffer.allocate(4);
+        readFully(fc, commit, e.offset + e.getSize() - 4);
+        commit.flip();
+        return commit.getInt() == COMMIT;
+    }
+
+    private CacheEntry invalid(final String key, final Entry e) {
+        log.debug("Dropping bad disk cache entry for: {}", key);
+        if (index.remove(key, e)) {
+            e.segment.live.addAndGet(-e.getSize());
+            changes.incrementAndGet();
+        }
+        counter.inc("Disk cache entries invalid");
+        return null;
+    }
+
+    /** Remove the entry for the given key.
+     * @param key the cache key
+     */
+    public void remove(final String key) {
+        final Entry e;
+        synchronized (writing) {
+            // records that are written now are older than the tombstone.
+            markRemoved(key);
+            e = index.remove(key);
+        }
+        if (e == null) {
+            return;
+        }
+        e.segment.live.addAndGet(-e.getSize());
+        changes.incrementAndGet();
+        // write a tombstone so the entry is not found again after a restart
+        final Writer w = reserve(key, new HttpHeader(), 0, 0, -1);
+        if (w != null) {
+            w.commit();
+        }
+    }
+
+    /** Write a new record for an entry that has been revalidated, the
+     *  body is copied from the current record.
+     * @param ce the entry with the updated header
+     */
+    public void update(final CacheEntry ce) {
+        final Entry e = index.get(ce.getKey());
+        if (e == null) {
+            return;
+        }
+        final Writer w = reserve(ce.getKey(), ce.getHeader(), ce.getRequestTime(),
+                                 ce.getResponseTime(), e.bodyLength);
+        if (w == null) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(e.segment.file, "r")) {
+            readFully(raf.getChannel(), w.region.buffer, e.getBodyOffset());
+            w.commit();
+        } catch (IOException ex) {
+            log.debug("Failed to update cache entry for: {}: {}", ce.getKey(), ex.toString());
+            w.abort();
+        }
+    }
+
+    /** Store a whole response.
+     * @param key the cache key
+     * @param header the response header
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was read, in milliseconds
+     * @param body the response body
+     */
+    public void store(final String key, final HttpHeader header, final long requestTime,
+                      final long responseTime, final ByteBuffer body) {
+        final Writer w = reserve(key, header, requestTime, responseTime, body.remaining());
+        if (w != null && w.write(body)) {
+            w.commit();
+        }
+    }
+
+    /** Reserve space for a response, the body is written as it is read.
+     * @param key the cache key
+     * @param header the response header
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was read, in milliseconds
+     * @param bodyLength the size of the body, -1 for a removed entry
+     * @return the writer for the body or null if the response can not be stored
+     */
+    public Writer reserve(final String key, final HttpHeader header, final long requestTime,
+                          final long responseTime, final long bodyLength) {
+        if (bodyLength > getMaxEntrySize()) {
+            return null;
+        }
+        final byte[] hb;
+        try {
+            hb = writeHeader(key, header, requestTime, responseTime);
+        } catch (IOException e) {
+            log.warn("Failed to serialize header for: {}: {}", key, e.toString());
+            return null;
+        }
+        final long expires = getExpires(header, responseTime);
+        final int size = RECORD_OVERHEAD + hb.length + (int) Math.max(0, bodyLength);
+        if (size > segmentSize) {
+            return null;
+        }
+        final Region r;
+        try {
+            r = allocate(size);
+        } catch (IOException e) {
+            log.warn("Failed to allocate disk cache space: {}", e.toString());
+            return null;
+        }
+        r.buffer.putInt(MAGIC).putInt(hb.length).putLong(bodyLength).put(hb);
+        r.buffer.limit(size - 4);
+        final Writer w = new Writer(key, r, hb.length, bodyLength, expires);
+        if (bodyLength >= 0) {
+            synchronized (writing) {
+                List<Writer> ls = writing.get(key);
+                if (ls == null) {
+                    ls = new ArrayList<>(2);
+                    writing.put(key, ls);
+                }
+                ls.add(w);
+            }
+        }
+        return w;
+    }
+
+    private void unregister(final Writer w) {
+        synchronized (writing) {
+            final List<Writer> ls = writing.get(w.key);
+            if (ls != null && ls.remove(w) && ls.isEmpty()) {
+                writing.remove(w.key);
+            }
+        }
+    }
+
+    /* Must be called with the writing lock held. */
+    private void markRemoved(final String key) {
+        final List<Writer> ls = writing.get(key);
+        if (ls != null) {
+            for (Writer w : ls) {
+                w.removed = true;
+            }
+        }
+    }
+
+    /** Get the time a response stops being useful, responses that can
+     *  be revalidated never expire.
+     * @param header the response header
+     * @param responseTime the time the response was read, in milliseconds
+     * @return the expiry time in milliseconds
+     */
+    private long getExpires(final HttpHeader header, final long responseTime) {
+        if (CacheEntry.hasValidators(header)) {
+            return Long.MAX_VALUE;
+        }
+        final CacheControl cc = CacheControl.parse(header);
+        final long lifetime = CacheEntry.getFreshnessLifetime(header, cc, responseTime);
+        // stale entries may still be used for a while.
+        final long grace = Math.max(staleGrace, Math.max(cc.getStaleWhileRevalidate(),
+                                                         cc.getStaleIfError()));
+        return responseTime + (lifetime + grace - CacheEntry.getAge(header)) * 1000;
+    }
+
+    /** Get the number of indexed entries.
+     * @return the number of entries
+     */
+    public int getEntryCount() {
+        return index.size();
+    }
+
+    /** Get the keys of the indexed entries.
+     * @return a live view of the keys
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /** Get the number of bytes used in the segments.
+     * @return the size of all segments
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (Segment s : segments) {
+            size += s.used;
+        }
+        return size;
+    }
+
+    /** Get the number of segments.
+     * @return the number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private synchronized Region allocate(final int size) throws IOException {
+        if (active.used + size > segmentSize) {
+            roll(active.id + 1);
+        }
+        final Segment s = active;
+        final ByteBuffer buf = s.map.duplicate();
+        buf.position(s.used);
+        buf.limit(s.used + size);
+        final Region r = new Region(s, s.used, buf.slice());
+        s.used += size;
+        s.pending.incrementAndGet();
+        return r;
+    }
+
+    private void roll(final int id) throws IOException {
+        if (active != null) {
+            // writers keep their own views of the map.
+            active.map = null;
+        }
+        final File f = new File(dir, String.format("%08d%s", id, SUFFIX));
+        final Segment s = new Segment(id, f);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(segmentSize);
+            s.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segments.add(s);
+        active = s;
+    }
+
+    private void scan(final Segment s) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(s.file, "r")) {
+            final FileChannel fc = raf.getChannel();
+            final long size = fc.size();
+            final ByteBuffer start = ByteBuffer.allocate(RECORD_START);
+            final ByteBuffer commit = ByteBuffer.allocate(4);
+            long pos = 0;
+            while (pos + RECORD_OVERHEAD <= size) {
+                start.clear();
+                readFully(fc, start, pos);
+                start.flip();
+                if (start.getInt() != MAGIC) {
+                    break;
+                }
+                final int hl = start.getInt();
+                final long bl = start.getLong();
+                final long end = pos + RECORD_OVERHEAD + hl + Math.max(0, bl);
+                if (hl < 0 || end > size) {
+                    break;
+                }
+                commit.clear();
+                readFully(fc, commit, end - 4);
+                commit.flip();
+                if (commit.getInt() == COMMIT) {
+                    final ByteBuffer hb = ByteBuffer.allocate(hl);
+                    readFully(fc, hb, pos + RECORD_START);
+                    final Record r = parseHeader(hb.array());
+                    if (bl < 0) {
+                        removeFromIndex(r.key);
+                    } else {
+                        addToIndex(r.key, new Entry(s, (int) pos, hl, bl,
+                                                    getExpires(r.header, r.responseTime),
+                                                    true));
+                    }
+                }
+                pos = end;
+            }
+            s.used = (int) pos;
+        }
+    }
+
+    private void readFully(final FileChannel fc, final ByteBuffer buf, final long pos)
+            throws IOException {
+        long p = pos;
+        while (buf.hasRemaining()) {
+            final int read = fc.read(buf, p);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            p += read;
+        }
+    }
+
+    private byte[] writeHeader(final String key, final HttpHeader header,
+                               final long requestTime, final long responseTime)
+            throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeUTF(key);
+        dos.writeLong(requestTime);
+        dos.writeLong(responseTime);
+        header.write(dos);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    private Record parseHeader(final byte[] data) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        final String key = dis.readUTF();
+        final long requestTime = dis.readLong();
+        final long responseTime = dis.readLong();
+        final HttpHeader header = new HttpHeader();
+        header.read(dis);
+        return new Record(key, header, requestTime, responseTime);
+    }
+
+    private void addToIndex(final String key, final Entry e) {
+        changes.incrementAndGet();
+        e.segment.live.addAndGet(e.getSize());
+        final Entry old = index.put(key, e);
+        if (old != null) {
+            old.segment.live.addAndGet(-old.getSize());
+        }
+    }
+
+    private void removeFromIndex(final String key) {
+        final Entry old = index.remove(key);
+        if (old != null) {
+            changes.incrementAndGet();
+            old.segment.live.addAndGet(-old.getSize());
+        }
+    }
+
+    /** Remove old segments and compact the ones with little live data.
+     * @param now the current time, in milliseconds
+     */
+    void collect(final long now) {
+        final List<Segment> sealed;
+        synchronized (this) {
+            sealed = new ArrayList<>(segments);
+            sealed.remove(active);
+        }
+        boolean checkpointed = false;
+        for (Segment s : sealed) {
+            if (s.pending.get() > 0) {
+                continue;
+            }
+            final boolean evict = getSize() > maxSize;
+            if (!evict && s.live.get() * 100 >= (long) s.used * compactPercent) {
+                continue;
+            }
+            if (s.id >= checkpointFrom && checkpointInterval > 0) {
+                // the segment is part of the journal of the last checkpoint,
+                // its removals would be lost on a restart.
+                if (!checkpointed) {
+                    checkpoint();
+                    checkpointed = true;
+                }
+                if (s.id >= checkpointFrom) {
+                    continue;
+                }
+            }
+            if (evict) {
+                drop(s);
+                counter.inc("Disk cache segments evicted");
+            } else {
+                try {
+                    compact(s, now);
+                    counter.inc("Disk cache segments compacted");
+                } catch (IOException e) {
+                    log.warn("Failed to compact segment: {}: {}", s.file, e.toString());
+                }
+            }
+        }
+    }
+
+    private void compact(final Segment s, final long now) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(s.file, "r")) {
+            final FileChannel fc = raf.getChannel();
+            for (Map.Entry<String, Entry> me : index.entrySet()) {
+                final Entry e = me.getValue();
+                if (e.segment != s || e.expires <= now) {
+                    continue;
+                }
+                final Region r = allocate((int) e.getSize());
+                try {
+                    readFully(fc, r.buffer, e.offset);
+                    // the copy is only committed if it is still the entry
+                    // of the key, a removal may have been written before it.
+                    final int commitAt = r.buffer.capacity() - 4;
+                    final boolean committed = r.buffer.getInt(commitAt) == COMMIT;
+                    r.buffer.putInt(commitAt, 0);
+                    final Entry moved = new Entry(r.segment, r.offset, e.headerLength,
+                                                  e.bodyLength, e.expires, true);
+                    if (committed && index.replace(me.getKey(), e, moved)) {
+                        r.buffer.putInt(commitAt, COMMIT);
+                        changes.incrementAndGet();
+                        moved.segment.live.addAndGet(moved.getSize());
+                        s.live.addAndGet(-e.getSize());
+                    }
+                } finally {
+                    r.segment.pending.decrementAndGet();
+                }
+            }
+            if (hasOlder(s)) {
+                copyTombstones(s, fc);
+            }
+        }
+        drop(s);
+    }
+
+    /** Copy the removals of a segment that is compacted, they are
+     *  needed as long as older segments may hold the removed records.
+     *  Removals of keys that have been stored again are not needed.
+     */
+    private void copyTombstones(final Segment s, final FileChannel fc) throws IOException {
+        final ByteBuffer start = ByteBuffer.allocate(RECORD_START);
+        final ByteBuffer commit = ByteBuffer.allocate(4);
+        long pos = 0;
+        while (pos + RECORD_OVERHEAD <= s.used) {
+            start.clear();
+            readFully(fc, start, pos);
+            start.flip();
+            if (start.getInt() != MAGIC) {
+                break;
+            }
+            final int hl = start.getInt();
+            final long bl = start.getLong();
+            final long end = pos + RECORD_OVERHEAD + hl + Math.max(0, bl);
+            if (hl < 0 || end > s.used) {
+                break;
+            }
+            commit.clear();
+            readFully(fc, commit, end - 4);
+            commit.flip();
+            if (bl < 0 && commit.getInt() == COMMIT) {
+                final ByteBuffer rec = ByteBuffer.allocate((int) (end - pos));
+                readFully(fc, rec, pos);
+                rec.flip();
+                if (copyTombstone(rec)) {
+                    counter.inc("Disk cache removals kept");
+                }
+            }
+            pos = end;
+        }
+    }
+
+    /* Copy a tombstone unless its key has been stored again, records
+     * of the key that are written now are older than the copy.
+     */
+    private boolean copyTombstone(final ByteBuffer rec) throws IOException {
+        final byte[] hb = new byte[rec.getInt(4)];
+        rec.position(RECORD_START);
+        rec.get(hb);
+        rec.rewind();
+        final String key = parseHeader(hb).key;
+        synchronized (writing) {
+            if (index.containsKey(key)) {
+                return false;
+            }
+            markRemoved(key);
+            final Region r = allocate(rec.remaining());
+            try {
+                r.buffer.put(rec);
+            } finally {
+                r.segment.pending.decrementAndGet();
+            }
+            return true;
+        }
+    }
+
+    private synchronized boolean hasOlder(final Segment s) {
+        for (Segment o : segments) {
+            if (o.id < s.id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(final Segment s) {
+        synchronized (this) {
+            segments.remove(s);
+        }
+        for (Map.Entry<String, Entry> me : index.entrySet()) {
+            final Entry e = me.getValue();
+            if (e.segment == s && index.remove(me.getKey(), e)) {
+                changes.incrementAndGet();
+            }
+        }
+        // readers that have the file open can still use it.
+        if (!s.file.delete()) {
+            log.warn("Failed to delete segment: {}", s.file);
+        }
+    }
+
+    private long getLong(final SProperties config, final String key,
+                         final long defaultValue) {
+        final String val = config.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for DiskCache {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
+
+    /** A writer of one record. The body has to be written in full
+     *  before the record is committed.
+     */
+    public class Writer {
+        private final String key;
+        private final Region region;
+        private final int headerLength;
+        private final long bodyLength;
+        private final long expires;
+        private boolean done = false;
+        /** Set if the key was removed while writing, guarded by writing. */
+        private boolean removed = false;
+
+        private Writer(final String key, final Region region, final int headerLength,
+                       final long bodyLength, final long expires) {
+            this.key = key;
+            this.region = region;
+            this.headerLength = headerLength;
+            this.bodyLength = bodyLength;
+            this.expires = expires;
+        }
+
+        /** Append data to the body.
+         * @param buf the data to write, the buffer is not modified
+         * @return false if the body became too large and the record was aborted
+         */
+        public synchronized boolean write(final ByteBuffer buf) {
+            if (done) {
+                return false;
+            }
+            if (buf.remaining() > region.buffer.remaining()) {
+                abort();
+                return false;
+            }
+            region.buffer.put(buf.duplicate());
+            return true;
+        }
+
+        /** Mark the record as complete and add it to the index.
+         *  Records with a partial body are aborted.
+         */
+        public synchronized void commit() {
+            if (done) {
+                return;
+            }
+            if (region.buffer.hasRemaining()) {
+                abort();
+                return;
+            }
+            done = true;
+            boolean stored = false;
+            try {
+                synchronized (writing) {
+                    unregister(this);
+                    if (removed) {
+                        // a newer tombstone is already written, do not commit.
+                        return;
+                    }
+                    region.buffer.limit(region.buffer.capacity());
+                    region.buffer.putInt(region.buffer.capacity() - 4, COMMIT);
+                    if (bodyLength >= 0) {
+                        addToIndex(key, new Entry(region.segment, region.offset,
+                                                  headerLength, bodyLength, expires, true));
+                        stored = true;
+                    }
+                }
+            } finally {
+                region.segment.pending.decrementAndGet();
+            }
+            if (stored) {
+                counter.inc("Disk cache entries stored");
+            }
+        }
+
+        /** Give up on this record, the space it holds is reclaimed
+         *  when its segment is collected.
+         */
+        public synchronized void abort() {
+            if (done) {
+                return;
+            }
+            done = true;
+            unregister(this);
+            region.segment.pending.decrementAndGet();
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        /** The writable map, only set while this is the active segment. */
+        private MappedByteBuffer map;
+        /** The number of bytes in use, guarded by the DiskCache. */
+        private int used = 0;
+        /** The bytes of the records that are in the index. */
+        private final AtomicLong live = new AtomicLong();
+        /** The number of records that are being written. */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        public Segment(final int id, final File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    private static class Region {
+        private final Segment segment;
+        private final int offset;
+        private final ByteBuffer buffer;
+
+        public Region(final Segment segment, final int offset, final ByteBuffer buffer) {
+            this.segment = segment;
+            this.offset = offset;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Entry {
+        private final Segment segment;
+        private final int offset;
+        private final int headerLength;
+        private final long bodyLength;
+        private final long expires;
+        /** False until the record has been checked against the segment. */
+        private volatile boolean verified;
+
+        public Entry(final Segment segment, final int offset, final int headerLength,
+                     final long bodyLength, final long expires, final boolean verified) {
+            this.segment = segment;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.bodyLength = bodyLength;
+            this.expires = expires;
+            this.verified = verified;
+        }
+
+        public long getSize() {
+            return RECORD_OVERHEAD + headerLength + bodyLength;
+        }
+
+        public long getBodyOffset() {
+            return offset + RECORD_START + headerLength;
+        }
+    }
+
+    private static class Record {
+        private final String key;
+        private final HttpHeader header;
+        private final long requestTime;
+        private final long responseTime;
+
+        public Record(final String key, final HttpHeader header,
+                      final long requestTime, final long responseTime) {
+            this.key = key;
+            this.header = header;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+    }
+}
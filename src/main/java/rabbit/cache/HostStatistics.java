@@ -0,0 +1,66 @@
+package rabbit.cache;
+
+/** The cache statistics of one host.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HostStatistics {
+    private final String host;
+    private final long lookups;
+    private final long hits;
+    private final int variants;
+
+    /** Create a new HostStatistics.
+     * @param host the host, in lower case and with any port
+     * @param lookups the number of cache lookups
+     * @param hits the number of lookups that were answered from the cache
+     * @param variants the number of stored variants
+     */
+    public HostStatistics(final String host, final long lookups, final long hits,
+                          final int variants) {
+        this.host = host;
+        this.lookups = lookups;
+        this.hits = hits;
+        this.variants = variants;
+    }
+
+    /**
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the number of cache lookups
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return the number of lookups that were answered from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of variants stored for resources that vary
+     */
+    public int getVariants() {
+        return variants;
+    }
+
+    /**
+     * @return the part of the lookups that were hits, 0 if there are no lookups
+     */
+    public double getHitRatio() {
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    @Override
+    public String toString() {
+        return host + ": lookups: " + lookups + ", hits: " + hits + ", variants: " + variants;
+    }
+}
@@ -0,0 +1,546 @@
+package rabbit.cache;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import rabbit.http.HttpHeader;
+import rabbit.util.Counter;
+import rabbit.util.SProperties;
+
+/** An in memory cache of http responses.
+ *
+ *  <p>Entries are keyed on the normalized request uri and the bodies
+ *  are kept in direct buffers, outside of the java heap, so the
+ *  size of the cache is limited by -XX:MaxDirectMemorySize.
+ *
+ *  <p>Responses with a Vary header are stored as variants of the uri,
+ *  keyed on the normalized values of the request headers they vary
+ *  on, see VaryIndex. The number of variants of each uri is limited.
+ *  Lookups, hits and variants are counted for each host.
+ *
+ *  <p>Eviction is a segmented lru, new entries go into a probation
+ *  segment and are moved into the protected segment on their
+ *  second hit. Entries that are only used once are evicted from the
+ *  probation segment before anything that has been used again.
+ *
+ *  <p>If a DiskCache is set all responses are also written to it and
+ *  entries that are not in memory are looked up on disk.
+ *
+ *  <p>Stale entries may be used for a while after they expire, when
+ *  the response has stale-while-revalidate or stale-if-error or for the
+ *  configured default grace times. Only one background refresh runs
+ *  for each entry.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class HttpCache {
+    private final Counter counter;
+
+    /** The maximum number of bytes to hold, 0 to disable the cache. */
+    private long maxSize = 64 * 1024 * 1024;
+    /** The largest body to store. */
+    private long maxEntrySize = 1024 * 1024;
+    /** The percentage of the cache used for entries that has been hit. */
+    private int protectedPercent = 80;
+    /** The default stale-while-revalidate, in seconds. */
+    private long staleWhileRevalidate = 0;
+    /** The default stale-if-error, in seconds. */
+    private long staleIfError = 0;
+
+    /** The resources that vary and the statistics of the hosts. */
+    private final VaryIndex variants = new VaryIndex();
+
+    private final LinkedHashMap<String, CacheEntry> probation =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CacheEntry> protectedSegment =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long probationSize = 0;
+    private long protectedSize = 0;
+
+    /** The keys of the entries that are refreshed in the background. */
+    private final Set<String> refreshing = new HashSet<>();
+
+    /** The disk tier, may be null. */
+    private volatile DiskCache diskCache;
+
+    /** Create a new HttpCache.
+     * @param counter the Counter to update with cache statistics
+     */
+    public HttpCache(final Counter counter) {
+        this.counter = counter;
+    }
+
+    /** Configure this cache.
+     * @param config the properties to read the settings from
+     */
+    public void setup(final SProperties config) {
+        if (config == null) {
+            return;
+        }
+        synchronized (this) {
+            maxSize = getLong(config, "max_size", maxSize);
+            maxEntrySize = getLong(config, "max_entry_size", maxEntrySize);
+            protectedPercent =
+                    (int) Math.min(100, Math.max(0, getLong(config, "protected_percent",
+                                                            protectedPercent)));
+            staleWhileRevalidate = Math.max(0, getLong(config, "stale_while_revalidate",
+                                                       staleWhileRevalidate));
+            staleIfError = Math.max(0, getLong(config, "stale_if_error", staleIfError));
+            evict();
+        }
+        variants.setLimits((int) getLong(config, "max_variants", 8),
+                           (int) getLong(config, "max_vary_resources", 100000),
+                           (int) getLong(config, "max_host_statistics", 1000));
+    }
+
+    /** Set the disk tier of this cache, the variants that are stored
+     *  on disk are added to the known variants.
+     * @param diskCache the opened disk cache, null for no disk tier
+     */
+    public void setDiskCache(final DiskCache diskCache) {
+        this.diskCache = diskCache;
+        if (diskCache != null) {
+            for (String key : diskCache.getKeys()) {
+                if (VaryIndex.isVariant(key)) {
+                    variants.restore(key);
+                }
+            }
+        }
+    }
+
+    /** Get the disk tier of this cache.
+     * @return the DiskCache or null if there is no disk tier
+     */
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /** Check if this cache may store anything.
+     * @return true if the cache has a size or a disk tier
+     */
+    public synchronized boolean isEnabled() {
+        return maxSize > 0 || diskCache != null;
+    }
+
+    /** Check if a body of the given size may be stored.
+     * @param size the size of the body, -1 if it is not known
+     * @return true if the memory or the disk tier can hold the body
+     */
+    public boolean isStorableSize(final long size) {
+        final DiskCache dc = diskCache;
+        return size <= getMaxEntrySize() ||
+               (dc != null && size <= dc.getMaxEntrySize());
+    }
+
+    /** Get the largest body this cache will store.
+     * @return the maximum body size in bytes
+     */
+    public synchronized long getMaxEntrySize() {
+        return Math.min(maxEntrySize, maxSize);
+    }
+
+    /** Get the key to use for the given uri. The scheme and host are
+     *  lower cased, the default port is removed and the fragment is
+     *  dropped.
+     * @param uri the request uri
+     * @return the normalized uri or null if the uri is not absolute
+     */
+    public static String getKey(final String uri) {
+        final int sep = uri.indexOf("://");
+        if (sep <= 0) {
+            return null;
+        }
+        final String scheme = uri.substring(0, sep).toLowerCase(Locale.US);
+        final int start = sep + 3;
+        int end = start;
+        while (end < uri.length() && "/?#".indexOf(uri.charAt(end)) < 0) {
+            end++;
+        }
+        String authority = uri.substring(start, end).toLowerCase(Locale.US);
+        if (authority.isEmpty() || authority.indexOf('@') >= 0) {
+            return null;
+        }
+        if ((scheme.equals("http") && authority.endsWith(":80")) ||
+            (scheme.equals("https") && authority.endsWith(":443"))) {
+            authority = authority.substring(0, authority.lastIndexOf(':'));
+        }
+        String rest = uri.substring(end);
+        final int hash = rest.indexOf('#');
+        if (hash >= 0) {
+            rest = rest.substring(0, hash);
+        }
+        if (!rest.startsWith("/")) {
+            rest = "/" + rest;
+        }
+        return scheme + "://" + authority + rest;
+    }
+
+    /** Check if a request may be answered from the cache.
+     *  Only GET and HEAD without Authorization are cached.
+     * @param request the request header
+     * @return true if the cache may be used for the request
+     */
+    public static boolean isCacheableRequest(final HttpHeader request) {
+        final String method = request.getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return false;
+        }
+        if (request.getHeader("Authorization") != null) {
+            return false;
+        }
+        return !CacheControl.parse(request).isNoStore();
+    }
+
+    /** Check if a request changes the resource, responses to such
+     *  requests will remove any stored response for the uri.
+     * @param request the request header
+     * @return true if the request method is not safe
+     */
+    public static boolean isUnsafeRequest(final HttpHeader request) {
+        final String method = request.getMethod();
+        return !(method.equals("GET") || method.equals("HEAD") ||
+                 method.equals("OPTIONS") || method.equals("TRACE"));
+    }
+
+    /** Check if a response may be stored. Responses that have
+     *  validators are stored even if they have no freshness lifetime
+     *  or have no-cache, they are revalidated before they are used.
+     * @param response the response header
+     * @param responseTime the time the response was read, in milliseconds
+     * @return true if the response may be stored
+     */
+    public static boolean isStorable(final HttpHeader response, final long responseTime) {
+        final String status = response.getStatusCode().trim();
+        if (!(status.equals("200") || status.equals("203") ||
+              status.equals("300") || status.equals("301") ||
+              status.equals("404") || status.equals("410"))) {
+            return false;
+        }
+        final CacheControl cc = CacheControl.parse(response);
+        final boolean validators = CacheEntry.hasValidators(response);
+        if (!cc.mayStore() || (cc.isNoCache() && !validators)) {
+            return false;
+        }
+        // we do not keep per user responses.
+        if (VaryIndex.getVaryNames(response) == null ||
+            response.getHeader("Set-Cookie") != null) {
+            return false;
+        }
+        return validators || CacheEntry.getFreshnessLifetime(response, cc, responseTime) > 0;
+    }
+
+    /** Get the key to look up for a request, the key of the variant
+     *  the request selects if the uri is known to vary.
+     * @param key the key of the request uri
+     * @param request the request header
+     * @return the key to use
+     */
+    public String getLookupKey(final String key, final HttpHeader request) {
+        return variants.getLookupKey(key, request);
+    }
+
+    /** Get the key to store a response under. A response that varies
+     *  is stored as a variant of the uri, entries stored for the uri
+     *  that no longer match how the response varies are removed.
+     * @param key the key that was looked up for the request
+     * @param request the request header
+     * @param response the response header
+     * @return the key to store the response under or null if the
+     *         response should not be stored
+     */
+    public String getStoreKey(final String key, final HttpHeader request,
+                              final HttpHeader response) {
+        final String resource = VaryIndex.getResourceKey(key);
+        final String[] names = VaryIndex.getVaryNames(response);
+        if (names == null) {
+            return null;
+        }
+        if (names.length == 0) {
+            for (String variant : variants.remove(resource)) {
+                removeEntry(variant);
+            }
+            return resource;
+        }
+        final String variant = VaryIndex.getVariantKey(resource, names, request);
+        final List<String> stale = new ArrayList<>();
+        final boolean stored = isEncodingUsable(names, request, response) &&
+                               variants.add(resource, names, variant, stale);
+        for (String k : stale) {
+            removeEntry(k);
+        }
+        if (!stored) {
+            counter.inc("Cache variants not stored");
+            return null;
+        }
+        return variant;
+    }
+
+    /** Check that a response that varies on Accept-Encoding may be
+     *  used for all the requests that select its variant.
+     */
+    private static boolean isEncodingUsable(final String[] names, final HttpHeader request,
+                                            final HttpHeader response) {
+        if (Arrays.binarySearch(names, "accept-encoding") < 0) {
+            return true;
+        }
+        String ce = response.getHeader("Content-Encoding");
+        ce = ce == null ? "identity" : ce.trim().toLowerCase(Locale.US);
+        if (ce.isEmpty() || ce.equals("identity")) {
+            return true;
+        }
+        final String ae = request.getHeader("Accept-Encoding");
+        return (ce.equals("gzip") || ce.equals("x-gzip")) && ae != null &&
+               VaryIndex.normalize("accept-encoding", ae).equals("gzip");
+    }
+
+    /** Count a cache lookup for the statistics of the host.
+     * @param key the key that was looked up
+     * @param hit true if the request was answered from the cache
+     */
+    public void countLookup(final String key, final boolean hit) {
+        variants.countLookup(key, hit);
+    }
+
+    /** Get the lookup, hit and variant statistics of the hosts.
+     * @return the statistics of the most recently used hosts
+     */
+    public List<HostStatistics> getHostStatistics() {
+        return variants.getHostStatistics();
+    }
+
+    /** Get the longest default time that a stale entry may be used.
+     * @return the largest of the default grace times, in seconds
+     */
+    public synchronized long getStaleGrace() {
+        return Math.max(staleWhileRevalidate, staleIfError);
+    }
+
+    /** Check if a stale entry may be sent while it is refreshed in the
+     *  background. Requests that ask for a fresh response never get a
+     *  stale one.
+     * @param ce the stale entry
+     * @param now the current time, in milliseconds
+     * @param request the cache directives of the request
+     * @return true if the entry may be used
+     */
+    public boolean mayServeWhileRevalidate(final CacheEntry ce, final long now,
+                                           final CacheControl request) {
+        if (request.isNoCache() || request.getMaxAge() >= 0 || request.getMinFresh() >= 0) {
+            return false;
+        }
+        final long swr = ce.getCacheControl().getStaleWhileRevalidate();
+        final long window;
+        synchronized (this) {
+            window = swr >= 0 ? swr : staleWhileRevalidate;
+        }
+        return ce.isUsableStale(now, window);
+    }
+
+    /** Check if a stale entry may be sent if the origin server can not
+     *  be reached or answers with a server error. A stale-if-error in
+     *  the request takes precedence over the one in the response.
+     * @param ce the stale entry
+     * @param now the current time, in milliseconds
+     * @param request the cache directives of the request
+     * @return true if the entry may be used
+     */
+    public boolean mayServeOnError(final CacheEntry ce, final long now,
+                                   final CacheControl request) {
+        long window = request.getStaleIfError();
+        if (window < 0) {
+            window = ce.getCacheControl().getStaleIfError();
+        }
+        if (window < 0) {
+            synchronized (this) {
+                window = staleIfError;
+            }
+        }
+        return ce.isUsableStale(now, window);
+    }
+
+    /** Mark an entry as being refreshed in the background.
+     * @param key the cache key of the entry
+     * @return false if the entry is already being refreshed
+     */
+    public synchronized boolean startRefresh(final String key) {
+        return refreshing.add(key);
+    }
+
+    /** Mark a background refresh as done.
+     * @param key the cache key of the entry
+     */
+    public synchronized void refreshDone(final String key) {
+        refreshing.remove(key);
+    }
+
+    /** Get the entry for the given key, from memory or from disk.
+     * @param key the cache key
+     * @return the stored entry or null if there is none
+     */
+    public CacheEntry get(final String key) {
+        final CacheEntry ce = getFromMemory(key);
+        if (ce != null) {
+            return ce;
+        }
+        final DiskCache dc = diskCache;
+        final CacheEntry found = dc != null ? dc.get(key) : null;
+        if (found == null && VaryIndex.isVariant(key)) {
+            // evicted or never stored.
+            variants.remove(key);
+        }
+        return found;
+    }
+
+    private synchronized CacheEntry getFromMemory(final String key) {
+        CacheEntry ce = protectedSegment.get(key);
+        if (ce != null) {
+            return ce;
+        }
+        ce = probation.remove(key);
+        if (ce == null) {
+            return null;
+        }
+        // second use, promote it.
+        probationSize -= ce.getSize();
+        protectedSegment.put(key, ce);
+        protectedSize += ce.getSize();
+        final long maxProtected = maxSize * protectedPercent / 100;
+        final Iterator<CacheEntry> i = protectedSegment.values().iterator();
+        while (protectedSize > maxProtected && i.hasNext()) {
+            final CacheEntry demoted = i.next();
+            if (demoted == ce) {
+                break;
+            }
+            i.remove();
+            protectedSize -= demoted.getSize();
+            probation.put(demoted.getKey(), demoted);
+            probationSize += demoted.getSize();
+        }
+        return ce;
+    }
+
+    /** Update an entry after the origin server said that it has not
+     *  been modified.
+     * @param ce the stored entry
+     * @param notModified the 304 response header
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param responseTime the time the response was read, in milliseconds
+     * @return the updated entry
+     */
+    public CacheEntry revalidated(final CacheEntry ce, final HttpHeader notModified,
+                                  final long requestTime, final long responseTime) {
+        final CacheEntry updated = ce.update(notModified, requestTime, responseTime);
+        if (updated.getBody() != null) {
+            put(updated);
+        }
+        final DiskCache dc = diskCache;
+        if (dc != null) {
+            dc.update(updated);
+        }
+        counter.inc("Cache entries revalidated");
+        return updated;
+    }
+
+    /** Store an entry in memory, any previous entry for the same key
+     *  is replaced. The disk tier is written to by the caller.
+     * @param ce the entry to store
+     */
+    public synchronized void put(final CacheEntry ce) {
+        if (ce.getSize() > maxSize) {
+            return;
+        }
+        removeFromMemory(ce.getKey());
+        probation.put(ce.getKey(), ce);
+        probationSize += ce.getSize();
+        counter.inc("Cache entries stored");
+        evict();
+    }
+
+    /** Remove the entry for the given key, from memory and from disk.
+     *  Removing the key of a uri also removes all its variants.
+     * @param key the cache key
+     */
+    public void remove(final String key) {
+        for (String variant : variants.remove(key)) {
+            removeEntry(variant);
+        }
+        removeEntry(key);
+    }
+
+    private void removeEntry(final String key) {
+        removeFromMemory(key);
+        final DiskCache dc = diskCache;
+        if (dc != null) {
+            dc.remove(key);
+        }
+    }
+
+    private synchronized void removeFromMemory(final String key) {
+        CacheEntry ce = probation.remove(key);
+        if (ce != null) {
+            probationSize -= ce.getSize();
+        }
+        ce = protectedSegment.remove(key);
+        if (ce != null) {
+            protectedSize -= ce.getSize();
+        }
+    }
+
+    private void evict() {
+        evict(probation);
+        if (probationSize + protectedSize > maxSize) {
+            evict(protectedSegment);
+        }
+    }
+
+    private void evict(final LinkedHashMap<String, CacheEntry> segment) {
+        final Iterator<Map.Entry<String, CacheEntry>> i = segment.entrySet().iterator();
+        while (probationSize + protectedSize > maxSize && i.hasNext()) {
+            final CacheEntry ce = i.next().getValue();
+            i.remove();
+            if (segment == probation) {
+                probationSize -= ce.getSize();
+            } else {
+                protectedSize -= ce.getSize();
+            }
+            counter.inc("Cache entries evicted");
+        }
+    }
+
+    /** Get the number of stored entries.
+     * @return the number of entries
+     */
+    public synchronized int getEntryCount() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    /** Get the number of bytes held.
+     * @return the size of all entries
+     */
+    public synchronized long getSize() {
+        return probationSize + protectedSize;
+    }
+
+    private long getLong(final SProperties config, final String key,
+                         final long defaultValue) {
+        final String val = config.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for HttpCache {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package rabbit.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import rabbit.http.HttpHeader;
+
+/** Keeps track of the resources whose responses vary on request
+ *  headers and of the variants that are stored for them, it also
+ *  keeps the lookup statistics of each host.
+ *
+ *  <p>A variant is stored under the key of the resource followed by
+ *  one line for each request header that the response lists in its
+ *  Vary header, "name:value" or only the name if the request does not
+ *  have the header. The values are normalized so that requests that
+ *  get the same response use the same variant, Accept-Encoding is
+ *  reduced to gzip or identity, a missing one counts as identity, Host
+ *  is lower cased and white space is cleaned up in other headers.
+ *
+ *  <p>Each resource may only have a few variants and only the most
+ *  recently used resources and hosts are kept.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class VaryIndex {
+    private int maxVariants = 8;
+    private int maxResources = 100000;
+    private int maxHosts = 1000;
+
+    private final LinkedHashMap<String, Vary> resources =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Stats> hosts =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Set the limits of this index.
+     * @param maxVariants the largest number of variants for a resource
+     * @param maxResources the largest number of resources to keep variants for
+     * @param maxHosts the largest number of hosts to keep statistics for
+     */
+    public synchronized void setLimits(final int maxVariants, final int maxResources,
+                                       final int maxHosts) {
+        this.maxVariants = maxVariants;
+        this.maxResources = Math.max(1, maxResources);
+        this.maxHosts = Math.max(1, maxHosts);
+        trimResources();
+        trimHosts();
+    }
+
+    /** Get the key to look up for a request.
+     * @param key the key of the resource
+     * @param request the request header
+     * @return the key of the variant to use or the key of the resource
+     *         if it is not known to vary
+     */
+    public synchronized String getLookupKey(final String key, final HttpHeader request) {
+        final Vary v = resources.get(key);
+        return v == null ? key : getVariantKey(key, v.names, request);
+    }
+
+    /** Add a variant of a resource. If the resource varied on other
+     *  headers before its old variants are dropped.
+     * @param key the key of the resource
+     * @param names the names of the headers the response varies on
+     * @param variant the key of the variant
+     * @param stale the keys of entries that should be removed from the
+     *        cache are added to this list
+     * @return false if the resource has too many variants already
+     */
+    public synchronized boolean add(final String key, final String[] names,
+                                    final String variant, final List<String> stale) {
+        Vary v = resources.get(key);
+        if (v != null && !Arrays.equals(v.names, names)) {
+            stale.addAll(remove(key));
+            v = null;
+        }
+        if (v == null) {
+            v = new Vary(names);
+            resources.put(key, v);
+            // any response stored before the resource started to vary.
+            stale.add(key);
+            trimResources();
+        }
+        if (v.variants.contains(variant)) {
+            return true;
+        }
+        if (v.variants.size() >= maxVariants) {
+            return false;
+        }
+        v.variants.add(variant);
+        getStats(getHost(key)).variants++;
+        return true;
+    }
+
+    /** Add a variant that was found in the disk cache.
+     * @param variant the key of the variant
+     */
+    public synchronized void restore(final String variant) {
+        final String key = getResourceKey(variant);
+        final String[] names = getNames(variant);
+        Vary v = resources.get(key);
+        if (v == null) {
+            v = new Vary(names);
+            resources.put(key, v);
+            trimResources();
+        } else if (!Arrays.equals(v.names, names)) {
+            return;
+        }
+        if (v.variants.size() < maxVariants && v.variants.add(variant)) {
+            getStats(getHost(key)).variants++;
+        }
+    }
+
+    /** Remove a resource or one variant of it.
+     * @param key the key of a resource or a variant
+     * @return the keys of the variants of the removed resource, empty
+     *         if a variant was removed
+     */
+    public synchronized List<String> remove(final String key) {
+        if (!isVariant(key)) {
+            final Vary v = resources.remove(key);
+            if (v == null) {
+                return Collections.emptyList();
+            }
+            removeVariants(key, v.variants.size());
+            return new ArrayList<>(v.variants);
+        }
+        final String resource = getResourceKey(key);
+        final Vary v = resources.get(resource);
+        if (v != null && v.variants.remove(key)) {
+            removeVariants(resource, 1);
+        }
+        return Collections.emptyList();
+    }
+
+    /** Count a cache lookup.
+     * @param key the key that was looked up
+     * @param hit true if the request was answered from the cache
+     */
+    public synchronized void countLookup(final String key, final boolean hit) {
+        final Stats s = getStats(getHost(key));
+        s.lookups++;
+        if (hit) {
+            s.hits++;
+        }
+    }
+
+    /** Get the statistics of the hosts, the most recently used last.
+     * @return a copy of the statistics
+     */
+    public synchronized List<HostStatistics> getHostStatistics() {
+        final List<HostStatistics> ret = new ArrayList<>(hosts.size());
+        for (Map.Entry<String, Stats> me : hosts.entrySet()) {
+            final Stats s = me.getValue();
+            ret.add(new HostStatistics(me.getKey(), s.lookups, s.hits, s.variants));
+        }
+        return ret;
+    }
+
+    private void removeVariants(final String key, final int count) {
+        final Stats s = hosts.get(getHost(key));
+        if (s != null) {
+            // the statistics may have been dropped and started over.
+            s.variants = Math.max(0, s.variants - count);
+        }
+    }
+
+    private Stats getStats(final String host) {
+        Stats s = hosts.get(host);
+        if (s == null) {
+            s = new Stats();
+            hosts.put(host, s);
+            trimHosts();
+        }
+        return s;
+    }
+
+    private void trimResources() {
+        final Iterator<Map.Entry<String, Vary>> i = resources.entrySet().iterator();
+        while (resources.size() > maxResources && i.hasNext()) {
+            final Map.Entry<String, Vary> me = i.next();
+            i.remove();
+            // the variants are left in the cache until they are evicted.
+            removeVariants(me.getKey(), me.getValue().variants.size());
+        }
+    }
+
+    private void trimHosts() {
+        final Iterator<Stats> i = hosts.values().iterator();
+        while (hosts.size() > maxHosts && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /** Get the names of the headers that a response varies on.
+     * @param response the response header
+     * @return the lower cased and sorted header names, empty if the
+     *         response does not vary and null if it varies on "*"
+     */
+    public static String[] getVaryNames(final HttpHeader response) {
+        final Set<String> names = new TreeSet<>();
+        for (String value : response.getHeaders("Vary")) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase(Locale.US);
+                if (name.equals("*")) {
+                    return null;
+                }
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /** Get the key of the variant that a request selects.
+     * @param key the key of the resource
+     * @param names the names of the headers the resource varies on
+     * @param request the request header
+     * @return the key of the variant
+     */
+    public static String getVariantKey(final String key, final String[] names,
+                                       final HttpHeader request) {
+        final StringBuilder sb = new StringBuilder(key);
+        for (String name : names) {
+            sb.append('\n').append(name);
+            final List<String> values = request.getHeaders(name);
+            // no Accept-Encoding gets the same variant as identity.
+            if (!values.isEmpty() || name.equals("accept-encoding")) {
+                final StringBuilder value = new StringBuilder();
+                for (String v : values) {
+                    if (value.length() > 0) {
+                        value.append(", ");
+                    }
+                    value.append(v);
+                }
+                sb.append(':').append(normalize(name, value.toString()));
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Normalize the value of a request header.
+     * @param name the lower cased name of the header
+     * @param value the value of the header
+     * @return the value to use in the variant key
+     */
+    public static String normalize(final String name, final String value) {
+        if (name.equals("accept-encoding")) {
+            return acceptsGzip(value) ? "gzip" : "identity";
+        }
+        final String v = value.trim().replaceAll("\\s+", " ");
+        return name.equals("host") ? v.toLowerCase(Locale.US) : v;
+    }
+
+    private static boolean acceptsGzip(final String value) {
+        for (String coding : value.split(",")) {
+            final String[] parts = coding.split(";");
+            final String c = parts[0].trim().toLowerCase(Locale.US);
+            if (!c.equals("gzip") && !c.equals("x-gzip") && !c.equals("*")) {
+                continue;
+            }
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                final String p = parts[i].trim();
+                if (p.startsWith("q=") || p.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(p.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (q > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Check if a key is the key of a variant.
+     * @param key the cache key
+     * @return true if the key has the selecting headers
+     */
+    public static boolean isVariant(final String key) {
+        return key.indexOf('\n') >= 0;
+    }
+
+    /** Get the key of the resource of a variant.
+     * @param key a variant or resource key
+     * @return the key without the selecting headers
+     */
+    public static String getResourceKey(final String key) {
+        final int i = key.indexOf('\n');
+        return i < 0 ? key : key.substring(0, i);
+    }
+
+    private static String[] getNames(final String variant) {
+        final String[] lines = variant.split("\n");
+        final String[] names = new String[lines.length - 1];
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            names[i - 1] = colon < 0 ? lines[i] : lines[i].substring(0, colon);
+        }
+        return names;
+    }
+
+    private static String getHost(final String key) {
+        final int sep = key.indexOf("://");
+        final int start = sep < 0 ? 0 : sep + 3;
+        int end = start;
+        while (end < key.length() && "/\n".indexOf(key.charAt(end)) < 0) {
+            end++;
+        }
+        return key.substring(start, end);
+    }
+
+    /** The header names of a resource and the keys of its variants.
+     */
+    private static class Vary {
+        private final String[] names;
+        private final Set<String> variants = new HashSet<>();
+
+        public Vary(final String[] names) {
+            this.names = names;
+        }
+    }
+
+    /** The lookup statistics of a host.
+     */
+    private static class Stats {
+        private long lookups;
+        private long hits;
+        private int variants;
+    }
+}
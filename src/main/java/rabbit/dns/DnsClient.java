@@ -0,0 +1,484 @@
+package rabbit.dns;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.rnio.NioHandler;
+import rabbit.rnio.ReadHandler;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
+import rabbit.util.SProperties;
+
+/** A dns client that sends its queries over udp without blocking.
+ *
+ *  <p>One datagram channel is used for all queries and it is handled
+ *  by the NioHandler like any other channel. A and AAAA queries are
+ *  sent at the same time and the answers are combined. A query that
+ *  gets no answer within the timeout, or that gets a server failure,
+ *  is sent again to the next name server until all attempts are used.
+ *  Truncated answers are not retried over tcp, the caller is told to
+ *  use the system resolver instead.
+ *
+ *  <p>Ip literals, names without a dot and names from the hosts file
+ *  are not handled, resolve returns false for them so that the
+ *  caller can use the system resolver.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class DnsClient implements ReadHandler {
+    private final NioHandler nioHandler;
+    private final ResolvConf resolvConf;
+    private List<InetSocketAddress> nameservers;
+
+    // the time to wait for an answer, in milliseconds.
+    private long timeout = 2000;
+
+    // the number of times a query is sent before giving up.
+    private int attempts = 3;
+
+    // if AAAA records should be asked for.
+    private boolean ipv6 = true;
+
+    private final ConcurrentMap<Integer, Query> pending = new ConcurrentHashMap<>();
+    private final Random random = new SecureRandom();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+
+    // guarded by this
+    private DatagramChannel channel;
+    private boolean waiting = false;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+
+    /** Create a new DnsClient.
+     * @param nioHandler the NioHandler to use for the network
+     * @param resolvConf the system configuration with name servers and hosts
+     */
+    public DnsClient(final NioHandler nioHandler, final ResolvConf resolvConf) {
+        this.nioHandler = nioHandler;
+        this.resolvConf = resolvConf;
+        nameservers = resolvConf.getNameservers();
+    }
+
+    /** Configure this DnsClient using the given properties.
+     * @param config the properties to read the configuration from
+     */
+    public void setup(final SProperties config) {
+        if (config == null) {
+            return;
+        }
+        final String ns = config.getProperty("nameservers");
+        if (ns != null && !ns.trim().isEmpty()) {
+            final List<InetSocketAddress> ls = new ArrayList<>();
+            for (String s : ns.split(",")) {
+                final InetSocketAddress isa = ResolvConf.parseNameserver(s);
+                if (isa != null) {
+                    ls.add(isa);
+                }
+            }
+            nameservers = ls;
+        }
+        timeout = getInt(config, "timeout", (int) timeout);
+        attempts = Math.max(1, getInt(config, "attempts", attempts));
+        ipv6 = !"false".equals(config.getProperty("ipv6", "true").trim());
+    }
+
+    private int getInt(final SProperties config, final String key,
+                       final int defaultValue) {
+        final String val = config.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for DnsClient {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
+
+    /** Get the name servers this client uses.
+     * @return the name servers
+     */
+    public List<InetSocketAddress> getNameservers() {
+        return nameservers;
+    }
+
+    /** Look up the addresses of the given host.
+     * @param host the host to look up
+     * @param listener the listener to notify when the lookup is done
+     * @return true if the lookup was started, false if this client does
+     *         not handle the host and the system resolver should be used
+     */
+    public boolean resolve(final String host, final DnsListener listener) {
+        String name = host;
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if (nameservers.isEmpty() || name.indexOf('.') < 0 ||
+            ResolvConf.isNumeric(name) || resolvConf.isHostsName(name)) {
+            return false;
+        }
+        final Lookup l = new Lookup(host, listener, ipv6 ? 2 : 1);
+        final List<Query> qs = new ArrayList<>(2);
+        try {
+            qs.add(new Query(l, name, DnsMessage.TYPE_A));
+            if (ipv6) {
+                qs.add(new Query(l, name, DnsMessage.TYPE_AAAA));
+            }
+        } catch (IllegalArgumentException e) {
+            // not a name we can ask for
+            return false;
+        }
+        for (Query q : qs) {
+            send(q);
+        }
+        return true;
+    }
+
+    private void send(final Query q) {
+        final InetSocketAddress server =
+                nameservers.get(q.attempt % nameservers.size());
+        q.attempt++;
+        q.server = server;
+        q.deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            q.id = random.nextInt(0x10000);
+            if (pending.putIfAbsent(q.id, q) == null) {
+                break;
+            }
+        }
+        queries.incrementAndGet();
+        try {
+            final DatagramChannel dc = getChannel();
+            // a datagram is sent whole or not at all, a lost query times out.
+            dc.send(DnsMessage.createQuery(q.id, q.name, q.type), server);
+            waitForRead();
+        } catch (final IOException e) {
+            pending.remove(q.id, q);
+            log.warn("Failed to send dns query for {} to {}: {}", q.name, server, e.toString());
+            // not from within resolve, the caller does not expect an answer yet
+            nioHandler.runThreadTask(new Runnable() {
+                @Override public void run() {
+                    retry(q, e);
+                }
+            }, new DefaultTaskIdentifier(getClass().getSimpleName(), q.name));
+        }
+    }
+
+    private synchronized DatagramChannel getChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            final DatagramChannel dc = DatagramChannel.open();
+            dc.configureBlocking(false);
+            dc.socket().bind(null);
+            channel = dc;
+            waiting = false;
+        }
+        return channel;
+    }
+
+    private void waitForRead() {
+        final DatagramChannel dc;
+        synchronized (this) {
+            if (waiting || pending.isEmpty() || channel == null) {
+                return;
+            }
+            waiting = true;
+            dc = channel;
+        }
+        nioHandler.waitForRead(dc, this);
+    }
+
+    @Override
+    public void read() {
+        final DatagramChannel dc;
+        synchronized (this) {
+            waiting = false;
+            dc = channel;
+        }
+        if (dc == null) {
+            return;
+        }
+        try {
+            SocketAddress from;
+            while ((from = receive(dc)) != null) {
+                handleResponse(from);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read dns response: {}", e.toString());
+        }
+        waitForRead();
+    }
+
+    private SocketAddress receive(final DatagramChannel dc) throws IOException {
+        readBuffer.clear();
+        final SocketAddress from = dc.receive(readBuffer);
+        readBuffer.flip();
+        return from;
+    }
+
+    private void handleResponse(final SocketAddress from) {
+        final DnsMessage m;
+        try {
+            m = DnsMessage.parse(readBuffer);
+        } catch (IOException e) {
+            log.debug("Bad dns response from {}: {}", from, e.toString());
+            return;
+        }
+        final Query q = pending.get(m.getId());
+        if (q == null || !m.isResponse() || !from.equals(q.server) ||
+            q.type != m.getQuestionType() ||
+            !q.name.equalsIgnoreCase(m.getQuestionName())) {
+            // late, spoofed or not for us
+            return;
+        }
+        if (!pending.remove(m.getId(), q)) {
+            return;
+        }
+        if (m.isTruncated()) {
+            truncated.incrementAndGet();
+            q.lookup.truncated();
+            return;
+        }
+        final int rcode = m.getRcode();
+        if (rcode == DnsMessage.RCODE_NOERROR || rcode == DnsMessage.RCODE_NXDOMAIN) {
+            q.lookup.answer(m.getAddresses(), m.getMinTtl());
+        } else {
+            // server failure or refused, the next server may do better
+            retry(q, new IOException("dns server " + q.server + " gave rcode: " + rcode));
+        }
+    }
+
+    private void retry(final Query q, final Exception e) {
+        if (q.attempt < attempts) {
+            send(q);
+        } else {
+            failed(q, e);
+        }
+    }
+
+    private void failed(final Query q, final Exception e) {
+        failures.incrementAndGet();
+        q.lookup.failed(e);
+    }
+
+    @Override
+    public void timeout() {
+        synchronized (this) {
+            waiting = false;
+        }
+        final long now = System.currentTimeMillis();
+        final List<Query> expired = new ArrayList<>();
+        final Iterator<Query> i = pending.values().iterator();
+        while (i.hasNext()) {
+            final Query q = i.next();
+            if (q.deadline <= now && pending.remove(q.id, q)) {
+                expired.add(q);
+            }
+        }
+        for (Query q : expired) {
+            timeouts.incrementAndGet();
+            retry(q, new IOException("dns query timed out: " + q.name));
+        }
+        waitForRead();
+    }
+
+    @Override
+    public void closed() {
+        final DatagramChannel dc;
+        synchronized (this) {
+            waiting = false;
+            dc = channel;
+            channel = null;
+        }
+        if (dc != null) {
+            try {
+                dc.close();
+            } catch (IOException e) {
+                log.warn("Failed to close dns channel: {}", e.toString());
+            }
+        }
+        final List<Query> ls = new ArrayList<>(pending.values());
+        pending.clear();
+        for (Query q : ls) {
+            failed(q, new IOException("dns channel closed"));
+        }
+    }
+
+    @Override
+    public Long getTimeout() {
+        long min = Long.MAX_VALUE;
+        for (Query q : pending.values()) {
+            min = Math.min(min, q.deadline);
+        }
+        return min == Long.MAX_VALUE ? null : min;
+    }
+
+    @Override
+    public boolean useSeparateThread() {
+        return false;
+    }
+
+    @Override
+    public String getDescription() {
+        return "DnsClient: pending queries: " + pending.size();
+    }
+
+    /** Close the channel, any running lookups will fail.
+     */
+    public void close() {
+        final DatagramChannel dc;
+        synchronized (this) {
+            dc = channel;
+        }
+        if (dc != null) {
+            nioHandler.close(dc);
+        }
+        closed();
+    }
+
+    /** Get the number of queries sent, retries included.
+     * @return the number of queries
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /** Get the number of queries that got no answer in time.
+     * @return the number of timeouts
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /** Get the number of queries that failed after all attempts.
+     * @return the number of failed queries
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /** Get the number of truncated answers, they are left to the system resolver.
+     * @return the number of truncated answers
+     */
+    public long getTruncatedCount() {
+        return truncated.get();
+    }
+
+    /** One question sent to the name servers.
+     */
+    private static class Query {
+        private final Lookup lookup;
+        private final String name;
+        private final int type;
+        private int id;
+        private int attempt = 0;
+        private InetSocketAddress server;
+        private volatile long deadline;
+
+        public Query(final Lookup lookup, final String name, final int type) {
+            this.lookup = lookup;
+            this.name = name;
+            this.type = type;
+            // check that the name can be sent
+            DnsMessage.createQuery(0, name, type);
+        }
+    }
+
+    /** The A and AAAA queries for one host.
+     */
+    private static class Lookup {
+        private final String host;
+        private final DnsListener listener;
+        private int remaining;
+        private final List<InetAddress> v4 = new ArrayList<>();
+        private final List<InetAddress> v6 = new ArrayList<>();
+        private long ttl = Long.MAX_VALUE;
+        private boolean truncated = false;
+        private Exception failure;
+
+        public Lookup(final String host, final DnsListener listener,
+                      final int queries) {
+            this.host = host;
+            this.listener = listener;
+            this.remaining = queries;
+        }
+
+        public void answer(final List<InetAddress> addresses, final long minTtl) {
+            synchronized (this) {
+                if (!addresses.isEmpty()) {
+                    ttl = Math.min(ttl, minTtl);
+                }
+                for (InetAddress ia : addresses) {
+                    if (ia.getAddress().length == 4) {
+                        v4.add(ia);
+                    } else {
+                        v6.add(ia);
+                    }
+                }
+            }
+            queryDone();
+        }
+
+        public void truncated() {
+            synchronized (this) {
+                truncated = true;
+            }
+            queryDone();
+        }
+
+        public void failed(final Exception e) {
+            synchronized (this) {
+                failure = e;
+            }
+            queryDone();
+        }
+
+        private void queryDone() {
+            final List<InetAddress> all = new ArrayList<>();
+            final Exception e;
+            final boolean useSystem;
+            synchronized (this) {
+                if (--remaining > 0) {
+                    return;
+                }
+                useSystem = truncated;
+                // same order as the system resolver gives
+                if (Boolean.getBoolean("java.net.preferIPv6Addresses")) {
+                    all.addAll(v6);
+                    all.addAll(v4);
+                } else {
+                    all.addAll(v4);
+                    all.addAll(v6);
+                }
+                e = failure;
+            }
+            if (useSystem) {
+                // the addresses of the truncated answer would be missing
+                listener.useSystemResolver();
+            } else if (!all.isEmpty()) {
+                listener.lookupDone(all.toArray(new InetAddress[all.size()]), ttl * 1000);
+            } else if (e != null) {
+                listener.unknownHost(e);
+            } else {
+                listener.unknownHost(new UnknownHostException(host));
+            }
+        }
+    }
+}
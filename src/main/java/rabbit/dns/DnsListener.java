@@ -0,0 +1,21 @@
+package rabbit.dns;
+
+import java.net.InetAddress;
+import rabbit.io.InetAddressListener;
+
+/** A listener for lookups made by the DnsClient.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public interface DnsListener extends InetAddressListener {
+    /** A dns lookup has completed.
+     * @param ias all the InetAddresses found for the host, never empty
+     * @param ttl the lowest ttl of the address records, in milliseconds
+     */
+    void lookupDone(InetAddress[] ias, long ttl);
+
+    /** The answer did not fit in a udp response, the host should be
+     *  looked up using the system resolver.
+     */
+    void useSystemResolver();
+}
@@ -0,0 +1,261 @@
+package rabbit.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A dns message, only the parts needed for address lookups are handled.
+ *
+ *  <p>Queries are built for one name and type with recursion desired.
+ *  Responses are parsed for the header, the question and the A and
+ *  AAAA records of the answer section, other records are skipped.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class DnsMessage {
+    /** The type of an ipv4 address record. */
+    public static final int TYPE_A = 1;
+    /** The type of an ipv6 address record. */
+    public static final int TYPE_AAAA = 28;
+
+    /** The response code for no error. */
+    public static final int RCODE_NOERROR = 0;
+    /** The response code for a server failure. */
+    public static final int RCODE_SERVFAIL = 2;
+    /** The response code for a name that does not exist. */
+    public static final int RCODE_NXDOMAIN = 3;
+
+    private static final int CLASS_IN = 1;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final int id;
+    private final int flags;
+    private final String questionName;
+    private final int questionType;
+    private final List<InetAddress> addresses;
+    private final long minTtl;
+
+    private DnsMessage(final int id, final int flags, final String questionName,
+                       final int questionType, final List<InetAddress> addresses,
+                       final long minTtl) {
+        this.id = id;
+        this.flags = flags;
+        this.questionName = questionName;
+        this.questionType = questionType;
+        this.addresses = addresses;
+        this.minTtl = minTtl;
+    }
+
+    /** Build a query for the given name.
+     * @param id the id of the query
+     * @param name the name to look up, without a trailing dot
+     * @param type the record type to ask for
+     * @return a buffer holding the query, ready to send
+     * @throws IllegalArgumentException if the name can not be sent in a query
+     */
+    public static ByteBuffer createQuery(final int id, final String name, final int type) {
+        final ByteBuffer buf = ByteBuffer.allocate(12 + MAX_NAME_LENGTH + 4);
+        buf.putShort((short) id);
+        buf.putShort((short) FLAG_RD);
+        buf.putShort((short) 1);  // questions
+        buf.putShort((short) 0);  // answers
+        buf.putShort((short) 0);  // authority
+        buf.putShort((short) 0);  // additional
+        final int nameStart = buf.position();
+        int start = 0;
+        while (start < name.length()) {
+            int end = name.indexOf('.', start);
+            if (end < 0) {
+                end = name.length();
+            }
+            final int len = end - start;
+            if (len == 0 || len > 63) {
+                throw new IllegalArgumentException("Bad label in: " + name);
+            }
+            if (buf.position() - nameStart + len + 2 > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Name too long: " + name);
+            }
+            buf.put((byte) len);
+            for (int i = start; i < end; i++) {
+                final char c = name.charAt(i);
+                if (c <= ' ' || c >= 0x7f) {
+                    throw new IllegalArgumentException("Bad character in: " + name);
+                }
+                buf.put((byte) c);
+            }
+            start = end + 1;
+        }
+        buf.put((byte) 0);
+        buf.putShort((short) type);
+        buf.putShort((short) CLASS_IN);
+        buf.flip();
+        return buf;
+    }
+
+    /** Parse a dns message.
+     * @param buf the buffer holding the message, from index 0 to the limit
+     * @return the parsed message
+     * @throws IOException if the message is not a valid dns message
+     */
+    public static DnsMessage parse(final ByteBuffer buf) throws IOException {
+        try {
+            final int id = buf.getShort() & 0xffff;
+            final int flags = buf.getShort() & 0xffff;
+            final int qdcount = buf.getShort() & 0xffff;
+            final int ancount = buf.getShort() & 0xffff;
+            buf.getShort();  // authority
+            buf.getShort();  // additional
+            String qname = null;
+            int qtype = -1;
+            for (int i = 0; i < qdcount; i++) {
+                final String name = readName(buf);
+                final int type = buf.getShort() & 0xffff;
+                buf.getShort();  // class
+                if (i == 0) {
+                    qname = name;
+                    qtype = type;
+                }
+            }
+            List<InetAddress> addresses = Collections.emptyList();
+            long minTtl = Long.MAX_VALUE;
+            for (int i = 0; i < ancount; i++) {
+                skipName(buf);
+                final int type = buf.getShort() & 0xffff;
+                final int clz = buf.getShort() & 0xffff;
+                final long ttl = buf.getInt() & 0xffffffffL;
+                final int rdlength = buf.getShort() & 0xffff;
+                if (clz == CLASS_IN &&
+                    (type == TYPE_A && rdlength == 4 ||
+                     type == TYPE_AAAA && rdlength == 16)) {
+                    final byte[] ip = new byte[rdlength];
+                    buf.get(ip);
+                    if (addresses.isEmpty()) {
+                        addresses = new ArrayList<>();
+                    }
+                    addresses.add(InetAddress.getByAddress(qname, ip));
+                    minTtl = Math.min(minTtl, ttl);
+                } else {
+                    buf.position(buf.position() + rdlength);
+                }
+            }
+            return new DnsMessage(id, flags, qname, qtype, addresses, minTtl);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException |
+                 IllegalArgumentException e) {
+            throw new IOException("Truncated or bad dns message", e);
+        }
+    }
+
+    private static String readName(final ByteBuffer buf) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int pos = buf.position();
+        int end = -1;
+        int jumps = 0;
+        while (true) {
+            final int len = buf.get(pos) & 0xff;
+            if ((len & 0xc0) == 0xc0) {
+                if (++jumps > 32) {
+                    throw new IOException("Dns name pointer loop");
+                }
+                if (end < 0) {
+                    end = pos + 2;
+                }
+                pos = ((len & 0x3f) << 8) | (buf.get(pos + 1) & 0xff);
+            } else if (len == 0) {
+                if (end < 0) {
+                    end = pos + 1;
+                }
+                break;
+            } else {
+                if (sb.length() > 0) {
+                    sb.append('.');
+                }
+                for (int i = 1; i <= len; i++) {
+                    sb.append((char) (buf.get(pos + i) & 0xff));
+                }
+                if (sb.length() > MAX_NAME_LENGTH) {
+                    throw new IOException("Dns name too long");
+                }
+                pos += len + 1;
+            }
+        }
+        buf.position(end);
+        return sb.toString();
+    }
+
+    private static void skipName(final ByteBuffer buf) {
+        while (true) {
+            final int len = buf.get() & 0xff;
+            if ((len & 0xc0) == 0xc0) {
+                buf.get();
+                return;
+            }
+            if (len == 0) {
+                return;
+            }
+            buf.position(buf.position() + len);
+        }
+    }
+
+    /** Get the id of this message.
+     * @return the message id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /** Check if this message is a response.
+     * @return true if the response flag is set
+     */
+    public boolean isResponse() {
+        return (flags & FLAG_QR) != 0;
+    }
+
+    /** Check if this message was truncated by the server.
+     * @return true if the truncated flag is set
+     */
+    public boolean isTruncated() {
+        return (flags & FLAG_TC) != 0;
+    }
+
+    /** Get the response code.
+     * @return the response code, for instance RCODE_NXDOMAIN
+     */
+    public int getRcode() {
+        return flags & 0xf;
+    }
+
+    /** Get the name of the first question.
+     * @return the name asked for or null if there was no question
+     */
+    public String getQuestionName() {
+        return questionName;
+    }
+
+    /** Get the type of the first question.
+     * @return the record type asked for or -1 if there was no question
+     */
+    public int getQuestionType() {
+        return questionType;
+    }
+
+    /** Get the addresses from the A and AAAA records of the answer.
+     * @return the addresses, may be empty
+     */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    /** Get the lowest ttl of the address records.
+     * @return the ttl in seconds or Long.MAX_VALUE if there were no addresses
+     */
+    public long getMinTtl() {
+        return minTtl;
+    }
+}
@@ -0,0 +1,185 @@
+package rabbit.dns;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/** The system resolver configuration, the name servers from
+ *  /etc/resolv.conf and the names that are listed in /etc/hosts.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class ResolvConf {
+    /** The standard dns port. */
+    public static final int DNS_PORT = 53;
+
+    private final List<InetSocketAddress> nameservers;
+    private final Set<String> hostsNames;
+
+    /** Create a new configuration.
+     * @param nameservers the name servers to use
+     * @param hostsNames the names that are found in the hosts file, in lower case
+     */
+    public ResolvConf(final List<InetSocketAddress> nameservers,
+                      final Set<String> hostsNames) {
+        this.nameservers = Collections.unmodifiableList(new ArrayList<>(nameservers));
+        this.hostsNames = Collections.unmodifiableSet(new HashSet<>(hostsNames));
+    }
+
+    /** Read the configuration from /etc/resolv.conf and /etc/hosts.
+     *  Files that can not be read are treated as empty.
+     * @return the system configuration
+     */
+    public static ResolvConf read() {
+        List<InetSocketAddress> ns = Collections.emptyList();
+        Set<String> hosts = Collections.emptySet();
+        try (Reader r = new FileReader("/etc/resolv.conf")) {
+            ns = readNameservers(r);
+        } catch (IOException e) {
+            log.warn("Failed to read /etc/resolv.conf: {}", e.toString());
+        }
+        try (Reader r = new FileReader("/etc/hosts")) {
+            hosts = readHostsNames(r);
+        } catch (IOException e) {
+            log.warn("Failed to read /etc/hosts: {}", e.toString());
+        }
+        return new ResolvConf(ns, hosts);
+    }
+
+    /** Read the nameserver lines of a resolv.conf file.
+     * @param r the Reader to read the file from
+     * @return the name servers, in the order they were given
+     * @throws IOException if reading fails
+     */
+    public static List<InetSocketAddress> readNameservers(final Reader r)
+            throws IOException {
+        final List<InetSocketAddress> ret = new ArrayList<>();
+        final BufferedReader br = new BufferedReader(r);
+        String line;
+        while ((line = br.readLine()) != null) {
+            final String[] parts = splitLine(line);
+            if (parts.length >= 2 && parts[0].equals("nameserver")) {
+                final InetSocketAddress isa = parseNameserver(parts[1]);
+                if (isa != null) {
+                    ret.add(isa);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Read the names from a hosts file.
+     * @param r the Reader to read the file from
+     * @return all the host names and aliases, in lower case
+     * @throws IOException if reading fails
+     */
+    public static Set<String> readHostsNames(final Reader r) throws IOException {
+        final Set<String> ret = new HashSet<>();
+        final BufferedReader br = new BufferedReader(r);
+        String line;
+        while ((line = br.readLine()) != null) {
+            final String[] parts = splitLine(line);
+            for (int i = 1; i < parts.length; i++) {
+                ret.add(parts[i].toLowerCase(Locale.US));
+            }
+        }
+        return ret;
+    }
+
+    /** Parse a name server address on the form ip, ip:port or [ipv6]:port.
+     *  Only numeric addresses are accepted, no lookups are made.
+     * @param s the address to parse
+     * @return the address or null if it was not a numeric address
+     */
+    public static InetSocketAddress parseNameserver(final String s) {
+        String host = s.trim();
+        int port = DNS_PORT;
+        final int close = host.indexOf(']');
+        final int colon = host.lastIndexOf(':');
+        try {
+            if (host.startsWith("[") && close > 0) {
+                if (colon > close) {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                }
+                host = host.substring(1, close);
+            } else if (colon > 0 && host.indexOf(':') == colon) {
+                port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Bad name server port: '{}'", s);
+            return null;
+        }
+        if (!isNumeric(host)) {
+            log.warn("Name server is not a numeric address: '{}'", s);
+            return null;
+        }
+        try {
+            // numeric, so this does not do a lookup
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Bad name server: '{}'", s);
+            return null;
+        }
+    }
+
+    /** Check if the given host is a numeric ipv4 or ipv6 address.
+     * @param host the host to check, ipv6 addresses may be in brackets
+     * @return true if the host is numeric
+     */
+    public static boolean isNumeric(final String host) {
+        if (host.isEmpty()) {
+            return false;
+        }
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            final char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] splitLine(final String line) {
+        String l = line;
+        final int hash = l.indexOf('#');
+        if (hash >= 0) {
+            l = l.substring(0, hash);
+        }
+        l = l.trim();
+        if (l.isEmpty()) {
+            return new String[0];
+        }
+        return l.split("\\s+");
+    }
+
+    /** Get the name servers.
+     * @return the name servers, in the order they should be tried
+     */
+    public List<InetSocketAddress> getNameservers() {
+        return nameservers;
+    }
+
+    /** Check if the given name is listed in the hosts file.
+     * @param host the name to check
+     * @return true if the hosts file has the name
+     */
+    public boolean isHostsName(final String host) {
+        return hostsNames.contains(host.toLowerCase(Locale.US));
+    }
+}
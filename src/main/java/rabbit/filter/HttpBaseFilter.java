@@ -6,12 +6,12 @@ import java.util.Collection;
 import java.util.Locale;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import rabbit.http.HeaderValueTokenizer;
 import rabbit.http.HttpDateParser;
 import rabbit.http.HttpHeader;
 import rabbit.io.ProxyChain;
@@ -30,7 +30,6 @@ import rabbit.util.SProperties;
 @Slf4j
 public class HttpBaseFilter implements HttpFilter {
     /** Constant for requests that want an unfiltered resource. */
-    private static final BigInteger ZERO = BigInteger.ZERO;
     private static final BigInteger ONE = BigInteger.ONE;
 
     private final Collection<String> removes = new ArrayList<>();
@@ -120,11 +119,7 @@ public class HttpBaseFilter implements HttpFilter {
             if (requri != null && requri.length() > 0 && requri.charAt(0) == '/') {
                 return con.getHttpGenerator().get404(requri);
             }
-            final URL url = new URL(requri);
-            header.setHeader("Host",
-                             url.getPort() > -1 ?
-                             url.getHost() + ":" + url.getPort() :
-                             url.getHost());
+            header.setHeader("Host", header.getRequestTarget().getHostHeader());
         } catch (MalformedURLException e) {
             return con.getHttpGenerator().get400(e);
         }
@@ -136,48 +131,21 @@ public class HttpBaseFilter implements HttpFilter {
      */
     private void removeConnectionTokens(final HttpHeader header) {
         final List<String> cons = header.getHeaders("Connection");
+        if (cons.isEmpty()) {
+            return;
+        }
+        final HeaderValueTokenizer hvt = new HeaderValueTokenizer(null);
         for (final String val : cons) {
-            /* ok, split it... */
-            int s;
-            int start = 0;
-            while (start < val.length()) {
-                while (val.length() > start + 1 && (val.charAt(start) == ' ' || val.charAt(start) == ',')) {
-                    start++;
-                }
-                if (val.length() > start + 1 && val.charAt(start) == '"') {
-                    start++;
-                    s = val.indexOf('"', start);
-                    while (s >= -1 && val.charAt(s - 1) == '\\' && val.length() > s + 1) {
-                        s = val.indexOf('"', s + 1);
-                    }
-                    if (s == -1) {
-                        s = val.length();
-                    }
-                    String t = val.substring(start, s).trim();
-            /* ok, unquote the value... */
-                    StringBuilder sb = new StringBuilder(t.length());
-                    for (int c = 0; c < t.length(); c++) {
-                        final char z = t.charAt(c);
-                        if (z != '\\') {
-                            sb.append(z);
-                        }
-                    }
-                    t = sb.toString();
-                    header.removeHeader(t);
-                    s = val.indexOf(',', s + 1);
-                    if (s == -1) {
-                        start = val.length();
+            hvt.reset(val);
+            while (hvt.nextElement()) {
+                if (hvt.nextWord()) {
+                    if (hvt.isWordEscaped()) {
+                        // escaped token, rare enough to allocate for.
+                        header.removeHeader(hvt.getWord());
                     } else {
-                        start = s + 1;
-                    }
-                } else {
-                    s = val.indexOf(',', start + 1);
-                    if (s == -1) {
-                        s = val.length();
+                        header.removeHeader(val, hvt.getWordStart(),
+                                            hvt.getWordEnd());
                     }
-                    final String t = val.substring(start, s).trim();
-                    header.removeHeader(t);
-                    start = s + 1;
                 }
             }
         }
@@ -185,19 +153,35 @@ public class HttpBaseFilter implements HttpFilter {
 
     private HttpHeader checkMaxForwards(final Connection con, final HttpHeader header,
                                         final String val) {
-        try {
-            final BigInteger bi = new BigInteger(val);
-            if (bi.equals(ZERO)) {
-                if (header.getMethod().equals("TRACE")) {
-                    final HttpHeader ret = con.getHttpGenerator().get200();
-                    ret.setContent(header.toString(), "UTF-8");
-                    return ret;
-                }
+        final long mf = HeaderValueTokenizer.parseLong(val, 0, val.length(), -1);
+        if (mf < 0) {
+            return checkLargeMaxForwards(header, val);
+        }
+        if (mf == 0) {
+            if (header.getMethod().equals("TRACE")) {
                 final HttpHeader ret = con.getHttpGenerator().get200();
-                ret.setHeader("Allow", "GET,HEAD,POST,OPTIONS,TRACE");
-                ret.setHeader("Content-Length", "0");
+                ret.setContent(header.toString(), "UTF-8");
                 return ret;
             }
+            final HttpHeader ret = con.getHttpGenerator().get200();
+            ret.setHeader("Allow", "GET,HEAD,POST,OPTIONS,TRACE");
+            ret.setHeader("Content-Length", "0");
+            return ret;
+        }
+        header.setHeader("Max-Forwards", Long.toString(mf - 1));
+        return null;
+    }
+
+    /* Max-Forwards values too large for a long are still valid.
+     */
+    private HttpHeader checkLargeMaxForwards(final HttpHeader header,
+                                             final String val) {
+        try {
+            final BigInteger bi = new BigInteger(val.trim());
+            if (bi.signum() <= 0) {
+                log.warn("Bad number for Max-Forwards: '{}'", val);
+                return null;
+            }
             final BigInteger b3 = bi.subtract(ONE);
             header.setHeader("Max-Forwards", b3.toString());
         } catch (NumberFormatException e) {
@@ -292,32 +276,9 @@ public class HttpBaseFilter implements HttpFilter {
         return null;
     }
 
-    private boolean checkCacheControl(final String cachecontrol) {
-        final String[] caches = cachecontrol.split(",");
-        for (String cached : caches) {
-            cached = cached.trim();
-            if (cached.equals("no-store")) {
-                return false;
-            }
-            if (cached.equals("private")) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     @Override
     public HttpHeader doHttpOutFiltering(final SocketChannel socket,
                                          final HttpHeader header, final Connection con) {
-        boolean useCache = true;
-        //String cached = header.getHeader("Pragma");
-        final List<String> ccs = header.getHeaders("Cache-Control");
-        for (String cached : ccs) {
-            if (cached != null) {
-                useCache &= checkCacheControl(cached);
-            }
-        }
-
         final String status = header.getStatusCode().trim();
         if (!(status.equals("200") || status.equals("206") || status.equals("304"))) {
             con.setKeepalive(false);
@@ -126,6 +126,25 @@ public class GeneralHeader implements Storable {
         }
     }
 
+    /** removes a headerline from this header
+     * @param src the String holding the type we want to remove
+     * @param start the index in src where the type starts
+     * @param end the index in src just after the type
+     */
+    public void removeHeader(final String src, final int start, final int end) {
+        final int len = end - start;
+        int s = headers.size();
+        for (int i = 0; i < s; i++) {
+            final String type = headers.get(i).getType();
+            if (type.length() == len &&
+                type.regionMatches(true, 0, src, start, len)) {
+                headers.remove(i);
+                i--;
+                s--;
+            }
+        }
+    }
+
     /** removes a header with the specified value 
      * @param value the value of the header we want to remove
      */
@@ -160,6 +179,24 @@ public class GeneralHeader implements Storable {
         return ret;
     }
 
+    /** Get the types of the headers in this header, each type only
+     *  once, in the order they first appear.
+     * @return the header types, eg. "Cache-Control".
+     */
+    public List<String> getHeaderTypes() {
+        final List<String> ret = new ArrayList<>();
+        for (final Header h : headers) {
+            boolean found = false;
+            for (final String t : ret) {
+                found |= t.equalsIgnoreCase(h.getType());
+            }
+            if (!found) {
+                ret.add(h.getType());
+            }
+        }
+        return ret;
+    }
+
     /** Copy all headers in this header to the given header. 
      * @param to the GeneralHeader to add headers to.
      */
@@ -0,0 +1,313 @@
+package rabbit.http;
+
+/** A tokenizer for http header values.
+ *
+ *  <p>The tokenizer works directly on the header value and only keeps
+ *  indexes into it, so looking at the elements of a comma separated
+ *  list, at quoted strings and at parameters does not create any new
+ *  objects. Methods that return a String allocate and should only be
+ *  used when the value is actually needed.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HeaderValueTokenizer {
+    private String value = "";
+    private int pos;
+
+    private int elementStart;
+    private int elementEnd;
+
+    private int wordPos;
+    private int wordStart;
+    private int wordEnd;
+    private boolean wordQuoted;
+    private boolean wordEscaped;
+
+    /** Create a new tokenizer for the given value.
+     * @param value the header value to tokenize
+     */
+    public HeaderValueTokenizer(final String value) {
+        reset(value);
+    }
+
+    /** Start over with a new value.
+     * @param value the header value to tokenize
+     * @return this tokenizer
+     */
+    public HeaderValueTokenizer reset(final String value) {
+        this.value = value == null ? "" : value;
+        pos = 0;
+        elementStart = elementEnd = 0;
+        wordPos = wordStart = wordEnd = 0;
+        wordQuoted = wordEscaped = false;
+        return this;
+    }
+
+    /** Get the value being tokenized.
+     * @return the full header value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /** Move to the next element of the comma separated list.
+     *  Empty elements are skipped, commas inside quoted strings
+     *  do not end an element.
+     * @return true if there was another element
+     */
+    public boolean nextElement() {
+        final int len = value.length();
+        while (pos < len && (isWhite(value.charAt(pos)) || value.charAt(pos) == ',')) {
+            pos++;
+        }
+        if (pos >= len) {
+            elementStart = elementEnd = wordPos = len;
+            return false;
+        }
+        elementStart = pos;
+        boolean quoted = false;
+        while (pos < len) {
+            final char c = value.charAt(pos);
+            if (quoted && c == '\\') {
+                pos++;
+            } else if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == ',') {
+                break;
+            }
+            pos++;
+        }
+        int end = Math.min(pos, len);
+        while (end > elementStart && isWhite(value.charAt(end - 1))) {
+            end--;
+        }
+        elementEnd = end;
+        wordPos = elementStart;
+        return true;
+    }
+
+    /** Get the start index of the current element.
+     * @return the index in the value where the element starts
+     */
+    public int getElementStart() {
+        return elementStart;
+    }
+
+    /** Get the end index of the current element.
+     * @return the index in the value just after the element
+     */
+    public int getElementEnd() {
+        return elementEnd;
+    }
+
+    /** Get the current element as a String.
+     * @return the trimmed current element
+     */
+    public String getElement() {
+        return value.substring(elementStart, elementEnd);
+    }
+
+    /** Check if the current element is the given token, ignoring case.
+     *  A token in quotes is compared without the quotes.
+     * @param token the token to compare against
+     * @return true if the element is the given token
+     */
+    public boolean elementIs(final String token) {
+        int s = elementStart;
+        int e = elementEnd;
+        if (e - s >= 2 && value.charAt(s) == '"' && value.charAt(e - 1) == '"') {
+            s++;
+            e--;
+        }
+        return regionIs(s, e, token);
+    }
+
+    /** Check if the name of the current element is the given name,
+     *  ignoring case. The name is the part before any '=' or ';'.
+     *  @param name the name to compare against
+     *  @return true if the element has the given name
+     */
+    public boolean elementNameIs(final String name) {
+        return regionIs(elementStart, nameEnd(), name);
+    }
+
+    /** Get the numeric value of an element on the form name=number.
+     *  The number may be quoted.
+     * @param defaultValue the value to return if there is no valid number
+     * @return the number or the default value
+     */
+    public long getElementLongValue(final long defaultValue) {
+        int i = skipWhite(nameEnd(), elementEnd);
+        if (i >= elementEnd || value.charAt(i) != '=') {
+            return defaultValue;
+        }
+        i = skipWhite(i + 1, elementEnd);
+        int end = elementEnd;
+        if (i < end && value.charAt(i) == '"') {
+            i++;
+            if (value.charAt(end - 1) == '"') {
+                end--;
+            }
+        }
+        return parseLong(value, i, end, defaultValue);
+    }
+
+    /** Move to the next word in the current element.
+     *  Words are separated by white space, '=' and ';'. A quoted string
+     *  is one word and the word region is the text inside the quotes.
+     * @return true if there was another word in the element
+     */
+    public boolean nextWord() {
+        int i = wordPos;
+        while (i < elementEnd && (isWhite(value.charAt(i)) || isSeparator(value.charAt(i)))) {
+            i++;
+        }
+        if (i >= elementEnd) {
+            wordPos = elementEnd;
+            return false;
+        }
+        wordEscaped = false;
+        if (value.charAt(i) == '"') {
+            wordQuoted = true;
+            wordStart = ++i;
+            while (i < elementEnd && value.charAt(i) != '"') {
+                if (value.charAt(i) == '\\') {
+                    wordEscaped = true;
+                    i++;
+                }
+                i++;
+            }
+            wordEnd = Math.min(i, elementEnd);
+            wordPos = Math.min(i + 1, elementEnd);
+        } else {
+            wordQuoted = false;
+            wordStart = i;
+            while (i < elementEnd && !isWhite(value.charAt(i)) &&
+                   !isSeparator(value.charAt(i))) {
+                i++;
+            }
+            wordEnd = i;
+            wordPos = i;
+        }
+        return true;
+    }
+
+    /** Check if the current word was a quoted string.
+     * @return true if the current word was quoted
+     */
+    public boolean isWordQuoted() {
+        return wordQuoted;
+    }
+
+    /** Check if the current word is a quoted string with escaped
+     *  characters, that is if the word region is not the word itself.
+     * @return true if the current word holds escapes
+     */
+    public boolean isWordEscaped() {
+        return wordEscaped;
+    }
+
+    /** Get the start index of the current word.
+     * @return the index in the value where the word starts
+     */
+    public int getWordStart() {
+        return wordStart;
+    }
+
+    /** Get the end index of the current word.
+     * @return the index in the value just after the word
+     */
+    public int getWordEnd() {
+        return wordEnd;
+    }
+
+    /** Check if the current word is the given text, ignoring case.
+     * @param text the text to compare against
+     * @return true if the word is the given text
+     */
+    public boolean wordIs(final String text) {
+        return !wordEscaped && regionIs(wordStart, wordEnd, text);
+    }
+
+    /** Get the current word, quoted strings are unescaped.
+     * @return the current word
+     */
+    public String getWord() {
+        if (!wordEscaped) {
+            return value.substring(wordStart, wordEnd);
+        }
+        final StringBuilder sb = new StringBuilder(wordEnd - wordStart);
+        for (int i = wordStart; i < wordEnd; i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < wordEnd) {
+                c = value.charAt(++i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** Parse a non negative decimal number from a part of a String.
+     *  Surrounding white space is ignored.
+     * @param s the String holding the number
+     * @param start the start index
+     * @param end the end index
+     * @param defaultValue the value to return if there is no valid number
+     *        or if the number does not fit in a long
+     * @return the number or the default value
+     */
+    public static long parseLong(final String s, final int start, final int end,
+                                 final long defaultValue) {
+        int i = start;
+        int e = end;
+        while (i < e && isWhite(s.charAt(i))) {
+            i++;
+        }
+        while (e > i && isWhite(s.charAt(e - 1))) {
+            e--;
+        }
+        if (i >= e) {
+            return defaultValue;
+        }
+        long ret = 0;
+        for (; i < e; i++) {
+            final int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9 || ret > (Long.MAX_VALUE - d) / 10) {
+                return defaultValue;
+            }
+            ret = ret * 10 + d;
+        }
+        return ret;
+    }
+
+    private int nameEnd() {
+        int i = elementStart;
+        while (i < elementEnd && !isSeparator(value.charAt(i))) {
+            i++;
+        }
+        while (i > elementStart && isWhite(value.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private int skipWhite(int i, final int end) {
+        while (i < end && isWhite(value.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private boolean regionIs(final int start, final int end, final String text) {
+        return end - start == text.length() &&
+               value.regionMatches(true, start, text, 0, text.length());
+    }
+
+    private static boolean isSeparator(final char c) {
+        return c == '=' || c == ';';
+    }
+
+    private static boolean isWhite(final char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
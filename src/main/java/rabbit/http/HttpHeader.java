@@ -4,6 +4,7 @@ import java.util.Locale;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.io.UnsupportedEncodingException;
 import rabbit.util.StringCache;
 
@@ -17,6 +18,7 @@ public class HttpHeader extends GeneralHeader {
     private String requestURI = "";
     private String httpVersion = null;
     private int hashCodeValue;
+    private transient RequestTarget requestTarget;
 
     private transient byte[] content;
 
@@ -49,8 +51,17 @@ public class HttpHeader extends GeneralHeader {
      * @return the content of this header
      */
     public byte[] getBytes() {
+        return getBytes(requestURI);
+    }
+
+    /** Convert this header to a byte[] using the given request uri in
+     *  the request line instead of the one in this header.
+     * @param uri the request uri to use
+     * @return the content of this header
+     */
+    public byte[] getBytes(final String uri) {
         final StringBuilder sb = new StringBuilder();
-        sb.append(getRequestLine());
+        sb.append(getRequestLine(uri));
         sb.append(Header.CRLF);
         super.fillBuffer(sb);
         try {
@@ -85,8 +96,12 @@ public class HttpHeader extends GeneralHeader {
      * @return the request.
      */
     public String getRequestLine() {
-        final StringBuilder sb = new StringBuilder(method.length() + requestURI.length() + 10);
-        sb.append(method).append(' ').append(requestURI);
+        return getRequestLine(requestURI);
+    }
+
+    private String getRequestLine(final String uri) {
+        final StringBuilder sb = new StringBuilder(method.length() + uri.length() + 10);
+        sb.append(method).append(' ').append(uri);
         if (httpVersion != null) {
             sb.append(' ').append(httpVersion);
         }
@@ -157,6 +172,24 @@ public class HttpHeader extends GeneralHeader {
         hashCodeValue = requestURI.toLowerCase(Locale.US).hashCode();
     }
 
+    /** Get the parsed request uri of this request (only valid for
+     *  requests with an absolute uri). The uri is parsed the first
+     *  time this method is called and then reused until the request
+     *  uri is changed.
+     * @return the parsed request target
+     * @throws MalformedURLException if the request uri is not a valid
+     *         absolute uri
+     */
+    public RequestTarget getRequestTarget() throws MalformedURLException {
+        final RequestTarget rt = requestTarget;
+        if (rt != null && rt.getURI() == requestURI) {
+            return rt;
+        }
+        final RequestTarget nrt = RequestTarget.parse(requestURI);
+        requestTarget = nrt;
+        return nrt;
+    }
+
     /** Get the HTTP Version of this request (only valid for requests).
      * @return the http version.
      */
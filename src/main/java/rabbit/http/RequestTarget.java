@@ -0,0 +1,145 @@
+package rabbit.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/** The parsed target of a request, an absolute uri split up into
+ *  scheme, host, port and file.
+ *
+ *  <p>Http and https uris are parsed directly, other schemes are
+ *  handed to java.net.URL so that the same uris are accepted as
+ *  before. The parts are the same as the ones URL gives.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public final class RequestTarget {
+    private final String uri;
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String file;
+
+    private RequestTarget(final String uri, final String scheme,
+                          final String host, final int port, final String file) {
+        this.uri = uri;
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.file = file;
+    }
+
+    /** Parse the given absolute uri.
+     * @param uri the uri to parse
+     * @return the parsed request target
+     * @throws MalformedURLException if the uri is not a valid absolute uri
+     */
+    public static RequestTarget parse(final String uri) throws MalformedURLException {
+        final int colon = uri.indexOf(':');
+        final String scheme = colon > 0 ? getHttpScheme(uri, colon) : null;
+        if (scheme == null || !uri.startsWith("//", colon + 1)) {
+            final URL url = new URL(uri);
+            return new RequestTarget(uri, url.getProtocol(), url.getHost(),
+                                     url.getPort(), url.getFile());
+        }
+        final int len = uri.length();
+        final int authStart = colon + 3;
+        int authEnd = authStart;
+        while (authEnd < len) {
+            final char c = uri.charAt(authEnd);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            authEnd++;
+        }
+        final int at = uri.lastIndexOf('@', authEnd - 1);
+        final int hostStart = at >= authStart ? at + 1 : authStart;
+        int hostEnd;
+        if (hostStart < authEnd && uri.charAt(hostStart) == '[') {
+            final int close = uri.indexOf(']', hostStart);
+            if (close < 0 || close >= authEnd) {
+                throw new MalformedURLException("Invalid host: " + uri);
+            }
+            hostEnd = close + 1;
+        } else {
+            hostEnd = uri.indexOf(':', hostStart);
+            if (hostEnd < 0 || hostEnd > authEnd) {
+                hostEnd = authEnd;
+            }
+        }
+        int port = -1;
+        if (hostEnd < authEnd) {
+            if (uri.charAt(hostEnd) != ':') {
+                throw new MalformedURLException("Invalid host: " + uri);
+            }
+            if (hostEnd + 1 < authEnd) {
+                final long p = HeaderValueTokenizer.parseLong(uri, hostEnd + 1, authEnd, -1);
+                if (p < 0 || p > Integer.MAX_VALUE) {
+                    throw new MalformedURLException("Invalid port number: " + uri);
+                }
+                port = (int) p;
+            }
+        }
+        int fileEnd = uri.indexOf('#', authEnd);
+        if (fileEnd < 0) {
+            fileEnd = len;
+        }
+        return new RequestTarget(uri, scheme, uri.substring(hostStart, hostEnd),
+                                 port, uri.substring(authEnd, fileEnd));
+    }
+
+    private static String getHttpScheme(final String uri, final int colon) {
+        if (colon == 4 && uri.regionMatches(true, 0, "http", 0, 4)) {
+            return "http";
+        }
+        if (colon == 5 && uri.regionMatches(true, 0, "https", 0, 5)) {
+            return "https";
+        }
+        return null;
+    }
+
+    /** Get the uri that this target was parsed from.
+     * @return the full uri
+     */
+    public String getURI() {
+        return uri;
+    }
+
+    /** Get the scheme, in lower case.
+     * @return the scheme, for instance "http"
+     */
+    public String getScheme() {
+        return scheme;
+    }
+
+    /** Get the host part of the uri.
+     * @return the host, ipv6 addresses are kept within brackets
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /** Get the port of the uri.
+     * @return the port or -1 if no port was given
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /** Get the file part of the uri, that is the path and any query.
+     * @return the file part, may be the empty string
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /** Get the value to use for the Host header.
+     * @return the host and, if one was given, the port
+     */
+    public String getHostHeader() {
+        return port > -1 ? host + ":" + port : host;
+    }
+
+    @Override public String toString() {
+        return uri;
+    }
+}
@@ -0,0 +1,64 @@
+package rabbit.httpio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import rabbit.io.SimpleBufferHandle;
+
+/** A resource that is held in a ByteBuffer, like a cached response.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class ByteBufferResourceSource implements ResourceSource {
+    private ByteBuffer data;
+    private boolean sent = false;
+
+    /** Create a new ByteBufferResourceSource
+     * @param data the resource, from position to limit, the buffer is
+     *        not modified
+     */
+    public ByteBufferResourceSource(final ByteBuffer data) {
+        this.data = data.slice();
+    }
+
+    /** The buffer can be written directly, will always return true.
+     * @return true
+     */
+    @Override
+    public boolean supportsTransfer() {
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return data.remaining();
+    }
+
+    @Override
+    public long transferTo(final long position, final long count,
+                           final WritableByteChannel target)
+            throws IOException {
+        final ByteBuffer buf = data.duplicate();
+        buf.position((int) position);
+        buf.limit((int) Math.min(data.limit(), position + count));
+        return target.write(buf);
+    }
+
+    /** Used for empty resources, the whole buffer is sent as one block.
+     */
+    @Override
+    public void addBlockListener(final BlockListener listener) {
+        if (sent || !data.hasRemaining()) {
+            listener.finishedRead();
+        } else {
+            sent = true;
+            listener.bufferRead(new SimpleBufferHandle(data.duplicate()));
+        }
+    }
+
+    @Override
+    public void release() {
+        data = null;
+    }
+}
@@ -0,0 +1,150 @@
+package rabbit.httpio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** A tracker of chunk boundaries in a chunked byte stream.
+ *
+ *  <p>This class does not change the data it sees, it only follows the
+ *  chunk framing so that it is possible to tell when the terminating
+ *  chunk (and any trailers) has been passed. This makes it possible to
+ *  relay a chunked resource as is and still know when the resource
+ *  ends, so that the connection can be reused.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class ChunkBoundaryTracker {
+    private static final int SIZE = 0;
+    private static final int EXTENSION = 1;
+    private static final int DATA = 2;
+    private static final int DATA_END = 3;
+    private static final int TRAILER_START = 4;
+    private static final int TRAILER_LINE = 5;
+    private static final int TRAILER_END = 6;
+    private static final int DONE = 7;
+
+    /** Do not accept chunks that are larger than this. */
+    private static final long MAX_CHUNK_SIZE = Long.MAX_VALUE >> 4;
+
+    private int state = SIZE;
+    private long chunkSize = 0;
+    private long leftInChunk = 0;
+    private boolean sizeDigitSeen = false;
+    private long totalData = 0;
+
+    /** Check if the terminating chunk has been seen.
+     * @return true if the full chunked resource has been seen
+     */
+    public boolean isFinished() {
+        return state == DONE;
+    }
+
+    /** Get the number of chunk data bytes seen so far, that is the
+     *  size of the resource without any chunk framing.
+     * @return the number of de-chunked bytes seen
+     */
+    public long getDataSize() {
+        return totalData;
+    }
+
+    /** Follow the chunk framing in the given buffer.
+     *  The buffer position and limit are not changed.
+     * @param buffer the raw chunked data
+     * @return the number of bytes from the buffer position that belong
+     *         to the chunked resource, this is less than the number of
+     *         remaining bytes only if the resource ended inside the buffer.
+     * @throws IOException if the data is not valid chunked data
+     */
+    public int scan(final ByteBuffer buffer) throws IOException {
+        final int start = buffer.position();
+        final int limit = buffer.limit();
+        int i = start;
+        while (i < limit && state != DONE) {
+            if (state == DATA) {
+                final int step = (int) Math.min(leftInChunk, limit - i);
+                i += step;
+                leftInChunk -= step;
+                totalData += step;
+                if (leftInChunk == 0) {
+                    state = DATA_END;
+                }
+                continue;
+            }
+            handleByte(buffer.get(i++));
+        }
+        return i - start;
+    }
+
+    private void handleByte(final byte b) throws IOException {
+        switch (state) {
+            case SIZE:
+                readSize(b);
+                break;
+            case EXTENSION:
+                if (b == '\n') {
+                    sizeLineRead();
+                }
+                break;
+            case DATA_END:
+                if (b == '\n') {
+                    state = SIZE;
+                    chunkSize = 0;
+                    sizeDigitSeen = false;
+                } else if (b != '\r') {
+                    throw new IOException("Missing CRLF after chunk data: " + (int) b);
+                }
+                break;
+            case TRAILER_START:
+                if (b == '\n') {
+                    state = DONE;
+                } else if (b == '\r') {
+                    state = TRAILER_END;
+                } else {
+                    state = TRAILER_LINE;
+                }
+                break;
+            case TRAILER_LINE:
+                if (b == '\n') {
+                    state = TRAILER_START;
+                }
+                break;
+            case TRAILER_END:
+                if (b != '\n') {
+                    throw new IOException("Bad chunk trailer ending: " + (int) b);
+                }
+                state = DONE;
+                break;
+            default:
+                throw new IllegalStateException("Unknown state: " + state);
+        }
+    }
+
+    private void readSize(final byte b) throws IOException {
+        final int digit = Character.digit(b, 16);
+        if (digit >= 0) {
+            chunkSize = (chunkSize << 4) + digit;
+            if (chunkSize > MAX_CHUNK_SIZE) {
+                throw new IOException("Chunk size too large");
+            }
+            sizeDigitSeen = true;
+        } else if (b == '\n') {
+            sizeLineRead();
+        } else if (b == ';' || b == ' ' || b == '\t' || b == '\r') {
+            state = EXTENSION;
+        } else {
+            throw new IOException("Chunk size is not a hex number: " + (int) b);
+        }
+    }
+
+    private void sizeLineRead() throws IOException {
+        if (!sizeDigitSeen) {
+            throw new IOException("Chunk size is not available");
+        }
+        if (chunkSize == 0) {
+            state = TRAILER_START;
+        } else {
+            leftInChunk = chunkSize;
+            state = DATA;
+        }
+    }
+}
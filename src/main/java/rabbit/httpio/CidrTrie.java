@@ -0,0 +1,102 @@
+package rabbit.httpio;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import rabbit.dns.ResolvConf;
+
+/** A binary trie of ipv4 and ipv6 networks given in cidr notation,
+ *  like "10.0.0.0/8" or "fd00::/8". When several networks hold an
+ *  address the one with the longest prefix is used.
+ *
+ * @param <T> the type of the values
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class CidrTrie<T> {
+    private final Node<T> v4 = new Node<>();
+    private final Node<T> v6 = new Node<>();
+
+    /** Add a network to this trie.
+     * @param cidr the network, an address without a prefix length is a
+     *        single host
+     * @param value the value to use for addresses in the network
+     * @throws IllegalArgumentException if the network is not valid
+     */
+    public void put(final String cidr, final T value) {
+        final String s = cidr.trim();
+        final int slash = s.indexOf('/');
+        final byte[] ip = parse(slash < 0 ? s : s.substring(0, slash));
+        if (ip == null) {
+            throw new IllegalArgumentException("Bad network: '" + cidr + "'");
+        }
+        final int bits = ip.length * 8;
+        int prefix = bits;
+        if (slash >= 0) {
+            try {
+                prefix = Integer.parseInt(s.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                prefix = -1;
+            }
+            if (prefix < 0 || prefix > bits) {
+                throw new IllegalArgumentException("Bad prefix length: '" + cidr + "'");
+            }
+        }
+        Node<T> n = ip.length == 4 ? v4 : v6;
+        for (int i = 0; i < prefix; i++) {
+            final int b = bit(ip, i);
+            if (n.children[b] == null) {
+                n.children[b] = new Node<>();
+            }
+            n = n.children[b];
+        }
+        n.value = value;
+    }
+
+    /** Find the value of the most specific network that holds the address.
+     * @param ip the raw address, 4 or 16 bytes
+     * @return the value or null if no network holds the address
+     */
+    public T get(final byte[] ip) {
+        Node<T> n = ip.length == 4 ? v4 : v6;
+        T ret = n.value;
+        for (int i = 0; i < ip.length * 8; i++) {
+            n = n.children[bit(ip, i)];
+            if (n == null) {
+                break;
+            }
+            if (n.value != null) {
+                ret = n.value;
+            }
+        }
+        return ret;
+    }
+
+    /** Parse a numeric address, no lookups are made.
+     * @param host the address, ipv6 addresses may be in brackets
+     * @return the raw address or null if the host is not a numeric address
+     */
+    public static byte[] parse(final String host) {
+        String h = host;
+        if (h.startsWith("[") && h.endsWith("]")) {
+            h = h.substring(1, h.length() - 1);
+        }
+        if (!ResolvConf.isNumeric(h)) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(h).getAddress();
+        } catch (UnknownHostException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private static int bit(final byte[] ip, final int i) {
+        return (ip[i >> 3] >> (7 - (i & 7))) & 1;
+    }
+
+    private static class Node<T> {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final Node<T>[] children = new Node[2];
+        private T value;
+    }
+}
@@ -0,0 +1,336 @@
+package rabbit.httpio;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.dns.DnsClient;
+import rabbit.dns.DnsListener;
+import rabbit.http.RequestTarget;
+import rabbit.io.InetAddressListener;
+import rabbit.rnio.NioHandler;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
+import rabbit.util.SProperties;
+
+/** A cache of dns lookups.
+ *
+ *  <p>Successful lookups are kept for the lowest ttl of the address
+ *  records, at most positive_ttl milliseconds, and failed lookups for
+ *  negative_ttl milliseconds. The system resolver does not give the
+ *  ttl, its lookups are kept for positive_ttl milliseconds. A cache
+ *  hit is answered directly on the calling thread. Only one lookup is
+ *  made for each host at a time, requests for a host that is being
+ *  looked up wait for that lookup. If a DnsClient is set it is used
+ *  for the lookups it can handle, otherwise, or if the answer is
+ *  truncated, the system resolver is used on a background thread.
+ *  An entry that is used close to its expiry is looked up again in
+ *  the background so that busy hosts do not have to wait for the dns.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class DnsCache {
+    private static DnsCache instance;
+
+    // the time to keep successful lookups, in milliseconds.
+    private long positiveTTL = 60000;
+
+    // the time to keep failed lookups, in milliseconds.
+    private long negativeTTL = 5000;
+
+    // the part of the positive ttl after which a used entry is refreshed, in percent.
+    private int refreshPercent = 80;
+
+    // the maximum number of cached hosts.
+    private int maxEntries = 10000;
+
+    // the non blocking dns client, if null the system resolver is used.
+    private volatile DnsClient dnsClient;
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /** Get the shared instance of the dns cache.
+     * @return the DnsCache
+     */
+    public static synchronized DnsCache getSharedInstance() {
+        if (instance == null) {
+            instance = new DnsCache();
+        }
+        return instance;
+    }
+
+    /** Configure this cache using the given properties.
+     * @param config the properties to read the configuration from
+     */
+    public void setup(final SProperties config) {
+        if (config == null) {
+            return;
+        }
+        positiveTTL = getInt(config, "positive_ttl", (int) positiveTTL);
+        negativeTTL = getInt(config, "negative_ttl", (int) negativeTTL);
+        refreshPercent = getInt(config, "refresh_percent", refreshPercent);
+        maxEntries = getInt(config, "max_entries", maxEntries);
+    }
+
+    /** Set the dns client to use for lookups.
+     * @param dnsClient the client to use, null to use the system resolver
+     */
+    public void setDnsClient(final DnsClient dnsClient) {
+        this.dnsClient = dnsClient;
+    }
+
+    private int getInt(final SProperties config, final String key,
+                       final int defaultValue) {
+        final String val = config.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for DnsCache {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
+
+    /** Find the addresses of the host of the given request target.
+     *  The listener is called directly if the host is cached, otherwise
+     *  when the lookup is done.
+     * @param target the request target to lookup
+     * @param nio the NioHandler to use for running background lookups
+     * @param listener the listener to notify
+     */
+    public void lookup(final RequestTarget target, final NioHandler nio,
+                       final InetAddressListener listener) {
+        final String host = target.getHost().toLowerCase(Locale.US);
+        final Entry e = cache.get(host);
+        final long now = System.currentTimeMillis();
+        if (e != null && now < e.expires) {
+            hits.incrementAndGet();
+            if (e.addresses != null && now >= e.refreshAt &&
+                e.refreshing.compareAndSet(false, true)) {
+                refreshes.incrementAndGet();
+                startLookup(host, target, nio, e);
+            }
+            e.notify(listener);
+            return;
+        }
+        misses.incrementAndGet();
+        final Lookup l = lookups.get(host);
+        if (l != null && l.addListener(listener)) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        final Lookup nl = l == null ? startLookup(host, target, nio, null) : l;
+        if (!nl.addListener(listener)) {
+            // the lookup is already done, it may have failed on this thread
+            nl.notifyResult(listener);
+        }
+    }
+
+    private Lookup startLookup(final String host, final RequestTarget target,
+                               final NioHandler nio, final Entry old) {
+        final Lookup nl = new Lookup(host, target, nio, old);
+        final Lookup l = lookups.putIfAbsent(host, nl);
+        if (l != null) {
+            // someone else is already looking up the host
+            if (old != null) {
+                old.refreshing.set(false);
+            }
+            return l;
+        }
+        final DnsClient dc = dnsClient;
+        if (dc == null || !dc.resolve(host, nl)) {
+            nl.useSystemResolver();
+        }
+        return nl;
+    }
+
+    private void store(final String host, final Entry e) {
+        cache.put(host, e);
+        if (cache.size() > maxEntries) {
+            final long now = System.currentTimeMillis();
+            final Iterator<Map.Entry<String, Entry>> i = cache.entrySet().iterator();
+            while (i.hasNext()) {
+                if (i.next().getValue().expires <= now) {
+                    i.remove();
+                }
+            }
+            final Iterator<String> k = cache.keySet().iterator();
+            while (cache.size() > maxEntries && k.hasNext()) {
+                k.next();
+                k.remove();
+            }
+        }
+    }
+
+    /** Get the number of lookups answered from the cache.
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Get the number of lookups that were not in the cache.
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Get the number of misses that waited for an already running lookup.
+     * @return the number of coalesced lookups
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /** Get the number of background refreshes that have been started.
+     * @return the number of refreshes
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /** Get the part of the lookups that were answered from the cache.
+     * @return the hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** Get the number of cached hosts.
+     * @return the current size of the cache
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /** A cached lookup result.
+     */
+    private static class Entry {
+        private final InetAddress[] addresses;
+        private final Exception failure;
+        private final long expires;
+        private final long refreshAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        public Entry(final InetAddress[] addresses, final Exception failure,
+                     final long expires, final long refreshAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+            this.refreshAt = refreshAt;
+        }
+
+        public void notify(final InetAddressListener listener) {
+            if (addresses != null) {
+                listener.lookupDone(addresses);
+            } else {
+                listener.unknownHost(failure);
+            }
+        }
+    }
+
+    /** A running lookup and the listeners waiting for it.
+     */
+    private class Lookup implements DnsListener {
+        private final String host;
+        private final RequestTarget target;
+        private final NioHandler nio;
+        private final Entry old;
+        private List<InetAddressListener> listeners = new ArrayList<>();
+        private Entry result;
+
+        public Lookup(final String host, final RequestTarget target,
+                      final NioHandler nio, final Entry old) {
+            this.host = host;
+            this.target = target;
+            this.nio = nio;
+            this.old = old;
+        }
+
+        /* Returns false if the lookup is already done. */
+        public synchronized boolean addListener(final InetAddressListener listener) {
+            if (listeners == null) {
+                return false;
+            }
+            listeners.add(listener);
+            return true;
+        }
+
+        /* Notify a listener that came after the lookup was done. */
+        public void notifyResult(final InetAddressListener listener) {
+            final Entry e;
+            synchronized (this) {
+                e = result;
+            }
+            e.notify(listener);
+        }
+
+        @Override
+        public void lookupDone(final InetAddress[] ias) {
+            lookupDone(ias, positiveTTL);
+        }
+
+        @Override
+        public void lookupDone(final InetAddress[] ias, final long ttl) {
+            final long now = System.currentTimeMillis();
+            final long keep = Math.min(ttl, positiveTTL);
+            final Entry e = new Entry(ias, null, now + keep,
+                                      now + keep * refreshPercent / 100);
+            store(host, e);
+            for (InetAddressListener l : done(e)) {
+                l.lookupDone(ias);
+            }
+        }
+
+        @Override
+        public void unknownHost(final Exception e) {
+            final long now = System.currentTimeMillis();
+            final Entry failed = new Entry(null, e, now + negativeTTL, Long.MAX_VALUE);
+            if (old != null && now < old.expires) {
+                // failed refresh, keep using the old addresses until they expire
+                old.refreshing.set(false);
+            } else if (e instanceof UnknownHostException) {
+                store(host, failed);
+            }
+            for (InetAddressListener l : done(failed)) {
+                l.unknownHost(e);
+            }
+        }
+
+        @Override
+        public void useSystemResolver() {
+            nio.runThreadTask(new ResolvRunner(target, this),
+                              new DefaultTaskIdentifier(DnsCache.class.getSimpleName(), host));
+        }
+
+        private List<InetAddressListener> done(final Entry e) {
+            lookups.remove(host, this);
+            synchronized (this) {
+                result = e;
+                final List<InetAddressListener> ret = listeners;
+                listeners = null;
+                return ret;
+            }
+        }
+    }
+}
@@ -25,6 +25,9 @@ import rabbit.io.CacheBufferHandle;
 @Slf4j
 public class FileResourceSource implements ResourceSource {
     private FileChannel fc;
+    private final long offset;
+    private final long size; // -1 for the whole file
+    private long readPos = 0;
 
     // used for block handling.
     private BlockListener listener;
@@ -62,6 +65,25 @@ public class FileResourceSource implements ResourceSource {
         }
         final FileInputStream fis = new FileInputStream(f);
         fc = fis.getChannel();
+        this.offset = 0;
+        this.size = -1;
+        this.nioHandler = nioHandler;
+        this.bufHandle = new CacheBufferHandle(bufHandler);
+    }
+
+    /** Create a new FileResourceSource for a part of a file.
+     * @param fc the channel to read from, it is closed on release
+     * @param offset the position in the file where the resource starts
+     * @param size the size of the resource
+     * @param nioHandler the NioHandler to use for background tasks
+     * @param bufHandler the BufferHandler to use when reading and writing
+     */
+    public FileResourceSource(final FileChannel fc, final long offset, final long size,
+                              final NioHandler nioHandler,
+                              final BufferHandler bufHandler) {
+        this.fc = fc;
+        this.offset = offset;
+        this.size = size;
         this.nioHandler = nioHandler;
         this.bufHandle = new CacheBufferHandle(bufHandler);
     }
@@ -76,6 +98,9 @@ public class FileResourceSource implements ResourceSource {
 
     @Override
     public long length() {
+        if (size >= 0) {
+            return size;
+        }
         try {
             return fc.size();
         } catch (IOException e) {
@@ -89,7 +114,8 @@ public class FileResourceSource implements ResourceSource {
                            final WritableByteChannel target)
             throws IOException {
         try {
-            return fc.transferTo(position, count, target);
+            final long max = size >= 0 ? Math.min(count, size - position) : count;
+            return fc.transferTo(offset + position, max, target);
         } catch (IOException e) {
             if ("Resource temporarily unavailable".equals(e.getMessage())) {
                 // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5103988
@@ -118,10 +144,15 @@ public class FileResourceSource implements ResourceSource {
         public void run() {
             try {
                 final ByteBuffer buffer = bufHandle.getBuffer();
-                final int read = fc.read(buffer);
+                if (size >= 0 && size - readPos < buffer.remaining()) {
+                    buffer.limit(buffer.position() + (int) (size - readPos));
+                }
+                final int read = buffer.hasRemaining() ?
+                                 fc.read(buffer, offset + readPos) : -1;
                 if (read == -1) {
                     returnFinished();
                 } else {
+                    readPos += read;
                     buffer.flip();
                     returnBlockRead();
                 }
@@ -0,0 +1,30 @@
+package rabbit.httpio;
+
+/** Exception signaling that the parser found a line that is too long.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class HeaderLimitExceededException extends BadHttpHeaderException {
+    /** Serial version.
+     */
+    public static final long serialVersionUID  = 1L;
+
+    private final boolean requestLine;
+
+    /** Create a new HeaderLimitExceededException.
+     * @param msg a descriptive error message
+     * @param requestLine true if it was the request line that was too long
+     */
+    public HeaderLimitExceededException(final String msg,
+                                        final boolean requestLine) {
+        super(msg);
+        this.requestLine = requestLine;
+    }
+
+    /** Check if it was the request line that was too long.
+     * @return true for the request line, false for a header line
+     */
+    public boolean isRequestLine() {
+        return requestLine;
+    }
+}
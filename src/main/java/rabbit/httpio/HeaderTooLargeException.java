@@ -0,0 +1,19 @@
+package rabbit.httpio;
+
+import java.io.IOException;
+
+/** A class to handle the case where http header lines or the full
+ *  http header are larger than allowed.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HeaderTooLargeException extends IOException {
+    private static final long serialVersionUID = 1;
+
+    /** Create a new HeaderTooLargeException
+     * @param msg a descriptive error message
+     */
+    public HeaderTooLargeException(final String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,83 @@
+package rabbit.httpio;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** A trie of host name suffixes, keyed on the labels of the name
+ *  from right to left.
+ *
+ *  <p>An entry for "example.com" matches "example.com" and every
+ *  name under it, like "www.example.com". When several entries
+ *  match a host the longest one is used.
+ *
+ * @param <T> the type of the values
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class HostSuffixTrie<T> {
+    private final Node<T> root = new Node<>();
+
+    /** Add a suffix to this trie.
+     * @param suffix the domain, a leading "*." or "." is ignored
+     * @param value the value to use for hosts under the domain
+     */
+    public void put(final String suffix, final T value) {
+        String s = suffix.trim().toLowerCase(Locale.US);
+        if (s.startsWith("*.")) {
+            s = s.substring(2);
+        } else if (s.startsWith(".")) {
+            s = s.substring(1);
+        }
+        if (s.endsWith(".")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        if (s.isEmpty()) {
+            throw new IllegalArgumentException("Empty host suffix: '" + suffix + "'");
+        }
+        Node<T> n = root;
+        int end = s.length();
+        while (end > 0) {
+            final int dot = s.lastIndexOf('.', end - 1);
+            final String label = s.substring(dot + 1, end);
+            Node<T> c = n.children.get(label);
+            if (c == null) {
+                c = new Node<>();
+                n.children.put(label, c);
+            }
+            n = c;
+            end = dot;
+        }
+        n.value = value;
+    }
+
+    /** Find the value of the longest suffix that matches the host.
+     * @param host the host name, in lower case
+     * @return the value or null if no suffix matches
+     */
+    public T get(final String host) {
+        T ret = null;
+        Node<T> n = root;
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        while (end > 0) {
+            final int dot = host.lastIndexOf('.', end - 1);
+            n = n.children.get(host.substring(dot + 1, end));
+            if (n == null) {
+                break;
+            }
+            if (n.value != null) {
+                ret = n.value;
+            }
+            end = dot;
+        }
+        return ret;
+    }
+
+    private static class Node<T> {
+        private final Map<String, Node<T>> children = new HashMap<>();
+        private T value;
+    }
+}
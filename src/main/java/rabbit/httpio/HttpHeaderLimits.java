@@ -0,0 +1,54 @@
+package rabbit.httpio;
+
+/** The size limits to use when reading http headers.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class HttpHeaderLimits {
+    /** The limits used if nothing else is configured. */
+    public static final HttpHeaderLimits DEFAULT =
+            new HttpHeaderLimits(8192, 16384, 65536);
+
+    private final int maxRequestLine;
+    private final int maxHeaderLine;
+    private final int maxHeaderSize;
+
+    /** Create a new set of limits.
+     * @param maxRequestLine the maximum length of the request or status line
+     * @param maxHeaderLine the maximum length of a single header line
+     * @param maxHeaderSize the maximum size of the full header
+     */
+    public HttpHeaderLimits(final int maxRequestLine, final int maxHeaderLine,
+                            final int maxHeaderSize) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderLine = maxHeaderLine;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /** Get the maximum length of the request line.
+     * @return the maximum number of bytes in the request line
+     */
+    public int getMaxRequestLine() {
+        return maxRequestLine;
+    }
+
+    /** Get the maximum length of a header line.
+     * @return the maximum number of bytes in a single header line
+     */
+    public int getMaxHeaderLine() {
+        return maxHeaderLine;
+    }
+
+    /** Get the maximum size of a http header.
+     * @return the maximum number of bytes in the full header
+     */
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    @Override public String toString() {
+        return getClass().getSimpleName() + "{requestLine: " + maxRequestLine +
+               ", headerLine: " + maxHeaderLine +
+               ", headerSize: " + maxHeaderSize + "}";
+    }
+}
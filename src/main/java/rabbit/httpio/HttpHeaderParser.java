@@ -22,6 +22,7 @@ public class HttpHeaderParser implements LineListener {
     private Header head = null;
     private boolean append = false;
     private boolean headerRead = false;
+    private HttpHeaderLimits limits = null;
 
     private static final ByteBuffer HTTP_IDENTIFIER =
             ByteBuffer.wrap(new byte[]{(byte) 'H', (byte) 'T', (byte) 'T',
@@ -42,6 +43,13 @@ public class HttpHeaderParser implements LineListener {
         lr = new LineReader(strictHttp);
     }
 
+    /** Set the size limits to check the header lines against.
+     * @param limits the limits to use, or null to not check line lengths
+     */
+    public void setLimits(final HttpHeaderLimits limits) {
+        this.limits = limits;
+    }
+
     /** Get the current header
      * @return the header as it looks at this moment
      */
@@ -119,6 +127,7 @@ public class HttpHeaderParser implements LineListener {
     /** Handle a newly read line. */
     @Override
     public void lineRead(final String line) {
+        checkLength(line);
         if (line.length() == 0) {
             headerRead = header != null;
             return;
@@ -149,6 +158,19 @@ public class HttpHeaderParser implements LineListener {
         headerRead = false;
     }
 
+    private void checkLength(final String line) {
+        if (limits == null) {
+            return;
+        }
+        if (header == null) {
+            if (line.length() > limits.getMaxRequestLine()) {
+                throw new HeaderLimitExceededException("Request line too long", true);
+            }
+        } else if (line.length() > limits.getMaxHeaderLine()) {
+            throw new HeaderLimitExceededException("Header line too long", false);
+        }
+    }
+
     private void readHeader(final String msg) {
         if (msg == null) {
             final String err = "Couldnt read headers, connection must be closed";
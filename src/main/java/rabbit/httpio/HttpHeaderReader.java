@@ -26,6 +26,9 @@ public class HttpHeaderReader extends BaseSocketHandler
     private boolean ischunked = false;
     private long dataSize = -1;   // -1 for unknown.
     private int startParseAt = 0;
+    private int headerBytes = 0;
+
+    private final HttpHeaderLimits limits;
 
     private final TrafficLogger tl;
 
@@ -45,9 +48,34 @@ public class HttpHeaderReader extends BaseSocketHandler
                             final NioHandler nioHandler, final TrafficLogger tl,
                             final boolean request, final boolean strictHttp,
                             final HttpHeaderListener reader) {
+        this(channel, bh, nioHandler, tl, request, strictHttp,
+             HttpHeaderLimits.DEFAULT, reader);
+    }
+
+    /**
+     * @param channel the SocketChannel to read from
+     * @param bh the BufferHandle to use to get ByteBuffers
+     * @param nioHandler the NioHandler to use to wait for more data
+     * @param tl the TrafficLogger to update with network read Statistics
+     * @param request true if a request is read, false if a response is read.
+     *                Servers may respond without header (HTTP/0.9) so try to
+     *                handle that.
+     * @param strictHttp if true http headers will be strictly parsed, if false
+     *                   http newlines may be single \n
+     * @param limits the size limits for the header, the buffer will be
+     *               grown as needed until these limits are reached
+     * @param reader the listener for http headers
+     */
+    public HttpHeaderReader(final SocketChannel channel, final BufferHandle bh,
+                            final NioHandler nioHandler, final TrafficLogger tl,
+                            final boolean request, final boolean strictHttp,
+                            final HttpHeaderLimits limits,
+                            final HttpHeaderListener reader) {
         super(channel, bh, nioHandler);
         this.tl = tl;
+        this.limits = limits;
         headerParser = new HttpHeaderParser(request, strictHttp);
+        headerParser.setLimits(limits);
         this.reader = reader;
     }
 
@@ -116,28 +144,40 @@ public class HttpHeaderReader extends BaseSocketHandler
         }
     }
 
-    private void parseBuffer(ByteBuffer buffer) throws IOException {
+    private void parseBuffer(final ByteBuffer buffer) throws IOException {
         buffer.mark();
-        final boolean done = headerParser.handleBuffer(buffer);
+        final boolean done;
+        try {
+            done = headerParser.handleBuffer(buffer);
+        } catch (HeaderLimitExceededException e) {
+            releaseBuffer();
+            throw tooLarge(e.isRequestLine(), e.getMessage());
+        }
         log.trace("HttpHeaderReader.parseBuffer: done {}", done);
         if (!done) {
             buffer.reset();
+            headerBytes += buffer.position() - startParseAt;
+            checkPartialLine(buffer);
             if (buffer.position() > 0) {
                 // ok, some data handled, make space for more.
                 buffer.compact();
-                startParseAt = 0;
+            } else if (buffer.limit() < buffer.capacity()) {
+                // keep the partial line and read more after it.
+                buffer.position(buffer.limit());
+                buffer.limit(buffer.capacity());
             } else {
-                // ok, we did not make any progress, did we only read
+                // ok, we did not make any progress, we only read
                 // a partial long line (cookie or whatever).
-                if (buffer.limit() >= buffer.capacity()) {
-                    releaseBuffer();
-                    // ok, we did no progress, abort, client is sending
-                    // too long lines.
-                    throw new RequestLineTooLongException();
-                }
+                growBuffer(buffer);
             }
+            startParseAt = 0;
             waitForRead(this);
         } else {
+            headerBytes += buffer.position() - startParseAt;
+            if (headerBytes > limits.getMaxHeaderSize()) {
+                releaseBuffer();
+                throw tooLarge(false, "Header too large: " + headerBytes);
+            }
             final HttpHeader header = headerParser.getHeader();
             setState(header);
             releaseBuffer();
@@ -146,6 +186,34 @@ public class HttpHeaderReader extends BaseSocketHandler
         }
     }
 
+    private void checkPartialLine(final ByteBuffer buffer) throws IOException {
+        final boolean requestLine = headerParser.getHeader() == null;
+        final int partial = buffer.remaining();
+        final int max = requestLine ? limits.getMaxRequestLine() :
+                        limits.getMaxHeaderLine();
+        if (partial > max || headerBytes + partial > limits.getMaxHeaderSize()) {
+            releaseBuffer();
+            throw tooLarge(requestLine, "Header line too long: " + partial);
+        }
+    }
+
+    private void growBuffer(final ByteBuffer buffer) throws IOException {
+        final int size = buffer.capacity();
+        final ByteBuffer larger = getBufferHandle().growBuffer();
+        if (larger.capacity() <= size) {
+            releaseBuffer();
+            throw tooLarge(headerParser.getHeader() == null,
+                           "Header line does not fit in buffer: " + size);
+        }
+    }
+
+    private IOException tooLarge(final boolean requestLine, final String msg) {
+        if (requestLine) {
+            return new RequestLineTooLongException();
+        }
+        return new HeaderTooLargeException(msg);
+    }
+
     private void setState(final HttpHeader header) {
         dataSize = -1;
         final String cl = header.getHeader("Content-Length");
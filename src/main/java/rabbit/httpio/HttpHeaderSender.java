@@ -1,7 +1,6 @@
 package rabbit.httpio;
 
 import java.io.IOException;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import rabbit.rnio.NioHandler;
@@ -47,21 +46,15 @@ public class HttpHeaderSender implements BlockSentListener {
 
     private ByteBuffer getBuffer(final HttpHeader header) throws IOException {
         final String uri = header.getRequestURI();
-        try {
-            if (header.isRequest() && !header.isSecure() &&
-                !fullURI && uri.charAt(0) != '/') {
-                final URL url = new URL(uri);
-                String file = url.getFile();
-                if (file.equals("")) {
-                    file = "/";
-                }
-                header.setRequestURI(file);
+        if (header.isRequest() && !header.isSecure() &&
+            !fullURI && uri.charAt(0) != '/') {
+            String file = header.getRequestTarget().getFile();
+            if (file.equals("")) {
+                file = "/";
             }
-            final byte[] bytes = header.getBytes();
-            return ByteBuffer.wrap(bytes);
-        } finally {
-            header.setRequestURI(uri);
+            return ByteBuffer.wrap(header.getBytes(file));
         }
+        return ByteBuffer.wrap(header.getBytes());
     }
 
     @Override
@@ -0,0 +1,145 @@
+package rabbit.httpio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/** A scanner that finds the closing boundary line of multipart data.
+ *
+ *  <p>The data is searched as raw bytes with the Boyer-Moore-Horspool
+ *  algorithm, the last bytes of each buffer are kept so that a closing
+ *  boundary that is split over several reads is still found. Nothing
+ *  is allocated once the scanner has been created.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class MultiPartBoundaryScanner {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int SEARCHING = 0;
+    private static final int BOUNDARY_SEEN = 1;
+    private static final int CR_SEEN = 2;
+    private static final int DONE = 3;
+
+    /** The closing boundary, "\n--" + boundary + "--". */
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+
+    /** The tail of the data seen so far. */
+    private final byte[] carry;
+    private int carryLength;
+
+    private int state = SEARCHING;
+
+    /** Create a new scanner for the given boundary.
+     * @param boundary the multipart boundary, without the leading dashes
+     */
+    public MultiPartBoundaryScanner(final String boundary) {
+        pattern = ("\n--" + boundary + "--").getBytes(ASCII);
+        final int m = pattern.length;
+        Arrays.fill(skip, m);
+        for (int i = 0; i < m - 1; i++) {
+            skip[pattern[i] & 0xff] = m - 1 - i;
+        }
+        carry = new byte[m - 1];
+        // the data starts on a new line.
+        carry[0] = '\n';
+        carryLength = 1;
+    }
+
+    /** Check if the closing boundary line has been found.
+     * @return true if the end of the multipart data has been seen
+     */
+    public boolean isFinished() {
+        return state == DONE;
+    }
+
+    /** Scan the data in the buffer for the closing boundary line.
+     *  The position and the limit of the buffer are not changed.
+     * @param buffer the data to search
+     * @return the buffer index just after the closing boundary line,
+     *         or -1 if the data does not end in this buffer
+     */
+    public int scan(final ByteBuffer buffer) {
+        if (state == DONE) {
+            return -1;
+        }
+        final int pos = buffer.position();
+        final int n = carryLength + buffer.remaining();
+        final int m = pattern.length;
+
+        int k = carryLength;
+        if (state != SEARCHING) {
+            k = lineEnd(buffer, pos, k, n);
+            if (state == DONE) {
+                return pos + k - carryLength;
+            }
+        }
+
+        // matches ending in the carried data have already been tried.
+        int i = Math.max(m - 1, k);
+        while (state == SEARCHING && i < n) {
+            int j = m - 1;
+            while (j >= 0 && at(buffer, pos, i - (m - 1 - j)) == pattern[j]) {
+                j--;
+            }
+            if (j < 0) {
+                state = BOUNDARY_SEEN;
+                final int end = lineEnd(buffer, pos, i + 1, n);
+                if (state == DONE) {
+                    return pos + end - carryLength;
+                }
+                if (state == SEARCHING) {
+                    i = end;
+                }
+            } else {
+                i += skip[at(buffer, pos, i) & 0xff];
+            }
+        }
+        saveTail(buffer, pos, n);
+        return -1;
+    }
+
+    /** Read the line end after the boundary.
+     * @return the virtual index after the consumed bytes
+     */
+    private int lineEnd(final ByteBuffer buffer, final int pos,
+                        int k, final int n) {
+        while (k < n) {
+            final byte b = at(buffer, pos, k);
+            if (b == '\n') {
+                state = DONE;
+                return k + 1;
+            }
+            if (b != '\r' || state == CR_SEEN) {
+                // the boundary was only a prefix of something else.
+                state = SEARCHING;
+                return k;
+            }
+            state = CR_SEEN;
+            k++;
+        }
+        return k;
+    }
+
+    private byte at(final ByteBuffer buffer, final int pos, final int k) {
+        if (k < carryLength) {
+            return carry[k];
+        }
+        return buffer.get(pos + k - carryLength);
+    }
+
+    private void saveTail(final ByteBuffer buffer, final int pos, final int n) {
+        final int keep = Math.min(carry.length, n);
+        final int from = n - keep;
+        // shift any carried bytes we keep, then copy from the buffer.
+        final int fromCarry = Math.max(0, carryLength - from);
+        if (fromCarry > 0) {
+            System.arraycopy(carry, from, carry, 0, fromCarry);
+        }
+        for (int k = fromCarry; k < keep; k++) {
+            carry[k] = buffer.get(pos + from + k - carryLength);
+        }
+        carryLength = keep;
+    }
+}
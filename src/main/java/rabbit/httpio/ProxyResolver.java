@@ -1,7 +1,7 @@
 package rabbit.httpio;
 
 import java.net.InetAddress;
-import java.net.URL;
+import rabbit.http.RequestTarget;
 import rabbit.io.InetAddressListener;
 import rabbit.io.Resolver;
 
@@ -29,8 +29,8 @@ public class ProxyResolver implements Resolver {
     }
 
     @Override
-    public void getInetAddress(final URL url, final InetAddressListener listener) {
-        listener.lookupDone(proxy);
+    public void getInetAddress(final RequestTarget target, final InetAddressListener listener) {
+        listener.lookupDone(new InetAddress[] { proxy });
     }
 
     @Override
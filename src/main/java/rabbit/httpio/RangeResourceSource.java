@@ -0,0 +1,194 @@
+package rabbit.httpio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import rabbit.io.Range;
+import rabbit.io.SimpleBufferHandle;
+
+/** A resource that is a number of byte ranges of another resource.
+ *
+ *  <p>A single range is sent as it is, several ranges are sent as a
+ *  multipart/byteranges body. The ranges are transferred as slices of
+ *  the underlying resource, so a resource in a file is still sent
+ *  with FileChannel.transferTo.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class RangeResourceSource implements ResourceSource {
+    /** The size of the blocks used when the data is not transferred. */
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private final ResourceSource source;
+    private final String boundary;
+    private final List<Part> parts = new ArrayList<>();
+    private final long length;
+    private long readPos = 0;
+
+    /** Create a new RangeResourceSource.
+     * @param source the whole resource, it has to support transfers
+     * @param ranges the ranges to send, at least one
+     * @param resourceLength the length of the whole resource
+     * @param contentType the content type of the resource, may be null
+     */
+    public RangeResourceSource(final ResourceSource source, final List<Range> ranges,
+                               final long resourceLength, final String contentType) {
+        this.source = source;
+        if (ranges.size() == 1) {
+            boundary = null;
+            final Range r = ranges.get(0);
+            parts.add(new Part(null, r.getStart(), r.size()));
+        } else {
+            boundary = "RABBIT" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+            for (Range r : ranges) {
+                final StringBuilder sb = new StringBuilder();
+                sb.append("\r\n--").append(boundary).append("\r\n");
+                if (contentType != null) {
+                    sb.append("Content-Type: ").append(contentType).append("\r\n");
+                }
+                sb.append("Content-Range: ").append(r.getContentRange(resourceLength));
+                sb.append("\r\n\r\n");
+                parts.add(new Part(getBytes(sb.toString()), 0, 0));
+                parts.add(new Part(null, r.getStart(), r.size()));
+            }
+            parts.add(new Part(getBytes("\r\n--" + boundary + "--\r\n"), 0, 0));
+        }
+        long l = 0;
+        for (Part p : parts) {
+            l += p.size();
+        }
+        length = l;
+    }
+
+    private static ByteBuffer getBytes(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Get the content type to use for the response.
+     * @return the multipart/byteranges type or null if there is only one range
+     */
+    public String getMultipartContentType() {
+        return boundary != null ? "multipart/byteranges; boundary=" + boundary : null;
+    }
+
+    /** The ranges are slices of the resource, will always return true.
+     * @return true
+     */
+    @Override
+    public boolean supportsTransfer() {
+        return true;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long transferTo(final long position, final long count,
+                           final WritableByteChannel target)
+            throws IOException {
+        long partStart = 0;
+        for (Part p : parts) {
+            final long size = p.size();
+            if (position < partStart + size) {
+                final long offset = position - partStart;
+                final long max = Math.min(count, size - offset);
+                if (p.bytes != null) {
+                    final ByteBuffer buf = p.bytes.duplicate();
+                    buf.position((int) offset);
+                    buf.limit((int) (offset + max));
+                    return target.write(buf);
+                }
+                return source.transferTo(p.start + offset, max, target);
+            }
+            partStart += size;
+        }
+        return 0;
+    }
+
+    /** Used when the data can not be transferred, the ranges are copied
+     *  to a buffer, one block at a time.
+     */
+    @Override
+    public void addBlockListener(final BlockListener listener) {
+        if (readPos >= length) {
+            listener.finishedRead();
+            return;
+        }
+        try {
+            final ByteBuffer buf =
+                    ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, length - readPos));
+            final BufferChannel bc = new BufferChannel(buf);
+            while (buf.hasRemaining()) {
+                final long written = transferTo(readPos, buf.remaining(), bc);
+                if (written <= 0) {
+                    throw new IOException("Failed to read range at: " + readPos);
+                }
+                readPos += written;
+            }
+            buf.flip();
+            listener.bufferRead(new SimpleBufferHandle(buf));
+        } catch (IOException e) {
+            listener.failed(e);
+        }
+    }
+
+    @Override
+    public void release() {
+        source.release();
+    }
+
+    /** A part of the body, either fixed bytes or a range of the resource.
+     */
+    private static class Part {
+        private final ByteBuffer bytes;
+        private final long start;
+        private final long size;
+
+        public Part(final ByteBuffer bytes, final long start, final long size) {
+            this.bytes = bytes;
+            this.start = start;
+            this.size = size;
+        }
+
+        public long size() {
+            return bytes != null ? bytes.remaining() : size;
+        }
+    }
+
+    /** A channel that writes into a buffer.
+     */
+    private static class BufferChannel implements WritableByteChannel {
+        private final ByteBuffer buf;
+
+        public BufferChannel(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int n = Math.min(src.remaining(), buf.remaining());
+            final ByteBuffer s = src.duplicate();
+            s.limit(s.position() + n);
+            buf.put(s);
+            src.position(src.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing to close.
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package rabbit.httpio;
 
 import java.net.InetAddress;
-import java.net.URL;
 import java.net.UnknownHostException;
+import rabbit.http.RequestTarget;
 import rabbit.io.InetAddressListener;
 
 /** A dns lookup class that runs in the background.
@@ -10,16 +10,16 @@ import rabbit.io.InetAddressListener;
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 class ResolvRunner implements Runnable {
-    private final URL url;
+    private final RequestTarget target;
     private final InetAddressListener ial;
 
     /** Create a new resolver that does the DNS request on a background thread.
-     * @param url the url to look up
+     * @param target the request target to look up
      * @param ial the listener that will get the callback when the dns lookup
      *        is done
      */
-    public ResolvRunner(final URL url, final InetAddressListener ial) {
-        this.url = url;
+    public ResolvRunner(final RequestTarget target, final InetAddressListener ial) {
+        this.target = target;
         this.ial = ial;
     }
 
@@ -28,8 +28,8 @@ class ResolvRunner implements Runnable {
     @Override
     public void run() {
         try {
-            final InetAddress ia = InetAddress.getByName(url.getHost());
-            ial.lookupDone(ia);
+            final InetAddress[] ias = InetAddress.getAllByName(target.getHost());
+            ial.lookupDone(ias);
         } catch (final UnknownHostException e) {
             ial.unknownHost(e);
         }
@@ -0,0 +1,420 @@
+package rabbit.httpio;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.io.Address;
+import rabbit.io.ConnectionObserver;
+import rabbit.io.ProxyChain;
+import rabbit.io.Resolver;
+import rabbit.rnio.NioHandler;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
+
+/** A proxy chain that picks the route for each request by the host
+ *  of the request.
+ *
+ *  <p>Routes match host names by domain suffix and ip literals by
+ *  network. A route either connects directly or uses a pool of
+ *  upstream proxies. The decision for a host is cached, so the tries
+ *  are only walked the first time a host is seen.
+ *
+ *  <p>Within a pool each request goes to the healthy upstream that
+ *  has the fewest outstanding requests. An upstream that can not be
+ *  connected to is marked as down, so the retry of the request goes
+ *  to another upstream, and it is used again once a health check
+ *  connects to it. If every upstream of a pool is down they are all
+ *  tried anyway.
+ *
+ *  <p>A pool of parent caches can instead be partitioned by uri, each
+ *  uri then goes to the upstream that rendezvous hashing gives it, so
+ *  every parent caches its own part of the uris. When an upstream goes
+ *  down or comes back only the uris that hash to it move.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class RoutingProxyChain implements ProxyChain, ConnectionObserver {
+    private static final int MAX_CACHED_HOSTS = 10000;
+
+    private final NioHandler nio;
+    private final HostSuffixTrie<Route> hostRoutes;
+    private final CidrTrie<Route> networkRoutes;
+    private final Route defaultRoute;
+    private final Resolver directResolver;
+    private final ConcurrentMap<String, Route> decisions = new ConcurrentHashMap<>();
+    private final Map<Address, Upstream> upstreams = new HashMap<>();
+
+    // the time between health checks, in milliseconds, 0 for no checks.
+    private long healthCheckInterval = 10000;
+
+    // the time to wait for a health check connect, in milliseconds.
+    private int healthCheckTimeout = 2000;
+
+    /** Create a new RoutingProxyChain.
+     * @param nio the NioHandler to use for direct lookups and health checks
+     * @param hostRoutes the routes for host names
+     * @param networkRoutes the routes for ip literals
+     * @param defaultRoute the route to use when no other route matches
+     * @param routes all the routes, their upstreams are tracked and health checked
+     */
+    RoutingProxyChain(final NioHandler nio,
+                      final HostSuffixTrie<Route> hostRoutes,
+                      final CidrTrie<Route> networkRoutes,
+                      final Route defaultRoute, final List<Route> routes) {
+        this.nio = nio;
+        this.hostRoutes = hostRoutes;
+        this.networkRoutes = networkRoutes;
+        this.defaultRoute = defaultRoute;
+        directResolver = new SimpleResolver(nio);
+        for (Route r : routes) {
+            for (Upstream u : r.upstreams) {
+                upstreams.put(u.address, u);
+            }
+        }
+    }
+
+    @Override
+    public Resolver getResolver(final String url) {
+        final Route r = getRoute(getHost(url));
+        return r.isDirect() ? directResolver : r.choose(url).resolver;
+    }
+
+    /** Find the route to use for the given host.
+     * @param host the host name or ip literal, in lower case
+     * @return the route to use
+     */
+    Route getRoute(final String host) {
+        Route r = decisions.get(host);
+        if (r == null) {
+            r = findRoute(host);
+            if (decisions.size() >= MAX_CACHED_HOSTS) {
+                decisions.clear();
+            }
+            decisions.put(host, r);
+        }
+        return r;
+    }
+
+    private Route findRoute(final String host) {
+        final byte[] ip = CidrTrie.parse(host);
+        final Route r = ip != null ? networkRoutes.get(ip) : hostRoutes.get(host);
+        return r != null ? r : defaultRoute;
+    }
+
+    /* Get the host of an absolute uri or of a CONNECT host:port. */
+    static String getHost(final String url) {
+        final int sep = url.indexOf("://");
+        final int start = sep < 0 ? 0 : sep + 3;
+        int end = start;
+        while (end < url.length()) {
+            final char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        int hostStart = url.lastIndexOf('@', end - 1);
+        hostStart = hostStart < start ? start : hostStart + 1;
+        int hostEnd;
+        if (hostStart < end && url.charAt(hostStart) == '[') {
+            hostEnd = url.indexOf(']', hostStart);
+            hostEnd = hostEnd < 0 ? end : hostEnd + 1;
+        } else {
+            hostEnd = url.indexOf(':', hostStart);
+            if (hostEnd < 0 || hostEnd > end) {
+                hostEnd = end;
+            }
+        }
+        return url.substring(hostStart, hostEnd).toLowerCase(Locale.US);
+    }
+
+    @Override
+    public void connectionStarted(final Address a) {
+        final Upstream u = upstreams.get(a);
+        if (u != null) {
+            u.outstanding.incrementAndGet();
+            u.requests.incrementAndGet();
+            u.busyTime.addAndGet(-System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void connectionDone(final Address a) {
+        final Upstream u = upstreams.get(a);
+        if (u == null) {
+            return;
+        }
+        if (u.outstanding.decrementAndGet() < 0) {
+            u.outstanding.incrementAndGet();
+        } else {
+            u.busyTime.addAndGet(System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void connectFailed(final Address a) {
+        final Upstream u = upstreams.get(a);
+        if (u != null) {
+            u.setHealthy(false, "connect failed");
+        }
+    }
+
+    /** Set how the upstream proxies are health checked.
+     * @param interval the time between checks, in milliseconds, 0 for no checks
+     * @param timeout the time to wait for a connect, in milliseconds
+     */
+    void setHealthCheck(final long interval, final int timeout) {
+        healthCheckInterval = interval;
+        healthCheckTimeout = timeout;
+    }
+
+    /** Start the periodic health checks of the upstream proxies.
+     * @param scheduler the scheduler to run the checks on
+     */
+    public void startHealthChecks(final ScheduledExecutorService scheduler) {
+        if (healthCheckInterval <= 0 || upstreams.isEmpty()) {
+            return;
+        }
+        final List<Upstream> ls = new ArrayList<>(upstreams.values());
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (Upstream u : ls) {
+                    check(u);
+                }
+            }
+        }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(final Upstream u) {
+        final int timeout = healthCheckTimeout;
+        if (!u.checking.compareAndSet(false, true)) {
+            return;
+        }
+        // the connect blocks, so it is run on a background thread
+        nio.runThreadTask(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(u.address.getInetAddress(),
+                                                    u.address.getPort()), timeout);
+                    u.setHealthy(true, "health check passed");
+                } catch (IOException e) {
+                    u.setHealthy(false, "health check failed: " + e);
+                } finally {
+                    u.checking.set(false);
+                }
+            }
+        }, new DefaultTaskIdentifier(getClass().getSimpleName(), u.toString()));
+    }
+
+    /** Get the upstream proxies of this chain.
+     * @return the upstream proxies
+     */
+    public List<Upstream> getUpstreams() {
+        return Collections.unmodifiableList(new ArrayList<>(upstreams.values()));
+    }
+
+    /** A route, either direct or through a pool of upstream proxies.
+     */
+    public static class Route {
+        private final String name;
+        private final List<Upstream> upstreams;
+        private final boolean hashed;
+        private final AtomicInteger next = new AtomicInteger();
+
+        /** Create a new route.
+         * @param name the name of the route
+         * @param upstreams the upstream proxies, empty for a direct route
+         * @param hashed if true the upstream is picked by hashing the uri,
+         *        otherwise the least loaded upstream is used
+         */
+        public Route(final String name, final List<Upstream> upstreams,
+                     final boolean hashed) {
+            this.name = name;
+            this.upstreams = new ArrayList<>(upstreams);
+            this.hashed = hashed;
+        }
+
+        /** Check if this route connects directly.
+         * @return true if no upstream proxy is used
+         */
+        public boolean isDirect() {
+            return upstreams.isEmpty();
+        }
+
+        private Upstream choose(final String url) {
+            return hashed ? chooseByHash(url) : chooseLeastLoaded();
+        }
+
+        /* Rendezvous hashing, the healthy upstream with the highest
+         * score for the uri wins.
+         */
+        private Upstream chooseByHash(final String url) {
+            final long h = hash(url);
+            Upstream best = null;
+            long bestScore = 0;
+            Upstream bestDown = null;
+            long bestDownScore = 0;
+            for (Upstream u : upstreams) {
+                final long score = mix(h ^ u.seed);
+                if (u.healthy) {
+                    if (best == null || score > bestScore) {
+                        best = u;
+                        bestScore = score;
+                    }
+                } else if (bestDown == null || score > bestDownScore) {
+                    bestDown = u;
+                    bestDownScore = score;
+                }
+            }
+            return best != null ? best : bestDown;
+        }
+
+        /* Pick the healthy upstream with the fewest outstanding
+         * requests, start at a new place each time so that ties are
+         * spread over the pool.
+         */
+        private Upstream chooseLeastLoaded() {
+            final int size = upstreams.size();
+            final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+            Upstream best = null;
+            Upstream bestDown = null;
+            for (int i = 0; i < size; i++) {
+                final Upstream u = upstreams.get((start + i) % size);
+                if (u.healthy) {
+                    if (best == null || u.outstanding.get() < best.outstanding.get()) {
+                        best = u;
+                    }
+                } else if (bestDown == null ||
+                           u.outstanding.get() < bestDown.outstanding.get()) {
+                    bestDown = u;
+                }
+            }
+            return best != null ? best : bestDown;
+        }
+
+        @Override public String toString() {
+            return getClass().getSimpleName() + "{" + name + ", " + upstreams +
+                    (hashed ? ", hashed" : "") + "}";
+        }
+    }
+
+    /* 64 bit fnv-1a of the chars. */
+    private static long hash(final String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /* The murmur3 finalizer, spreads the bits of the combined hashes. */
+    private static long mix(final long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** One upstream proxy.
+     */
+    public static class Upstream {
+        private final Address address;
+        private final ProxyResolver resolver;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicBoolean checking = new AtomicBoolean(false);
+        private volatile boolean healthy = true;
+        private final long seed;
+        private final AtomicLong requests = new AtomicLong();
+        // the time used by finished requests minus the start of running ones
+        private final AtomicLong busyTime = new AtomicLong();
+
+        /** Create a new upstream proxy.
+         * @param proxy the address of the proxy
+         * @param port the port of the proxy
+         * @param auth the http basic proxy authentication token, may be null
+         */
+        public Upstream(final InetAddress proxy, final int port, final String auth) {
+            address = new Address(proxy, port);
+            resolver = new ProxyResolver(proxy, port, auth);
+            seed = mix(hash(address.toString()));
+        }
+
+        private void setHealthy(final boolean healthy, final String reason) {
+            if (this.healthy != healthy) {
+                this.healthy = healthy;
+                if (healthy) {
+                    log.info("Upstream proxy {} is up: {}", address, reason);
+                } else {
+                    log.warn("Upstream proxy {} is down: {}", address, reason);
+                }
+            }
+        }
+
+        /** Get the address of this upstream.
+         * @return the address
+         */
+        public Address getAddress() {
+            return address;
+        }
+
+        /** Check if this upstream is thought to work.
+         * @return true if the upstream is up
+         */
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /** Get the number of requests that are using this upstream.
+         * @return the number of outstanding requests
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /** Get the number of requests that have used this upstream.
+         * @return the number of requests
+         */
+        public long getRequestCount() {
+            return requests.get();
+        }
+
+        /** Get the average time that requests use this upstream, running
+         *  requests are counted up to now.
+         * @return the average time in milliseconds
+         */
+        public long getAverageTime() {
+            final long n = requests.get();
+            if (n == 0) {
+                return 0;
+            }
+            final long now = System.currentTimeMillis();
+            return Math.max(0, busyTime.get() + outstanding.get() * now) / n;
+        }
+
+        @Override public String toString() {
+            return address.toString();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package rabbit.httpio;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import rabbit.rnio.NioHandler;
+import rabbit.io.ProxyChain;
+import rabbit.io.ProxyChainFactory;
+import rabbit.util.SProperties;
+
+/** A factory that creates RoutingProxyChain:s.
+ *
+ *  <p>The routes are listed in "routes", each route has a "match"
+ *  with a comma separated list of domains and networks, for instance
+ *  "example.com,10.0.0.0/8", and a "proxies" list of host:port
+ *  upstreams or "direct". "proxyauth" is the proxy authentication
+ *  token for the upstreams of a route and "balance" is either
+ *  "least_outstanding", to spread the requests on the least loaded
+ *  upstreams, or "hash", to partition the uris over a pool of parent
+ *  caches. Properties of a route are prefixed with its name, like
+ *  "inside.match". The "default" route
+ *  is used for hosts that no route matches, it is direct if it has
+ *  no proxies.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+public class RoutingProxyChainFactory implements ProxyChainFactory {
+    @Override
+    public ProxyChain getProxyChain(final SProperties props,
+                                    final NioHandler nio) {
+        final HostSuffixTrie<RoutingProxyChain.Route> hostRoutes = new HostSuffixTrie<>();
+        final CidrTrie<RoutingProxyChain.Route> networkRoutes = new CidrTrie<>();
+        final List<RoutingProxyChain.Route> routes = new ArrayList<>();
+
+        final RoutingProxyChain.Route defaultRoute = getRoute(props, "default");
+        if (defaultRoute == null) {
+            return null;
+        }
+        routes.add(defaultRoute);
+        for (String name : props.getProperty("routes", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            final RoutingProxyChain.Route r = getRoute(props, name);
+            if (r == null) {
+                return null;
+            }
+            routes.add(r);
+            final String match = props.getProperty(name + ".match", "");
+            for (String m : match.split(",")) {
+                m = m.trim();
+                if (m.isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (m.indexOf('/') >= 0 || CidrTrie.parse(m) != null) {
+                        networkRoutes.put(m, r);
+                    } else {
+                        hostRoutes.put(m, r);
+                    }
+                } catch (IllegalArgumentException e) {
+                    log.error("Bad match for route {}: {}, will not chain",
+                              name, e.getMessage());
+                    return null;
+                }
+            }
+        }
+
+        final RoutingProxyChain pc =
+                new RoutingProxyChain(nio, hostRoutes, networkRoutes, defaultRoute, routes);
+        pc.setHealthCheck(getInt(props, "health_check_interval", 10000),
+                          getInt(props, "health_check_timeout", 2000));
+        return pc;
+    }
+
+    private RoutingProxyChain.Route getRoute(final SProperties props, final String name) {
+        final String proxies = props.getProperty(name + ".proxies", "direct").trim();
+        final String pauth = props.getProperty(name + ".proxyauth");
+        final String balance =
+                props.getProperty(name + ".balance", "least_outstanding").trim();
+        if (!balance.equals("least_outstanding") && !balance.equals("hash")) {
+            log.error("Unknown balance for route {}: '{}', will not chain", name, balance);
+            return null;
+        }
+        final List<RoutingProxyChain.Upstream> ls = new ArrayList<>();
+        if (!proxies.equals("direct") && !proxies.isEmpty()) {
+            for (String p : proxies.split(",")) {
+                p = p.trim();
+                final int colon = p.lastIndexOf(':');
+                if (colon <= 0) {
+                    log.error("Missing port for upstream proxy: '{}', will not chain", p);
+                    return null;
+                }
+                final String pname = p.substring(0, colon);
+                final String pport = p.substring(colon + 1);
+                try {
+                    final InetAddress proxy = InetAddress.getByName(pname);
+                    final int port = Integer.parseInt(pport);
+                    ls.add(new RoutingProxyChain.Upstream(proxy, port, pauth));
+                } catch (NumberFormatException e) {
+                    log.error("Strange proxyport: '{}', will not chain", pport);
+                    return null;
+                } catch (UnknownHostException e) {
+                    log.error("Unknown proxyhost: '{}', will not chain", pname);
+                    return null;
+                }
+            }
+        }
+        return new RoutingProxyChain.Route(name, ls, balance.equals("hash"));
+    }
+
+    private int getInt(final SProperties props, final String key,
+                       final int defaultValue) {
+        final String val = props.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for RoutingProxyChainFactory {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
+}
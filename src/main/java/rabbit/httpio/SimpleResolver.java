@@ -1,12 +1,12 @@
 package rabbit.httpio;
 
-import java.net.URL;
+import rabbit.http.RequestTarget;
 import rabbit.rnio.NioHandler;
-import rabbit.rnio.impl.DefaultTaskIdentifier;
 import rabbit.io.InetAddressListener;
 import rabbit.io.Resolver;
 
-/** A simple resolver that uses the given dns handler.
+/** A simple resolver that does normal dns lookups through the shared
+ *  DnsCache.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
@@ -21,10 +21,8 @@ public class SimpleResolver implements Resolver {
     }
 
     @Override
-    public void getInetAddress(final URL url, final InetAddressListener listener) {
-        final String groupId = getClass().getSimpleName();
-        nio.runThreadTask(new ResolvRunner(url, listener),
-                          new DefaultTaskIdentifier(groupId, url.toString()));
+    public void getInetAddress(final RequestTarget target, final InetAddressListener listener) {
+        DnsCache.getSharedInstance().lookup(target, nio, listener);
     }
 
     @Override
@@ -30,6 +30,7 @@ public class WebConnectionResourceSource implements ResourceSource, ReadHandler,
     private long totalRead = 0;
     private int currentMark = 0;
     private ChunkHandler chunkHandler;
+    private ChunkBoundaryTracker chunkRelay;
     private Long timeout;
 
     /** Create a new ConnectionResourceSource that gets the data from the network.
@@ -64,9 +65,30 @@ public class WebConnectionResourceSource implements ResourceSource, ReadHandler,
     public String getDescription() {
         return "WebConnectionResourceSource: length: " + dataSize +
                ", read: " + totalRead + ", chunked: " + isChunked +
+               ", relay: " + (chunkRelay != null) +
                ", address: " + wc.getAddress();
     }
 
+    /** Check if the upstream data is chunked.
+     * @return true if the upstream resource is chunked
+     */
+    public boolean isChunked() {
+        return isChunked;
+    }
+
+    /** Pass the chunked upstream data on without de-chunking it.
+     *  The blocks given to the block listener will hold the raw chunked
+     *  data, including the terminating chunk, so the listener must not
+     *  chunk the data again. This must be called before any block
+     *  listener is added.
+     */
+    public void relayChunks() {
+        if (!isChunked) {
+            throw new IllegalStateException("Resource is not chunked");
+        }
+        chunkRelay = new ChunkBoundaryTracker();
+    }
+
     /** FileChannels can not be used, will always return false.
      * @return false
      */
@@ -94,11 +116,12 @@ public class WebConnectionResourceSource implements ResourceSource, ReadHandler,
                                        this.listener + " with: " + listener);
         }
         this.listener = listener;
-        if (isChunked) {
+        if (isChunked && chunkRelay == null) {
             chunkHandler.setBlockListener(listener);
         }
 
-        if (dataSize > -1 && totalRead >= dataSize) {
+        if (dataSize > -1 && totalRead >= dataSize ||
+            chunkRelay != null && chunkRelay.isFinished()) {
             cleanupAndFinish();
         } else if (bufHandle.isEmpty()) {
             register();
@@ -125,7 +148,9 @@ public class WebConnectionResourceSource implements ResourceSource, ReadHandler,
     private void handleBlock() {
         final BlockListener bl = listener;
         listener = null;
-        if (isChunked) {
+        if (chunkRelay != null) {
+            relayBlock(bl);
+        } else if (isChunked) {
             chunkHandler.handleData(bufHandle);
             totalRead = chunkHandler.getTotalRead();
         } else {
@@ -136,6 +161,25 @@ public class WebConnectionResourceSource implements ResourceSource, ReadHandler,
         bufHandle.possiblyFlush();
     }
 
+    private void relayBlock(final BlockListener bl) {
+        final ByteBuffer buffer = bufHandle.getBuffer();
+        try {
+            final int size = chunkRelay.scan(buffer);
+            if (size < buffer.remaining()) {
+                // data after the last chunk, upstream is broken.
+                log.warn("Data after last chunk from: {}", wc.getAddress());
+                wc.setKeepalive(false);
+                buffer.limit(buffer.position() + size);
+            }
+            totalRead += size;
+        } catch (IOException e) {
+            wc.setKeepalive(false);
+            bl.failed(e);
+            return;
+        }
+        bl.bufferRead(bufHandle);
+    }
+
     @Override
     public void readMore() {
         if (!bufHandle.isEmpty()) {
@@ -215,6 +259,9 @@ public class WebConnectionResourceSource implements ResourceSource, ReadHandler,
             (dataSize < 0 || totalRead != dataSize)) {
             wc.setKeepalive(false);
         }
+        if (chunkRelay != null && !chunkRelay.isFinished()) {
+            wc.setKeepalive(false);
+        }
         if (!wc.getKeepalive() && !bufHandle.isEmpty()) {
             // empty the buffer so we can reuse it.
             final ByteBuffer buffer = bufHandle.getBuffer();
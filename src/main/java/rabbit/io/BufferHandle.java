@@ -18,6 +18,14 @@ public interface BufferHandle {
      */
     ByteBuffer getBuffer();
 
+    /** Replace the current buffer with a larger one. The data between
+     *  position and limit of the current buffer is copied to the start
+     *  of the new buffer, the new buffer is positioned after that data
+     *  and its limit is set to its capacity.
+     * @return the new, larger, ByteBuffer
+     */
+    ByteBuffer growBuffer();
+
     /** release a buffer if possible. */
     void possiblyFlush();
 
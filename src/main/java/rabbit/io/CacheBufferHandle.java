@@ -34,6 +34,12 @@ public class CacheBufferHandle implements BufferHandle {
         return buffer;
     }
 
+    @Override
+    public synchronized ByteBuffer growBuffer() {
+        buffer = bh.growBuffer(buffer);
+        return buffer;
+    }
+
     @Override
     public synchronized void possiblyFlush() {
         if (!mayBeFlushed) {
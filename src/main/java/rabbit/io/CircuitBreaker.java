@@ -0,0 +1,107 @@
+package rabbit.io;
+
+/** The circuit breaker of one address.
+ *
+ *  <p>The circuit is closed while requests work. After too many
+ *  failures in a row it opens and requests fail fast without trying
+ *  the address. When the open time is over one request is let
+ *  through as a probe, the circuit is half open, and if it works
+ *  the circuit closes again. A failed probe opens the circuit for
+ *  twice as long as the last time, up to a maximum.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class CircuitBreaker {
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Address address;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openTime = 0;
+    // when open: the end of the open time, when half open: when the next probe may go
+    private long openUntil = 0;
+
+    /** Create a new closed circuit breaker.
+     * @param address the address this breaker guards
+     */
+    public CircuitBreaker(final Address address) {
+        this.address = address;
+    }
+
+    /** Get the address of this breaker.
+     * @return the address that is guarded
+     */
+    public Address getAddress() {
+        return address;
+    }
+
+    /** Check if a request may be sent.
+     * @param now the current time, in milliseconds
+     * @return true if the request may go, false if it should fail fast
+     */
+    public synchronized boolean allowRequest(final long now) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (now < openUntil) {
+            return false;
+        }
+        // let one probe through each open time, in case a probe gets lost
+        state = State.HALF_OPEN;
+        openUntil = now + openTime;
+        return true;
+    }
+
+    /** Note that a request failed.
+     * @param now the current time, in milliseconds
+     * @param maxFailures the number of failures in a row that opens the circuit
+     * @param minOpenTime the first time to stay open, in milliseconds
+     * @param maxOpenTime the longest time to stay open, in milliseconds
+     * @return true if the circuit was opened
+     */
+    public synchronized boolean failure(final long now, final int maxFailures,
+                                        final long minOpenTime, final long maxOpenTime) {
+        switch (state) {
+        case CLOSED:
+            if (++failures < maxFailures) {
+                return false;
+            }
+            openTime = minOpenTime;
+            break;
+        case HALF_OPEN:
+            openTime = Math.min(Math.max(openTime * 2, minOpenTime), maxOpenTime);
+            break;
+        default:
+            // requests from before the circuit opened
+            return false;
+        }
+        state = State.OPEN;
+        openUntil = now + openTime;
+        return true;
+    }
+
+    /** Note that a request worked, this closes the circuit.
+     * @return true if the circuit was open or half open
+     */
+    public synchronized boolean success() {
+        final boolean wasOpen = state != State.CLOSED;
+        state = State.CLOSED;
+        failures = 0;
+        return wasOpen;
+    }
+
+    /** Check if this circuit is closed.
+     * @return true if requests are let through
+     */
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /** Get the time until the next request may be tried.
+     * @param now the current time, in milliseconds
+     * @return the time left, in milliseconds
+     */
+    public synchronized long getTimeLeft(final long now) {
+        return state == State.CLOSED ? 0 : Math.max(0, openUntil - now);
+    }
+}
@@ -0,0 +1,31 @@
+package rabbit.io;
+
+import java.io.IOException;
+
+/** Signals that a request was failed without trying to connect since
+ *  the address has failed too many times in a row.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1;
+
+    private final long retryAfter;
+
+    /** Create a new CircuitOpenException
+     * @param a the address that is failing
+     * @param retryAfter the time until the address will be tried again, in milliseconds
+     */
+    public CircuitOpenException(final Address a, final long retryAfter) {
+        super("Too many failed requests to: " + a + ", will retry in " +
+              retryAfter + " ms");
+        this.retryAfter = retryAfter;
+    }
+
+    /** Get the time until the address will be tried again.
+     * @return the time in milliseconds
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
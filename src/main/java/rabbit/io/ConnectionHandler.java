@@ -3,18 +3,30 @@ package rabbit.io;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import rabbit.rnio.NioHandler;
 import rabbit.rnio.ReadHandler;
+import rabbit.rnio.TaskIdentifier;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
 import rabbit.http.HttpHeader;
+import rabbit.http.RequestTarget;
 import rabbit.util.Counter;
 import rabbit.util.SProperties;
 
@@ -32,7 +44,7 @@ public class ConnectionHandler {
     private final ProxyChain proxyChain;
 
     // The available connections.
-    private final Map<Address, List<WebConnection>> activeConnections;
+    private final ConcurrentMap<Address, OriginPool> activeConnections;
 
     // The channels waiting for closing
     private final Map<WebConnection, CloseListener> wc2closer;
@@ -40,12 +52,85 @@ public class ConnectionHandler {
     // the keepalivetime.
     private long keepaliveTime = 1000;
 
+    // the maximum number of idle connections to one address.
+    private int maxIdlePerHost = 32;
+
+    // the maximum number of idle connections in total.
+    private int maxIdleTotal = 512;
+
+    // The number of idle connections in all the pools.
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    // pool statistics
+    private final AtomicLong newConnections = new AtomicLong();
+    private final AtomicLong reusedConnections = new AtomicLong();
+    private final AtomicLong evictedConnections = new AtomicLong();
+    private final AtomicLong staleConnections = new AtomicLong();
+
+    // connections idle for less than this, in milliseconds, are not checked before reuse.
+    private long staleCheckTime = 100;
+
+    // the maximum number of active connections to one address, 0 for no limit.
+    private int maxActivePerHost = 0;
+
+    // the maximum number of requests waiting for a connection to one address.
+    private int maxQueuePerHost = 64;
+
+    // the maximum time to wait for a connection, in milliseconds.
+    private long queueTimeout = 10000;
+
+    // The active connection limits, only used if maxActivePerHost > 0
+    private final ConcurrentMap<Address, OriginLimiter> limiters;
+
+    // the number of addresses to keep pre-connected connections to, 0 to turn off.
+    private int warmTopOrigins = 0;
+
+    // the number of idle connections to keep for each warm address.
+    private int warmMinIdle = 2;
+
+    // how often the request rates are checked and the warm pools filled.
+    private long warmInterval = 5000;
+
+    // how long idle connections to warm addresses are kept.
+    private long warmIdleTime = 30000;
+
+    // The pool warmer, only used if warmTopOrigins > 0
+    private volatile PoolWarmer warmer;
+    private ScheduledFuture<?> warmTask;
+
+    // the time to wait before trying the next address of a host, in milliseconds.
+    private long connectAttemptDelay = 250;
+
+    // the time to skip an address that could not be connected to, in milliseconds.
+    private long failedAddressTime = 30000;
+
+    // The addresses that recently failed and until when they are skipped.
+    private final ConcurrentMap<Address, Long> failedAddresses;
+
+    // the connect or response failures in a row that open the circuit to an address, 0 to turn off.
+    private int breakerFailures = 5;
+
+    // the first time an open circuit fails requests fast, in milliseconds.
+    private long breakerOpenTime = 5000;
+
+    // the longest time an open circuit fails requests fast, in milliseconds.
+    private long breakerMaxOpenTime = 60000;
+
+    // The circuit breakers of the addresses that have failed.
+    private final ConcurrentMap<Address, CircuitBreaker> breakers;
+
     // the nio handler
     private final NioHandler nioHandler;
 
+    // the scheduler for queue timeouts, may be null
+    private final ScheduledExecutorService scheduler;
+
     // the socket binder
     private SocketBinder socketBinder = new DefaultBinder();
 
+    // the observer of connection use, may be null
+    private volatile ConnectionObserver observer;
+
     /** Create a new ConnectionHandler.
      * @param counter the Counter to update with statistics
      * @param proxyChain the ProxyChain to use when doing dns lookups
@@ -53,14 +138,40 @@ public class ConnectionHandler {
      */
     public ConnectionHandler(final Counter counter, final ProxyChain proxyChain,
                              final NioHandler nioHandler) {
+        this(counter, proxyChain, nioHandler, null);
+    }
+
+    /** Create a new ConnectionHandler.
+     * @param counter the Counter to update with statistics
+     * @param proxyChain the ProxyChain to use when doing dns lookups
+     * @param nioHandler the NioHandler to use for network and background tasks
+     * @param scheduler the scheduler to use for timing out requests that
+     *        wait for a connection, if null waiting requests do not time out
+     */
+    public ConnectionHandler(final Counter counter, final ProxyChain proxyChain,
+                             final NioHandler nioHandler,
+                             final ScheduledExecutorService scheduler) {
         this.counter = counter;
         this.proxyChain = proxyChain;
         this.nioHandler = nioHandler;
+        this.scheduler = scheduler;
+        limiters = new ConcurrentHashMap<>();
+        failedAddresses = new ConcurrentHashMap<>();
+        breakers = new ConcurrentHashMap<>();
 
-        activeConnections = new HashMap<>();
+        activeConnections = new ConcurrentHashMap<>();
         wc2closer = new ConcurrentHashMap<>();
     }
 
+    /** Set the observer that is told when connections are used.
+     *  Connections that are handed out are tracked as active while
+     *  an observer is set.
+     * @param observer the observer to use, null to remove the observer
+     */
+    public void setConnectionObserver(final ConnectionObserver observer) {
+        this.observer = observer;
+    }
+
     /** Set the keep alive time for this handler.
      * @param milis the keep alive time in miliseconds.
      */
@@ -75,17 +186,98 @@ public class ConnectionHandler {
         return keepaliveTime;
     }
 
+    /** Get the number of idle connections in the pool.
+     * @return the current number of pooled connections
+     */
+    public int getPooledConnectionCount() {
+        return idleCount.get();
+    }
+
+    /** Get the number of new connections that have been made.
+     * @return the number of connections that were not taken from the pool
+     */
+    public long getNewConnectionCount() {
+        return newConnections.get();
+    }
+
+    /** Get the number of times a pooled connection has been reused.
+     * @return the number of connections taken from the pool
+     */
+    public long getReusedConnectionCount() {
+        return reusedConnections.get();
+    }
+
+    /** Get the part of the connection requests that were served
+     *  from the pool.
+     * @return the reuse rate, between 0 and 1
+     */
+    public double getReuseRate() {
+        final long reused = reusedConnections.get();
+        final long total = reused + newConnections.get();
+        return total == 0 ? 0 : (double) reused / total;
+    }
+
+    /** Get the number of idle connections that were closed because
+     *  the pool was full or because they were idle too long.
+     * @return the number of evicted connections
+     */
+    public long getEvictedConnectionCount() {
+        return evictedConnections.get();
+    }
+
+    /** Get the addresses that pre-connected idle connections are
+     *  currently kept for.
+     * @return the warm addresses, empty if pool warming is not used
+     */
+    public Set<Address> getWarmAddresses() {
+        final PoolWarmer pw = warmer;
+        if (pw == null) {
+            return Collections.emptySet();
+        }
+        return pw.getHotAddresses();
+    }
+
+    /** Get the number of pooled connections that were found to be
+     *  closed or broken when they were about to be reused.
+     * @return the number of stale connections
+     */
+    public long getStaleConnectionCount() {
+        return staleConnections.get();
+    }
+
+    /** Get the part of the pooled connections that were stale when
+     *  they were taken from the pool.
+     * @return the stale rate, between 0 and 1
+     */
+    public double getStaleRate() {
+        final long stale = staleConnections.get();
+        final long total = stale + reusedConnections.get();
+        return total == 0 ? 0 : (double) stale / total;
+    }
+
+    /** Get the number of addresses that requests currently fail fast for.
+     * @return the number of open or half open circuits
+     */
+    public int getOpenCircuitCount() {
+        int ret = 0;
+        for (CircuitBreaker cb : breakers.values()) {
+            if (!cb.isClosed()) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
     /** Get a copy of the current connections.
      * @return the current connections
      */
     public Map<Address, List<WebConnection>> getActiveConnections() {
         final Map<Address, List<WebConnection>> ret =
                 new HashMap<>();
-        synchronized (activeConnections) {
-            for (Map.Entry<Address, List<WebConnection>> me :
-                    activeConnections.entrySet()) {
-                ret.put(me.getKey(),
-                        Collections.unmodifiableList(me.getValue()));
+        for (OriginPool pool : activeConnections.values()) {
+            final List<WebConnection> ls = pool.getConnections();
+            if (!ls.isEmpty()) {
+                ret.put(pool.getAddress(), Collections.unmodifiableList(ls));
             }
         }
         return ret;
@@ -98,23 +290,21 @@ public class ConnectionHandler {
     public void getConnection(final HttpHeader header,
                               final WebConnectionListener wcl) {
         // TODO: should we use the Host: header if its available? probably...
-        final String requri = header.getRequestURI();
-        URL url;
+        final RequestTarget target;
         try {
-            url = new URL(requri);
+            target = header.getRequestTarget();
         } catch (MalformedURLException e) {
             wcl.failed(e);
             return;
         }
-        final Resolver resolver = proxyChain.getResolver(requri);
-        final int port = url.getPort() > 0 ? url.getPort() : 80;
+        final Resolver resolver = proxyChain.getResolver(target.getURI());
+        final int port = target.getPort() > 0 ? target.getPort() : 80;
         final int rport = resolver.getConnectPort(port);
 
-        resolver.getInetAddress(url, new InetAddressListener() {
+        resolver.getInetAddress(target, new InetAddressListener() {
             @Override
-            public void lookupDone(final InetAddress ia) {
-                final Address a = new Address(ia, rport);
-                getConnection(header, wcl, a);
+            public void lookupDone(final InetAddress[] ias) {
+                getConnection(header, wcl, orderAddresses(ias, rport));
             }
 
             @Override
@@ -124,71 +314,477 @@ public class ConnectionHandler {
         });
     }
 
+    /* Order the addresses the way rfc 8305 wants them, alternate between
+     * the address families, starting with the family of the first address.
+     * Addresses that recently failed are tried last.
+     */
+    private Address[] orderAddresses(final InetAddress[] ias, final int port) {
+        final List<Address> first = new ArrayList<>();
+        final List<Address> second = new ArrayList<>();
+        final boolean firstIsV4 = ias[0] instanceof Inet4Address;
+        for (InetAddress ia : ias) {
+            final Address a = new Address(ia, port);
+            if ((ia instanceof Inet4Address) == firstIsV4) {
+                first.add(a);
+            } else {
+                second.add(a);
+            }
+        }
+        final List<Address> good = new ArrayList<>(ias.length);
+        final List<Address> bad = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                addOrdered(first.get(i), now, good, bad);
+            }
+            if (i < second.size()) {
+                addOrdered(second.get(i), now, good, bad);
+            }
+        }
+        good.addAll(bad);
+        return good.toArray(new Address[good.size()]);
+    }
+
+    private void addOrdered(final Address a, final long now,
+                            final List<Address> good, final List<Address> bad) {
+        final Long until = failedAddresses.get(a);
+        if (until == null) {
+            good.add(a);
+        } else if (until < now) {
+            failedAddresses.remove(a, until);
+            good.add(a);
+        } else {
+            bad.add(a);
+        }
+    }
+
+    /** Note that a connection attempt to the given address failed.
+     * @param a the address that could not be connected to
+     */
+    void addressFailed(final Address a) {
+        counter.inc("WebConnection connect attempts failed");
+        final long now = System.currentTimeMillis();
+        failedAddresses.put(a, now + failedAddressTime);
+        if (failedAddresses.size() > 1024) {
+            final Iterator<Map.Entry<Address, Long>> i =
+                    failedAddresses.entrySet().iterator();
+            while (i.hasNext()) {
+                if (i.next().getValue() < now) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /** Note that a request to the given address could not connect or
+     *  did not get a response.
+     * @param a the address, as given by WebConnection.getAddress()
+     */
+    public void originFailed(final Address a) {
+        if (breakerFailures <= 0) {
+            return;
+        }
+        CircuitBreaker cb = breakers.get(a);
+        if (cb == null) {
+            final CircuitBreaker ncb = new CircuitBreaker(a);
+            cb = breakers.putIfAbsent(a, ncb);
+            if (cb == null) {
+                cb = ncb;
+                if (breakers.size() > 1024) {
+                    dropClosedBreakers();
+                }
+            }
+        }
+        if (cb.failure(System.currentTimeMillis(), breakerFailures,
+                       breakerOpenTime, breakerMaxOpenTime)) {
+            counter.inc("WebConnection circuits opened");
+            log.warn("Circuit opened for {}, requests will fail fast for {} ms",
+                     a, cb.getTimeLeft(System.currentTimeMillis()));
+        }
+    }
+
+    /** Note that a request to the given address got a response.
+     * @param a the address, as given by WebConnection.getAddress()
+     */
+    public void originSucceeded(final Address a) {
+        final CircuitBreaker cb = breakers.remove(a);
+        if (cb != null && cb.success()) {
+            counter.inc("WebConnection circuits closed");
+            log.info("Circuit closed for {}", a);
+        }
+    }
+
+    private void dropClosedBreakers() {
+        final Iterator<CircuitBreaker> i = breakers.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().isClosed()) {
+                i.remove();
+            }
+        }
+    }
+
+    /** Note that a connection attempt to the given address worked.
+     * @param a the address that was connected to
+     */
+    void addressConnected(final Address a) {
+        failedAddresses.remove(a);
+    }
+
     private void getConnection(final HttpHeader header,
                                final WebConnectionListener wcl,
-                               final Address a) {
-        WebConnection wc;
+                               final Address[] as) {
+        final Address a = as[0];
         counter.inc("WebConnections used");
-        String method = header.getMethod();
-
-        if (method != null) {
-            // since we should not retry POST (and other) we
-            // have to get a fresh connection for them..
-            method = method.trim();
-            if (!(method.equals("GET") || method.equals("HEAD"))) {
-                wc = new WebConnection(a, socketBinder, counter);
+        if (header.getMethod() == null) {
+            final String err = "No method specified: " + header;
+            wcl.failed(new IllegalArgumentException(err));
+            return;
+        }
+        final CircuitBreaker cb = breakers.get(a);
+        if (cb != null) {
+            final long now = System.currentTimeMillis();
+            if (!cb.allowRequest(now)) {
+                counter.inc("WebConnection requests failed fast");
+                wcl.failed(new CircuitOpenException(a, cb.getTimeLeft(now)));
+                return;
+            }
+        }
+        final PoolWarmer pw = warmer;
+        if (pw != null) {
+            pw.requested(a);
+        }
+        if (maxActivePerHost > 0 && !acquirePermit(header, wcl, as)) {
+            // queued or failed
+            return;
+        }
+        openConnection(header, wcl, as);
+    }
+
+    private void openConnection(final HttpHeader header,
+                                final WebConnectionListener wcl,
+                                final Address[] as) {
+        final Address a = as[0];
+        final ConnectionObserver co = observer;
+        final WebConnectionListener listener =
+                co == null && breakerFailures <= 0 ? wcl : new TrackedListener(a, wcl);
+        WebConnection wc;
+        // since we should not retry POST (and other) we
+        // have to get a fresh connection for them..
+        final String method = header.getMethod().trim();
+        if (!(method.equals("GET") || method.equals("HEAD"))) {
+            wc = null;
+        } else {
+            wc = getPooledConnection(a);
+        }
+        if (wc == null) {
+            newConnections.incrementAndGet();
+            wc = new WebConnection(a, socketBinder, counter);
+        } else {
+            reusedConnections.incrementAndGet();
+            counter.inc("WebConnections reused");
+        }
+        if (maxActivePerHost > 0 || co != null) {
+            wc.checkOut(this);
+            if (co != null) {
+                co.connectionStarted(a);
+            }
+        }
+        if (as.length > 1 && !wc.isConnected()) {
+            new HappyEyeballsConnector(this, wc, as, nioHandler, scheduler,
+                                       connectAttemptDelay, listener).connect();
+            return;
+        }
+        try {
+            wc.connect(nioHandler, listener);
+        } catch (IOException e) {
+            if (wc.checkIn()) {
+                permitReleased(a);
+            }
+            listener.failed(e);
+        }
+    }
+
+    private OriginLimiter getLimiter(final Address a) {
+        OriginLimiter limiter = limiters.get(a);
+        if (limiter == null) {
+            final OriginLimiter nl = new OriginLimiter(a);
+            limiter = limiters.putIfAbsent(a, nl);
+            if (limiter == null) {
+                limiter = nl;
+            }
+        }
+        return limiter;
+    }
+
+    /* Returns true if a permit was given, otherwise the request has
+     * been queued or failed.
+     */
+    private boolean acquirePermit(final HttpHeader header,
+                                  final WebConnectionListener wcl,
+                                  final Address[] as) {
+        final Address a = as[0];
+        while (true) {
+            final OriginLimiter limiter = getLimiter(a);
+            final OriginLimiter.Waiter w;
+            synchronized (limiter) {
+                if (limiter.isDead()) {
+                    continue;
+                }
+                if (limiter.tryAcquire(maxActivePerHost)) {
+                    return true;
+                }
+                final OriginLimiter.Waiter nw = new OriginLimiter.Waiter(header, wcl, as);
+                w = limiter.addWaiter(nw, maxQueuePerHost) ? nw : null;
+            }
+            if (w == null) {
+                counter.inc("WebConnection queue full");
+                wcl.failed(new ConnectionQueueFullException(a));
             } else {
-                wc = getPooledConnection(a, activeConnections);
-                if (wc == null) {
-                    wc = new WebConnection(a, socketBinder, counter);
+                counter.inc("WebConnection requests queued");
+                scheduleTimeout(limiter, w);
+            }
+            return false;
+        }
+    }
+
+    private void scheduleTimeout(final OriginLimiter limiter,
+                                 final OriginLimiter.Waiter w) {
+        if (scheduler == null) {
+            return;
+        }
+        final Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                final boolean removed;
+                synchronized (limiter) {
+                    removed = limiter.removeWaiter(w);
+                    dropIfUnused(limiter);
+                }
+                if (removed) {
+                    counter.inc("WebConnection queue timeouts");
+                    final long waited = System.currentTimeMillis() - w.getQueuedAt();
+                    final Exception e =
+                            new ConnectionQueueTimeoutException(limiter.getAddress(), waited);
+                    failWaiter(w, e);
                 }
             }
-            try {
-                wc.connect(nioHandler, wcl);
-            } catch (IOException e) {
-                wcl.failed(e);
+        };
+        w.setTimeoutTask(scheduler.schedule(r, queueTimeout, TimeUnit.MILLISECONDS));
+    }
+
+    private void failWaiter(final OriginLimiter.Waiter w, final Exception e) {
+        final TaskIdentifier ti =
+                new DefaultTaskIdentifier(getClass().getSimpleName() + ".failWaiter",
+                                          w.getHeader().getRequestURI());
+        nioHandler.runThreadTask(new Runnable() {
+            @Override
+            public void run() {
+                w.getListener().failed(e);
             }
-        } else {
-            final String err = "No method specified: " + header;
-            wcl.failed(new IllegalArgumentException(err));
+        }, ti);
+    }
+
+    /* Must be called with the limiter lock held.
+     */
+    private void dropIfUnused(final OriginLimiter limiter) {
+        if (limiter.isUnused()) {
+            limiters.remove(limiter.getAddress(), limiter);
+            limiter.setDead();
+        }
+    }
+
+    /* Give back the permit, returns the waiter that got it, if any.
+     */
+    private OriginLimiter.Waiter releasePermit(final Address a) {
+        final OriginLimiter limiter = limiters.get(a);
+        if (limiter == null) {
+            return null;
+        }
+        final OriginLimiter.Waiter w;
+        synchronized (limiter) {
+            w = limiter.release();
+            if (w == null) {
+                dropIfUnused(limiter);
+            }
+        }
+        if (w != null) {
+            w.cancelTimeout();
+        }
+        return w;
+    }
+
+    /** Called when an active connection is closed.
+     * @param a the address the connection was to
+     */
+    void permitReleased(final Address a) {
+        connectionDone(a);
+        final OriginLimiter.Waiter w = releasePermit(a);
+        if (w != null) {
+            openForWaiter(w);
         }
     }
 
-    private WebConnection
-    getPooledConnection(final Address a, final Map<Address, List<WebConnection>> conns) {
-        synchronized (conns) {
-            final List<WebConnection> pool = conns.get(a);
-            if (pool != null && pool.size() > 0) {
-                final WebConnection wc = pool.remove(pool.size() - 1);
-                if (pool.isEmpty()) {
-                    conns.remove(a);
+    private void openForWaiter(final OriginLimiter.Waiter w) {
+        final TaskIdentifier ti =
+                new DefaultTaskIdentifier(getClass().getSimpleName() + ".openConnection",
+                                          w.getHeader().getRequestURI());
+        nioHandler.runThreadTask(new Runnable() {
+            @Override
+            public void run() {
+                openConnection(w.getHeader(), w.getListener(), w.getAddresses());
+            }
+        }, ti);
+    }
+
+    /* Give a released connection directly to a waiting request.
+     * Returns true if the connection was handed over.
+     */
+    private boolean handOver(final WebConnection wc) {
+        if (!wc.checkIn()) {
+            return false;
+        }
+        connectionDone(wc.getAddress());
+        final OriginLimiter.Waiter w = releasePermit(wc.getAddress());
+        if (w == null) {
+            return false;
+        }
+        final String method = w.getHeader().getMethod().trim();
+        if (!(method.equals("GET") || method.equals("HEAD"))) {
+            // the waiter needs a fresh connection, it has the permit.
+            openForWaiter(w);
+            return false;
+        }
+        wc.checkOut(this);
+        final ConnectionObserver co = observer;
+        if (co != null) {
+            co.connectionStarted(wc.getAddress());
+        }
+        reusedConnections.incrementAndGet();
+        counter.inc("WebConnections handed to waiting request");
+        final TaskIdentifier ti =
+                new DefaultTaskIdentifier(getClass().getSimpleName() + ".handOver",
+                                          w.getHeader().getRequestURI());
+        nioHandler.runThreadTask(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    wc.connect(nioHandler, w.getListener());
+                } catch (IOException e) {
+                    w.getListener().failed(e);
                 }
-                return unregister(wc);
             }
+        }, ti);
+        return true;
+    }
+
+    private void connectionDone(final Address a) {
+        final ConnectionObserver co = observer;
+        if (co != null) {
+            co.connectionDone(a);
         }
-        return null;
     }
 
-    private WebConnection unregister(final WebConnection wc) {
-        CloseListener closer;
-        closer = wc2closer.remove(wc);
-        if (closer != null) {
-            nioHandler.cancel(wc.getChannel(), closer);
+    private WebConnection getPooledConnection(final Address a) {
+        final OriginPool pool = activeConnections.get(a);
+        if (pool == null) {
+            return null;
+        }
+        WebConnection wc;
+        do {
+            final OriginPool.Entry e = pool.take();
+            if (e == null) {
+                return null;
+            }
+            final CloseListener closer = (CloseListener) e;
+            wc = closer.getConnection();
+            wc2closer.remove(wc, closer);
+            cancel(closer);
+        } while (isStale(wc));
+        final PoolWarmer pw = warmer;
+        if (pw != null) {
+            pw.connectionTaken(a);
         }
         return wc;
     }
 
-    private void removeFromPool(final WebConnection wc,
-                                final Map<Address, List<WebConnection>> conns) {
-        synchronized (conns) {
-            final List<WebConnection> pool = conns.get(wc.getAddress());
-            if (pool != null) {
-                pool.remove(wc);
-                if (pool.isEmpty()) {
-                    conns.remove(wc.getAddress());
-                }
+    /* Check if an idle connection has been closed by the other side.
+     * The channel is non blocking so the read returns at once, it gives
+     * -1 if the server has closed and 0 if there is nothing to read.
+     * Data from an idle http connection can not be used, so that also
+     * makes the connection stale. Stale connections are closed.
+     */
+    private boolean isStale(final WebConnection wc) {
+        final long idle = System.currentTimeMillis() - wc.getReleasedAt();
+        if (idle < staleCheckTime) {
+            return false;
+        }
+        String reason = null;
+        try {
+            final int read = wc.getChannel().read(ByteBuffer.allocate(1));
+            if (read < 0) {
+                reason = "closed";
+            } else if (read > 0) {
+                reason = "unexpected data";
+            }
+        } catch (IOException e) {
+            reason = "read failed";
+        }
+        if (reason == null) {
+            return false;
+        }
+        staleConnections.incrementAndGet();
+        counter.inc("WebConnection pool stale: " + reason);
+        closeWebConnection(wc);
+        return true;
+    }
+
+    /** Get the number of idle connections to the given address.
+     * @param a the address
+     * @return the number of pooled connections to the address
+     */
+    int getIdleCount(final Address a) {
+        final OriginPool pool = activeConnections.get(a);
+        return pool == null ? 0 : pool.size();
+    }
+
+    /** Open a new connection to the given address in the background.
+     *  The connection is not taken from the pool and does not count
+     *  against the active connection limit.
+     * @param a the address to connect to
+     * @param wcl the listener that is told when the connection is ready
+     */
+    void preConnect(final Address a, final WebConnectionListener wcl) {
+        final WebConnection wc = new WebConnection(a, socketBinder, counter);
+        try {
+            wc.connect(nioHandler, wcl);
+        } catch (IOException e) {
+            wcl.failed(e);
+        }
+    }
+
+    private OriginPool getPool(final Address a) {
+        OriginPool pool = activeConnections.get(a);
+        if (pool == null) {
+            final OriginPool np = new OriginPool(a, idleCount);
+            pool = activeConnections.putIfAbsent(a, np);
+            if (pool == null) {
+                pool = np;
             }
         }
+        return pool;
+    }
+
+    /* Returns true if the closer still owned the idle connection.
+     */
+    private boolean removeFromPool(final CloseListener closer) {
+        final OriginPool pool = closer.pool;
+        if (!pool.drop(closer)) {
+            return false;
+        }
+        if (pool.isEmpty()) {
+            activeConnections.remove(pool.getAddress(), pool);
+        }
+        return true;
     }
 
     /** Return a WebConnection to the pool so that it may be reused.
@@ -197,6 +793,9 @@ public class ConnectionHandler {
     public void releaseConnection(final WebConnection wc) {
         counter.inc("WebConnections released");
         if (!wc.getChannel().isOpen()) {
+            if (wc.checkIn()) {
+                permitReleased(wc.getAddress());
+            }
             return;
         }
 
@@ -209,23 +808,88 @@ public class ConnectionHandler {
         synchronized (wc) {
             wc.setReleased();
         }
-        synchronized (activeConnections) {
-            List<WebConnection> pool = activeConnections.get(a);
-            if (pool == null) {
-                pool = new ArrayList<>();
-                activeConnections.put(a, pool);
-            } else {
-                if (pool.contains(wc)) {
-                    final String err =
-                            "web connection already added to pool: " + wc;
-                    throw new IllegalStateException(err);
+        if (handOver(wc)) {
+            return;
+        }
+        final CloseListener cl = new CloseListener(wc);
+        if (wc2closer.putIfAbsent(wc, cl) != null) {
+            final String err = "web connection already added to pool: " + wc;
+            throw new IllegalStateException(err);
+        }
+        // a taker cancels under the same lock, so the cancel is always
+        // queued after the waitForRead.
+        synchronized (cl) {
+            while (true) {
+                final OriginPool pool = getPool(a);
+                cl.pool = pool;
+                pool.add(cl);
+                if (activeConnections.get(a) == pool) {
+                    break;
+                }
+                // the pool was dropped as empty while we added to it
+                if (!pool.remove(cl)) {
+                    break;
                 }
             }
-            pool.add(wc);
-            final CloseListener cl = new CloseListener(wc);
-            wc2closer.put(wc, cl);
             cl.register();
         }
+        enforceLimits(cl.pool);
+    }
+
+    /* Stop listening for reads on a connection taken from the pool,
+     * waits until the listener has been registered.
+     */
+    private void cancel(final CloseListener closer) {
+        synchronized (closer) {
+            nioHandler.cancel(closer.getConnection().getChannel(), closer);
+        }
+    }
+
+    private void enforceLimits(final OriginPool pool) {
+        while (pool.size() > maxIdlePerHost) {
+            if (!evict(pool, "WebConnection pool evictions: host limit")) {
+                break;
+            }
+        }
+        while (idleCount.get() > maxIdleTotal) {
+            final OriginPool lru = getLeastRecentlyUsedPool();
+            if (lru == null ||
+                !evict(lru, "WebConnection pool evictions: total limit")) {
+                break;
+            }
+        }
+    }
+
+    private OriginPool getLeastRecentlyUsedPool() {
+        OriginPool ret = null;
+        for (OriginPool pool : activeConnections.values()) {
+            if (!pool.isEmpty() &&
+                (ret == null || pool.getLastUsed() < ret.getLastUsed())) {
+                ret = pool;
+            }
+        }
+        return ret;
+    }
+
+    /* Close the oldest idle connection in the pool.
+     * Returns false if the pool had no idle connection.
+     */
+    private boolean evict(final OriginPool pool, final String reason) {
+        final OriginPool.Entry e = pool.takeOldest();
+        if (pool.isEmpty()) {
+            activeConnections.remove(pool.getAddress(), pool);
+        }
+        if (e == null) {
+            return false;
+        }
+        final CloseListener closer = (CloseListener) e;
+        final WebConnection wc = closer.getConnection();
+        wc2closer.remove(wc, closer);
+        cancel(closer);
+        evictedConnections.incrementAndGet();
+        counter.inc(reason);
+        closeWebConnection(wc);
+        return true;
     }
 
     private void closeWebConnection(final WebConnection wc) {
@@ -242,16 +906,62 @@ public class ConnectionHandler {
         }
     }
 
-    private class CloseListener implements ReadHandler {
+    /** Tells the circuit breaker and the observer about connections
+     *  that could not be set up.
+     */
+    private class TrackedListener implements WebConnectionListener {
+        private final Address address;
+        private final WebConnectionListener wcl;
+
+        public TrackedListener(final Address address,
+                               final WebConnectionListener wcl) {
+            this.address = address;
+            this.wcl = wcl;
+        }
+
+        @Override
+        public void connectionEstablished(final WebConnection wc) {
+            wcl.connectionEstablished(wc);
+        }
+
+        @Override
+        public void timeout() {
+            connectFailed();
+            wcl.timeout();
+        }
+
+        @Override
+        public void failed(final Exception e) {
+            connectFailed();
+            wcl.failed(e);
+        }
+
+        private void connectFailed() {
+            originFailed(address);
+            final ConnectionObserver co = observer;
+            if (co != null) {
+                co.connectFailed(address);
+            }
+        }
+    }
+
+    private class CloseListener extends OriginPool.Entry implements ReadHandler {
         private final WebConnection wc;
+        private volatile OriginPool pool;
         private Long timeout;
 
         public CloseListener(final WebConnection wc) {
+            super(wc);
             this.wc = wc;
         }
 
         public void register() {
-            timeout = nioHandler.getDefaultTimeout();
+            long idleTime = keepaliveTime;
+            final PoolWarmer pw = warmer;
+            if (pw != null && pw.isHot(wc.getAddress())) {
+                idleTime = Math.max(idleTime, pw.getIdleTime());
+            }
+            timeout = System.currentTimeMillis() + idleTime;
             nioHandler.waitForRead(wc.getChannel(), this);
         }
 
@@ -267,7 +977,10 @@ public class ConnectionHandler {
 
         @Override
         public void timeout() {
-            closeChannel();
+            if (closeChannel()) {
+                evictedConnections.incrementAndGet();
+                counter.inc("WebConnection pool evictions: idle timeout");
+            }
         }
 
         @Override
@@ -275,14 +988,18 @@ public class ConnectionHandler {
             return timeout;
         }
 
-        private void closeChannel() {
+        private boolean closeChannel() {
+            if (!removeFromPool(this)) {
+                // someone is already using the connection.
+                return false;
+            }
             try {
-                wc2closer.remove(wc);
-                removeFromPool(wc, activeConnections);
+                wc2closer.remove(wc, this);
                 wc.close();
             } catch (IOException e) {
                 log.warn("CloseListener: Failed to close web connection: {}", e);
             }
+            return true;
         }
 
         @Override
@@ -315,6 +1032,25 @@ public class ConnectionHandler {
         } catch (NumberFormatException e) {
             log.warn("Bad number for ConnectionHandler keepalivetime: '{}'", kat);
         }
+        maxIdlePerHost = getInt(config, "max_idle_per_host", maxIdlePerHost);
+        maxIdleTotal = getInt(config, "max_idle_total", maxIdleTotal);
+        maxActivePerHost = getInt(config, "max_active_per_host", maxActivePerHost);
+        maxQueuePerHost = getInt(config, "max_queue_per_host", maxQueuePerHost);
+        queueTimeout = getInt(config, "queue_timeout", (int) queueTimeout);
+        staleCheckTime = getInt(config, "stale_check_time", (int) staleCheckTime);
+        connectAttemptDelay = getInt(config, "connect_attempt_delay",
+                                     (int) connectAttemptDelay);
+        failedAddressTime = getInt(config, "failed_address_time",
+                                   (int) failedAddressTime);
+        breakerFailures = getInt(config, "breaker_failures", breakerFailures);
+        breakerOpenTime = getInt(config, "breaker_open_time", (int) breakerOpenTime);
+        breakerMaxOpenTime = getInt(config, "breaker_max_open_time",
+                                    (int) breakerMaxOpenTime);
+        warmTopOrigins = getInt(config, "warm_top_origins", warmTopOrigins);
+        warmMinIdle = getInt(config, "warm_min_idle", warmMinIdle);
+        warmInterval = getInt(config, "warm_interval", (int) warmInterval);
+        warmIdleTime = getInt(config, "warm_idle_time", (int) warmIdleTime);
+        setupWarmer();
         final String bindIP = config.getProperty("bind_ip");
         if (bindIP != null) {
             try {
@@ -328,4 +1064,38 @@ public class ConnectionHandler {
             }
         }
     }
+
+    private synchronized void setupWarmer() {
+        if (warmTask != null) {
+            warmTask.cancel(false);
+            warmTask = null;
+        }
+        warmer = null;
+        if (warmTopOrigins <= 0 || warmMinIdle <= 0 || warmInterval <= 0) {
+            return;
+        }
+        if (scheduler == null) {
+            log.warn("ConnectionHandler has no scheduler, will not keep warm pools");
+            return;
+        }
+        final PoolWarmer pw =
+                new PoolWarmer(this, counter, warmTopOrigins, warmMinIdle, warmIdleTime);
+        warmer = pw;
+        warmTask = scheduler.scheduleAtFixedRate(pw, warmInterval, warmInterval,
+                                                 TimeUnit.MILLISECONDS);
+    }
+
+    private int getInt(final SProperties config, final String key,
+                       final int defaultValue) {
+        final String val = config.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for ConnectionHandler {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
 }
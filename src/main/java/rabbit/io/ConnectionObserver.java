@@ -0,0 +1,24 @@
+package rabbit.io;
+
+/** A listener for the use of web connections, it is told when
+ *  requests start and stop using connections to an address.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public interface ConnectionObserver {
+    /** A request has started to use a connection to the given address.
+     * @param a the address the connection is to
+     */
+    void connectionStarted(Address a);
+
+    /** A request is done with its connection to the given address,
+     *  every call to connectionStarted is followed by one call to this.
+     * @param a the address the connection is to
+     */
+    void connectionDone(Address a);
+
+    /** A connection to the given address could not be set up.
+     * @param a the address that could not be connected to
+     */
+    void connectFailed(Address a);
+}
@@ -0,0 +1,19 @@
+package rabbit.io;
+
+import java.io.IOException;
+
+/** Signals that a request could not wait for a web connection since
+ *  too many requests already wait for connections to the same address.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class ConnectionQueueFullException extends IOException {
+    private static final long serialVersionUID = 1;
+
+    /** Create a new ConnectionQueueFullException
+     * @param a the address that has too many waiting requests
+     */
+    public ConnectionQueueFullException(final Address a) {
+        super("Too many requests waiting for: " + a);
+    }
+}
@@ -0,0 +1,19 @@
+package rabbit.io;
+
+import java.io.IOException;
+
+/** Signals that a request waited too long for a web connection.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+public class ConnectionQueueTimeoutException extends IOException {
+    private static final long serialVersionUID = 1;
+
+    /** Create a new ConnectionQueueTimeoutException
+     * @param a the address that the request waited for
+     * @param waited the time waited, in milliseconds
+     */
+    public ConnectionQueueTimeoutException(final Address a, final long waited) {
+        super("Timeout after waiting " + waited + " ms for a connection to: " + a);
+    }
+}
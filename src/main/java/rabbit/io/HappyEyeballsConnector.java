@@ -0,0 +1,268 @@
+package rabbit.io;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import rabbit.rnio.ConnectHandler;
+import rabbit.rnio.NioHandler;
+
+/** A connector that tries several addresses of one host, as described
+ *  in rfc 8305 (happy eyeballs).
+ *
+ *  <p>The first address is tried at once, each following address is
+ *  tried when the previous attempt failed or after a short delay,
+ *  whichever comes first. The first socket that connects is used for
+ *  the WebConnection and all the other attempts are closed.
+ *
+ *  <p>If there is no scheduler the next address is only tried when
+ *  the previous attempt has failed.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+class HappyEyeballsConnector {
+    private final ConnectionHandler ch;
+    private final WebConnection wc;
+    private final Address[] addresses;
+    private final NioHandler nioHandler;
+    private final ScheduledExecutorService scheduler;
+    private final long attemptDelay;
+    private final WebConnectionListener wcl;
+
+    // all state below is guarded by this
+    private int next = 0;
+    private final List<Attempt> running = new ArrayList<>();
+    private Future<?> delayTask;
+    private boolean done = false;
+    private boolean onlyTimeouts = true;
+    private Exception lastException;
+
+    /** Create a new connector.
+     * @param ch the ConnectionHandler to tell about failed addresses
+     * @param wc the connection to set up
+     * @param addresses the addresses to try, in order
+     * @param nioHandler the NioHandler to use for network tasks
+     * @param scheduler the scheduler to use for delayed attempts, may be null
+     * @param attemptDelay the time in millis to wait before the next attempt
+     * @param wcl the listener to notify when done
+     */
+    public HappyEyeballsConnector(final ConnectionHandler ch,
+                                  final WebConnection wc,
+                                  final Address[] addresses,
+                                  final NioHandler nioHandler,
+                                  final ScheduledExecutorService scheduler,
+                                  final long attemptDelay,
+                                  final WebConnectionListener wcl) {
+        this.ch = ch;
+        this.wc = wc;
+        this.addresses = addresses;
+        this.nioHandler = nioHandler;
+        this.scheduler = scheduler;
+        this.attemptDelay = attemptDelay;
+        this.wcl = wcl;
+    }
+
+    /** Start connecting.
+     */
+    public void connect() {
+        startNext();
+    }
+
+    private void startNext() {
+        Attempt a;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            if (delayTask != null) {
+                delayTask.cancel(false);
+                delayTask = null;
+            }
+            if (next >= addresses.length) {
+                return;
+            }
+            a = new Attempt(addresses[next++]);
+            running.add(a);
+        }
+        try {
+            a.start();
+        } catch (IOException e) {
+            failed(a, e, false);
+            return;
+        }
+        final boolean finished;
+        synchronized (this) {
+            finished = a.finished;
+            if (!done && !finished && next < addresses.length &&
+                scheduler != null) {
+                delayTask = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startNext();
+                    }
+                }, attemptDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (finished) {
+            // another attempt may have won while this one was started
+            a.abort();
+        }
+    }
+
+    private void connected(final Attempt a) {
+        final List<Attempt> losers;
+        synchronized (this) {
+            if (a.finished) {
+                // already aborted
+                return;
+            }
+            a.finished = true;
+            running.remove(a);
+            if (done) {
+                losers = null;
+            } else {
+                done = true;
+                if (delayTask != null) {
+                    delayTask.cancel(false);
+                    delayTask = null;
+                }
+                losers = new ArrayList<>(running);
+                running.clear();
+                for (Attempt loser : losers) {
+                    loser.finished = true;
+                }
+            }
+        }
+        if (losers == null) {
+            // someone else won
+            a.abort();
+            return;
+        }
+        for (Attempt loser : losers) {
+            loser.abort();
+        }
+        ch.addressConnected(a.address);
+        wc.setChannel(a.channel, a.address);
+        wcl.connectionEstablished(wc);
+    }
+
+    private void failed(final Attempt a, final Exception e, final boolean timeout) {
+        boolean tryNext = false;
+        boolean allFailed = false;
+        synchronized (this) {
+            if (a.finished) {
+                // aborted, not a problem with the address
+                return;
+            }
+            a.finished = true;
+            running.remove(a);
+            lastException = e;
+            onlyTimeouts &= timeout;
+            if (done) {
+                // can not happen, the winner finishes all attempts
+                tryNext = false;
+            } else if (next < addresses.length) {
+                tryNext = true;
+            } else if (running.isEmpty()) {
+                done = true;
+                allFailed = true;
+            }
+        }
+        ch.addressFailed(a.address);
+        a.abort();
+        if (tryNext) {
+            startNext();
+        } else if (allFailed) {
+            try {
+                // give back any connection permit
+                wc.close();
+            } catch (IOException ioe) {
+                log.warn("Failed to close WebConnection", ioe);
+            }
+            if (onlyTimeouts) {
+                wcl.timeout();
+            } else {
+                wcl.failed(lastException);
+            }
+        }
+    }
+
+    private class Attempt implements ConnectHandler {
+        private final Address address;
+        private volatile SocketChannel channel;
+        private Long timeout;
+        private boolean finished = false;
+
+        public Attempt(final Address address) {
+            this.address = address;
+        }
+
+        public void start() throws IOException {
+            channel = wc.openChannel(address);
+            if (channel.isConnected()) {
+                connected(this);
+            } else {
+                timeout = nioHandler.getDefaultTimeout();
+                nioHandler.waitForConnect(channel, this);
+            }
+        }
+
+        public void abort() {
+            if (channel == null || channel.isConnected() && channel == wc.getChannel()) {
+                return;
+            }
+            nioHandler.cancel(channel, this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close connect attempt to {}", address, e);
+            }
+        }
+
+        @Override
+        public void connect() {
+            try {
+                channel.finishConnect();
+                connected(this);
+            } catch (IOException e) {
+                failed(this, e, false);
+            }
+        }
+
+        @Override
+        public void closed() {
+            failed(this, new IOException("channel closed before connect"), false);
+        }
+
+        @Override
+        public void timeout() {
+            failed(this, new IOException("connect timed out"), true);
+        }
+
+        @Override
+        public boolean useSeparateThread() {
+            return false;
+        }
+
+        @Override
+        public String getDescription() {
+            return "HappyEyeballsConnector$Attempt: address: " + address;
+        }
+
+        @Override
+        public Long getTimeout() {
+            return timeout;
+        }
+
+        @Override public String toString() {
+            return getClass().getSimpleName() + "{" + address + "}@" +
+                   Integer.toString(hashCode(), 16);
+        }
+    }
+}
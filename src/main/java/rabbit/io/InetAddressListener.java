@@ -8,9 +8,10 @@ import java.net.InetAddress;
  */
 public interface InetAddressListener {
     /** An dns lookup has completed.
-     * @param ia the InetAddress requested.
+     * @param ias all the InetAddresses found for the host, in the order
+     *        they should be tried, never empty.
      */
-    void lookupDone(InetAddress ia);
+    void lookupDone(InetAddress[] ias);
 
     /** Lookup failed.
      * @param e the cause of the problem
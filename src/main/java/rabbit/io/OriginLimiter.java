@@ -0,0 +1,156 @@
+package rabbit.io;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import rabbit.http.HttpHeader;
+
+/** The number of active connections to one address and the requests
+ *  that wait for a connection to it.
+ *
+ *  <p>All access to the state of a limiter must be done while holding
+ *  its lock.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class OriginLimiter {
+    private final Address address;
+    private int active = 0;
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+    private boolean dead = false;
+
+    /** Create a new limiter for the given address.
+     * @param address the address to limit connections to
+     */
+    public OriginLimiter(final Address address) {
+        this.address = address;
+    }
+
+    /** Get the address of this limiter.
+     * @return the address connections are limited to
+     */
+    public Address getAddress() {
+        return address;
+    }
+
+    /** Try to get a permit for a new active connection.
+     * @param max the maximum number of active connections
+     * @return true if a permit was given
+     */
+    public boolean tryAcquire(final int max) {
+        if (active < max) {
+            active++;
+            return true;
+        }
+        return false;
+    }
+
+    /** Give back a permit, or hand it over to the first waiter.
+     * @return the waiter that now holds the permit or null if the
+     *         permit was returned
+     */
+    public Waiter release() {
+        final Waiter w = waiters.poll();
+        if (w == null && active > 0) {
+            active--;
+        }
+        return w;
+    }
+
+    /** Add a waiter last in the queue.
+     * @param w the waiting request
+     * @param maxWaiters the maximum queue length
+     * @return true if the waiter was queued, false if the queue is full
+     */
+    public boolean addWaiter(final Waiter w, final int maxWaiters) {
+        if (waiters.size() >= maxWaiters) {
+            return false;
+        }
+        waiters.add(w);
+        return true;
+    }
+
+    /** Remove a waiter from the queue.
+     * @param w the waiter to remove
+     * @return true if the waiter was still waiting
+     */
+    public boolean removeWaiter(final Waiter w) {
+        return waiters.remove(w);
+    }
+
+    /** Get the number of active connections.
+     * @return the number of given out permits
+     */
+    public int getActive() {
+        return active;
+    }
+
+    /** Get the number of waiting requests.
+     * @return the current queue length
+     */
+    public int getWaiting() {
+        return waiters.size();
+    }
+
+    /** Check if this limiter is unused and may be dropped.
+     * @return true if there are no active connections and no waiters
+     */
+    public boolean isUnused() {
+        return active == 0 && waiters.isEmpty();
+    }
+
+    /** Check if this limiter has been dropped.
+     * @return true if this limiter may no longer be used
+     */
+    public boolean isDead() {
+        return dead;
+    }
+
+    /** Mark this limiter as dropped. */
+    public void setDead() {
+        dead = true;
+    }
+
+    /** A request that waits for a connection.
+     */
+    static class Waiter {
+        private final HttpHeader header;
+        private final WebConnectionListener wcl;
+        private final Address[] addresses;
+        private final long queuedAt = System.currentTimeMillis();
+        private Future<?> timeoutTask;
+
+        public Waiter(final HttpHeader header, final WebConnectionListener wcl,
+                      final Address[] addresses) {
+            this.header = header;
+            this.wcl = wcl;
+            this.addresses = addresses;
+        }
+
+        public HttpHeader getHeader() {
+            return header;
+        }
+
+        public WebConnectionListener getListener() {
+            return wcl;
+        }
+
+        public Address[] getAddresses() {
+            return addresses;
+        }
+
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+
+        public synchronized void setTimeoutTask(final Future<?> timeoutTask) {
+            this.timeoutTask = timeoutTask;
+        }
+
+        public synchronized void cancelTimeout() {
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package rabbit.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The idle connections to one address.
+ *
+ *  <p>Connections are taken most recently used first. An entry is
+ *  removed from the pool by claiming it, claimed entries are left in
+ *  the deque and dropped when they are seen, so that both taking a
+ *  connection and dropping a closed one are O(1) and lock free.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class OriginPool {
+    private final Address address;
+    private final ConcurrentLinkedDeque<Entry> idle =
+            new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger totalSize;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /** Create a new pool for the given address.
+     * @param address the address the connections go to
+     * @param totalSize the counter of idle connections in all pools
+     */
+    public OriginPool(final Address address, final AtomicInteger totalSize) {
+        this.address = address;
+        this.totalSize = totalSize;
+    }
+
+    /** Get the address of this pool.
+     * @return the address all connections in this pool go to
+     */
+    public Address getAddress() {
+        return address;
+    }
+
+    /** Add an idle connection first in this pool.
+     * @param entry the entry for the idle connection
+     */
+    public void add(final Entry entry) {
+        size.incrementAndGet();
+        totalSize.incrementAndGet();
+        lastUsed = System.currentTimeMillis();
+        idle.offerFirst(entry);
+        purgeClaimed();
+    }
+
+    /** Try to take back an entry that was just added.
+     *  This is used if the pool was dropped while adding to it.
+     * @param entry the entry to remove
+     * @return true if the entry was removed from this pool
+     */
+    public boolean remove(final Entry entry) {
+        if (idle.removeFirstOccurrence(entry)) {
+            if (!entry.isClaimed()) {
+                decrement();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Take the most recently used idle connection.
+     * @return the claimed entry or null if no idle connection exists
+     */
+    public Entry take() {
+        Entry e;
+        while ((e = idle.pollFirst()) != null) {
+            if (e.claim()) {
+                decrement();
+                lastUsed = System.currentTimeMillis();
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** Take the least recently used idle connection.
+     * @return the claimed entry or null if no idle connection exists
+     */
+    public Entry takeOldest() {
+        Entry e;
+        while ((e = idle.pollLast()) != null) {
+            if (e.claim()) {
+                decrement();
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** Claim an entry that is going away, for instance when the
+     *  connection was closed while idle.
+     * @param entry the entry to claim
+     * @return true if the entry was claimed by this call
+     */
+    public boolean drop(final Entry entry) {
+        if (entry.claim()) {
+            decrement();
+            purgeClaimed();
+            return true;
+        }
+        return false;
+    }
+
+    private void decrement() {
+        size.decrementAndGet();
+        totalSize.decrementAndGet();
+    }
+
+    /** Get the time this pool was last added to or taken from.
+     * @return the time of last use in millis
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /** Get the number of idle connections in this pool.
+     * @return the number of unclaimed entries
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /** Check if this pool has no idle connections.
+     * @return true if there are no unclaimed entries
+     */
+    public boolean isEmpty() {
+        return size.get() <= 0;
+    }
+
+    /** Get the idle connections in this pool, most recently used first.
+     * @return a new list holding the idle connections
+     */
+    public List<WebConnection> getConnections() {
+        final List<WebConnection> ret = new ArrayList<>();
+        for (Entry e : idle) {
+            if (!e.isClaimed()) {
+                ret.add(e.getConnection());
+            }
+        }
+        return ret;
+    }
+
+    /* The oldest entries are the ones that time out, so drop
+     * claimed entries from the tail.
+     */
+    private void purgeClaimed() {
+        Entry e;
+        while ((e = idle.peekLast()) != null && e.isClaimed()) {
+            final Entry polled = idle.pollLast();
+            if (polled != null && !polled.isClaimed()) {
+                // someone else purged, put back the live one
+                idle.offerLast(polled);
+                return;
+            }
+        }
+    }
+
+    /** An idle connection in the pool.
+     */
+    static class Entry {
+        private final WebConnection wc;
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        public Entry(final WebConnection wc) {
+            this.wc = wc;
+        }
+
+        public WebConnection getConnection() {
+            return wc;
+        }
+
+        public boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        public boolean isClaimed() {
+            return claimed.get();
+        }
+    }
+}
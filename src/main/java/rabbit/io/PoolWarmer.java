@@ -0,0 +1,211 @@
+package rabbit.io;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rabbit.util.Counter;
+
+/** A helper that keeps a few idle, already connected, web connections
+ *  to the most used addresses.
+ *
+ *  <p>The number of connection requests to each address is counted
+ *  and every time this task is run the counts are folded into a
+ *  moving average. The top addresses are then topped up with new
+ *  connections so that requests to them do not have to wait for
+ *  the tcp connect.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+class PoolWarmer implements Runnable {
+    private final ConnectionHandler ch;
+    private final Counter counter;
+    private final int topOrigins;
+    private final int minIdle;
+    private final long idleTime;
+
+    /** Requests since the last run. */
+    private final ConcurrentMap<Address, AtomicLong> requests =
+            new ConcurrentHashMap<>();
+    /** Connects that have been started but not finished. */
+    private final ConcurrentMap<Address, AtomicInteger> pending =
+            new ConcurrentHashMap<>();
+    /** The moving average of requests per run, only used by run(). */
+    private final Map<Address, Double> rates = new HashMap<>();
+
+    private volatile Set<Address> hot = Collections.emptySet();
+
+    /** Create a new PoolWarmer.
+     * @param ch the ConnectionHandler to warm the pool of
+     * @param counter the Counter to update with statistics
+     * @param topOrigins the number of addresses to keep warm
+     * @param minIdle the number of idle connections to keep for each address
+     * @param idleTime the time connections to warm addresses may be idle
+     */
+    public PoolWarmer(final ConnectionHandler ch, final Counter counter,
+                      final int topOrigins, final int minIdle,
+                      final long idleTime) {
+        this.ch = ch;
+        this.counter = counter;
+        this.topOrigins = topOrigins;
+        this.minIdle = minIdle;
+        this.idleTime = idleTime;
+    }
+
+    /** Note that a connection to the given address was requested.
+     * @param a the address
+     */
+    public void requested(final Address a) {
+        AtomicLong c = requests.get(a);
+        if (c == null) {
+            final AtomicLong nc = new AtomicLong();
+            c = requests.putIfAbsent(a, nc);
+            if (c == null) {
+                c = nc;
+            }
+        }
+        c.incrementAndGet();
+    }
+
+    /** Check if the given address is one of the kept warm ones.
+     * @param a the address
+     * @return true if the address is warm
+     */
+    public boolean isHot(final Address a) {
+        return hot.contains(a);
+    }
+
+    /** Get the time idle connections to warm addresses are kept.
+     * @return the idle time in milliseconds
+     */
+    public long getIdleTime() {
+        return idleTime;
+    }
+
+    /** Get the addresses that are currently kept warm.
+     * @return a copy of the warm addresses
+     */
+    public Set<Address> getHotAddresses() {
+        return new HashSet<>(hot);
+    }
+
+    /** Note that an idle connection to the given address was taken.
+     * @param a the address
+     */
+    public void connectionTaken(final Address a) {
+        if (isHot(a)) {
+            refill(a);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            warm();
+        } catch (RuntimeException e) {
+            // do not let the scheduler drop this task
+            log.warn("Failed to warm connection pools", e);
+        }
+    }
+
+    private void warm() {
+        updateRates();
+        final List<Map.Entry<Address, Double>> ls = new ArrayList<>(rates.entrySet());
+        Collections.sort(ls, new Comparator<Map.Entry<Address, Double>>() {
+            @Override
+            public int compare(final Map.Entry<Address, Double> e1,
+                               final Map.Entry<Address, Double> e2) {
+                return Double.compare(e2.getValue(), e1.getValue());
+            }
+        });
+        final Set<Address> top = new HashSet<>();
+        for (int i = 0; i < ls.size() && top.size() < topOrigins; i++) {
+            top.add(ls.get(i).getKey());
+        }
+        hot = top;
+        for (Address a : top) {
+            refill(a);
+        }
+    }
+
+    private void updateRates() {
+        for (Map.Entry<Address, AtomicLong> me : requests.entrySet()) {
+            final Address a = me.getKey();
+            if (!rates.containsKey(a)) {
+                rates.put(a, 0.0);
+            }
+        }
+        final Iterator<Map.Entry<Address, Double>> i = rates.entrySet().iterator();
+        while (i.hasNext()) {
+            final Map.Entry<Address, Double> me = i.next();
+            final AtomicLong c = requests.get(me.getKey());
+            final long n = c == null ? 0 : c.getAndSet(0);
+            final double rate = (me.getValue() + n) / 2;
+            if (rate < 0.1) {
+                // not used any more
+                i.remove();
+                if (c != null) {
+                    requests.remove(me.getKey(), c);
+                }
+                pending.remove(me.getKey());
+            } else {
+                me.setValue(rate);
+            }
+        }
+    }
+
+    private void refill(final Address a) {
+        AtomicInteger p = pending.get(a);
+        if (p == null) {
+            final AtomicInteger np = new AtomicInteger();
+            p = pending.putIfAbsent(a, np);
+            if (p == null) {
+                p = np;
+            }
+        }
+        final int missing = minIdle - ch.getIdleCount(a) - p.get();
+        for (int i = 0; i < missing; i++) {
+            p.incrementAndGet();
+            counter.inc("WebConnections pre-connected");
+            ch.preConnect(a, new WarmListener(p));
+        }
+    }
+
+    private class WarmListener implements WebConnectionListener {
+        private final AtomicInteger pendingCount;
+
+        public WarmListener(final AtomicInteger pendingCount) {
+            this.pendingCount = pendingCount;
+        }
+
+        @Override
+        public void connectionEstablished(final WebConnection wc) {
+            pendingCount.decrementAndGet();
+            ch.releaseConnection(wc);
+        }
+
+        @Override
+        public void timeout() {
+            pendingCount.decrementAndGet();
+            counter.inc("WebConnections pre-connect timeouts");
+        }
+
+        @Override
+        public void failed(final Exception e) {
+            pendingCount.decrementAndGet();
+            counter.inc("WebConnections pre-connect failures");
+        }
+    }
+}
@@ -1,31 +1,111 @@
 package rabbit.io;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 /** A class to handle a range.
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
-class Range {
+public class Range {
+    /** The largest number of ranges we serve in one response. */
+    private static final int MAX_RANGES = 32;
+
     private final long start;
     private final long end;
 
     /** Create a range that spans the given values (inclusive).
      * @param start the lower value of the range
-     * @param end the upper value of the range 
+     * @param end the upper value of the range
      */
     public Range(final long start, final long end) {
         this.start = start;
         this.end = end;
     }
 
+    /** Parse the byte ranges of a Range header, rfc 7233. The ranges
+     *  are resolved against the length of the resource, suffix ranges
+     *  give the last bytes and ranges that go past the end are cut.
+     *  Ranges that start after the end are dropped.
+     * @param value the value of the Range header
+     * @param length the length of the resource
+     * @return the satisfiable ranges in the order they were asked for,
+     *         an empty list if none of the ranges can be satisfied or
+     *         null if the header is invalid, not for bytes, has too many
+     *         ranges or has ranges that overlap, the header should then
+     *         be ignored
+     */
+    public static List<Range> parse(final String value, final long length) {
+        final String v = value.trim();
+        if (!v.toLowerCase(Locale.US).startsWith("bytes=")) {
+            return null;
+        }
+        final String[] specs = v.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        final List<Range> ret = new ArrayList<>(specs.length);
+        int parsed = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            parsed++;
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            final long first;
+            final long last;
+            try {
+                if (dash == 0) {
+                    final long suffix = Long.parseLong(spec.substring(1).trim());
+                    if (suffix <= 0 || length == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash).trim());
+                    final String l = spec.substring(dash + 1).trim();
+                    final long e = l.isEmpty() ? Long.MAX_VALUE : Long.parseLong(l);
+                    if (first < 0 || e < first) {
+                        return null;
+                    }
+                    if (first >= length) {
+                        continue;
+                    }
+                    last = Math.min(e, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            final Range r = new Range(first, last);
+            for (Range o : ret) {
+                if (o.overlaps(r)) {
+                    return null;
+                }
+            }
+            ret.add(r);
+        }
+        return parsed > 0 ? ret : null;
+    }
+
+    private boolean overlaps(final Range r) {
+        return start <= r.end && r.start <= end;
+    }
+
     /**
-     * @return the lower bound of this range 
+     * @return the lower bound of this range
      */
     public long getStart() {
         return start;
     }
 
     /**
-     * @return the upper bound of this range 
+     * @return the upper bound of this range
      */
     public long getEnd() {
         return end;
@@ -38,4 +118,12 @@ class Range {
         // range is inclusive 1-5 has 5 bytes.
         return end - start + 1;
     }
+
+    /** Get the value of the Content-Range header for this range.
+     * @param length the length of the whole resource
+     * @return the content range, like "bytes 0-5/105"
+     */
+    public String getContentRange(final long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
 }
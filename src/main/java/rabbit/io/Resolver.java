@@ -1,19 +1,19 @@
 package rabbit.io;
 
-import java.net.URL;
+import rabbit.http.RequestTarget;
 
 /** An interface to handle name lookups. 
  *
  * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
  */
 public interface Resolver {
-    /** Get the InetAddress for a given url. 
-     *  Normally the InetAddress of the url host, but 
+    /** Get the InetAddress for a given request target. 
+     *  Normally the InetAddress of the target host, but 
      *  might be the InetAddress of the chained proxy to use.
-     * @param url the URL to lookup.
+     * @param target the request target to lookup.
      * @param listener the InetAddressListener to notify when lookup is done.
      */
-    void getInetAddress(URL url, InetAddressListener listener);
+    void getInetAddress(RequestTarget target, InetAddressListener listener);
 
     /** Get the port to use for connecting to a given port.
      *  Normally port is returned, but if there is a chained proxy, 
@@ -26,6 +26,17 @@ public class SimpleBufferHandle implements BufferHandle {
         return buffer;
     }
 
+    @Override
+    public ByteBuffer growBuffer() {
+        final int size = buffer == null ? 4096 : buffer.capacity() * 2;
+        final ByteBuffer larger = ByteBuffer.allocate(size);
+        if (buffer != null) {
+            larger.put(buffer);
+        }
+        buffer = larger;
+        return buffer;
+    }
+
     public ByteBuffer getLargeBuffer() {
         throw new RuntimeException("Not implemented");
     }
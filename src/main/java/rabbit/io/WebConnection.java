@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import rabbit.rnio.ConnectHandler;
 import rabbit.rnio.NioHandler;
@@ -23,9 +24,14 @@ public class WebConnection implements Closeable {
     private final SocketBinder binder;
     private final Counter counter;
     private SocketChannel channel;
+    private Address remoteAddress;
     private long releasedAt = -1;
     private boolean keepalive = true;
 
+    /** The handler that gave out this connection, if it is limited. */
+    private volatile ConnectionHandler owner;
+    private final AtomicBoolean checkedOut = new AtomicBoolean(false);
+
     private static final AtomicInteger idCounter = new AtomicInteger(0);
 
     /** Create a new WebConnection to the given InetAddress and port.
@@ -46,6 +52,8 @@ public class WebConnection implements Closeable {
         final int port = channel != null ? channel.socket().getLocalPort() : -1;
         return "WebConnection(id: " + id +
                ", address: "  + address +
+               (remoteAddress != null && !remoteAddress.equals(address) ?
+                ", remote: " + remoteAddress : "") +
                ", keepalive: " + keepalive +
                ", releasedAt: " + releasedAt +
                ", local port: " + port + ")";
@@ -58,6 +66,15 @@ public class WebConnection implements Closeable {
         return address;
     }
 
+    /** Get the address that the underlying socket actually connected to.
+     *  This differs from the address when the host had several addresses
+     *  and the first one could not be reached.
+     * @return the network address of the remote end
+     */
+    public Address getRemoteAddress() {
+        return remoteAddress != null ? remoteAddress : address;
+    }
+
     /** Get the actual SocketChannel that is used
      * @return the network channel
      */
@@ -68,7 +85,32 @@ public class WebConnection implements Closeable {
     @Override
     public void close() throws IOException {
         counter.inc("WebConnections closed");
-        channel.close();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } finally {
+            final ConnectionHandler ch = owner;
+            if (ch != null && checkIn()) {
+                ch.permitReleased(address);
+            }
+        }
+    }
+
+    /** Mark this connection as being in use and counted as active
+     *  by the given handler.
+     * @param owner the ConnectionHandler that gave out this connection
+     */
+    void checkOut(final ConnectionHandler owner) {
+        this.owner = owner;
+        checkedOut.set(true);
+    }
+
+    /** Mark this connection as no longer in use.
+     * @return true if the connection was in use
+     */
+    boolean checkIn() {
+        return checkedOut.compareAndSet(true, false);
     }
 
     /** Try to establish the network connection.
@@ -84,15 +126,9 @@ public class WebConnection implements Closeable {
             wcl.connectionEstablished(this);
         } else {
             // ok, open the connection....
-            channel = SocketChannel.open();
-            channel.socket().bind(new InetSocketAddress(binder.getInetAddress(),
-                                                        binder.getPort()));
-            channel.configureBlocking(false);
-            final SocketAddress addr =
-                    new InetSocketAddress(address.getInetAddress(),
-                                          address.getPort());
-            final boolean connected = channel.connect(addr);
-            if (connected) {
+            channel = openChannel(address);
+            remoteAddress = address;
+            if (channel.isConnected()) {
                 wcl.connectionEstablished(this);
             } else {
                 new ConnectListener(wcl).waitForConnection(nioHandler);
@@ -100,6 +136,45 @@ public class WebConnection implements Closeable {
         }
     }
 
+    /** Open a new non blocking socket and start connecting it to the
+     *  given address.
+     * @param remote the address to connect to
+     * @return the channel, connected or with a connect pending
+     * @throws IOException if the network operations fail
+     */
+    SocketChannel openChannel(final Address remote) throws IOException {
+        final SocketChannel sc = SocketChannel.open();
+        try {
+            sc.socket().bind(new InetSocketAddress(binder.getInetAddress(),
+                                                   binder.getPort()));
+            sc.configureBlocking(false);
+            final SocketAddress addr =
+                    new InetSocketAddress(remote.getInetAddress(),
+                                          remote.getPort());
+            sc.connect(addr);
+            return sc;
+        } catch (IOException e) {
+            sc.close();
+            throw e;
+        }
+    }
+
+    /** Use the given, connected, channel for this connection.
+     * @param sc the channel to use
+     * @param remote the address the channel is connected to
+     */
+    void setChannel(final SocketChannel sc, final Address remote) {
+        channel = sc;
+        remoteAddress = remote;
+    }
+
+    /** Check if this connection has a connected channel.
+     * @return true if this connection can be used directly
+     */
+    boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+
     private class ConnectListener implements ConnectHandler {
         private NioHandler nioHandler;
         private final WebConnectionListener wcl;
@@ -117,6 +192,7 @@ public class WebConnection implements Closeable {
 
         @Override
         public void closed() {
+            closeDown();
             wcl.failed(new IOException("channel closed before connect"));
         }
 
@@ -194,4 +270,11 @@ public class WebConnection implements Closeable {
     public long getReleasedAt() {
         return releasedAt;
     }
+
+    /** Check if this WebConnection has been used before.
+     * @return true if this WebConnection has been released to the pool
+     */
+    public boolean isReused() {
+        return releasedAt >= 0;
+    }
 }
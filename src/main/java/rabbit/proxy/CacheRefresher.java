@@ -0,0 +1,247 @@
+package rabbit.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import rabbit.cache.CacheEntry;
+import rabbit.cache.HttpCache;
+import rabbit.http.HttpHeader;
+import rabbit.httpio.BlockListener;
+import rabbit.httpio.HttpHeaderListener;
+import rabbit.httpio.HttpHeaderReader;
+import rabbit.httpio.HttpHeaderSender;
+import rabbit.httpio.HttpHeaderSentListener;
+import rabbit.httpio.ResourceSource;
+import rabbit.httpio.WebConnectionResourceSource;
+import rabbit.io.BufferHandle;
+import rabbit.io.CacheBufferHandle;
+import rabbit.io.WebConnection;
+import rabbit.io.WebConnectionListener;
+import rabbit.rnio.BufferHandler;
+import rabbit.rnio.impl.Closer;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
+
+/** Refreshes a stale cache entry in the background. The client has
+ *  already been sent the stale entry, so the response is only used to
+ *  update the cache.
+ *
+ *  <p>The entry is revalidated if it has validators. A new response is
+ *  stored if it may be and still belongs under the key of the entry, a
+ *  server error keeps the stale entry and any other response removes it.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+class CacheRefresher implements WebConnectionListener, HttpHeaderSentListener,
+                                HttpHeaderListener {
+    private final HttpProxy proxy;
+    private final HttpCache cache;
+    private final CacheEntry entry;
+    private final HttpHeader request;
+    private final TrafficLoggerHandler tlh = new TrafficLoggerHandler();
+    private BufferHandle webHandle;
+    private WebConnection wc;
+    private ResourceSource content;
+    private long requestTime;
+    private int attempts = 0;
+    private boolean done = false;
+
+    /** Create a new CacheRefresher.
+     * @param proxy the HttpProxy to get web connections from
+     * @param bufHandler the BufferHandler to use for reading
+     * @param request the client request, it is copied
+     * @param entry the stale entry to refresh
+     */
+    public CacheRefresher(final HttpProxy proxy, final BufferHandler bufHandler,
+                          final HttpHeader request, final CacheEntry entry) {
+        this.proxy = proxy;
+        this.cache = proxy.getCache();
+        this.entry = entry;
+        this.webHandle = new CacheBufferHandle(bufHandler);
+        this.request = new HttpHeader();
+        this.request.setRequestLine(request.getRequestLine());
+        request.copyHeader(this.request);
+        // the conditions are ours, not the clients.
+        this.request.setMehtod("GET");
+        for (String h : new String[] {"If-None-Match", "If-Modified-Since", "If-Match",
+                                      "If-Unmodified-Since", "If-Range", "Range"}) {
+            this.request.removeHeader(h);
+        }
+        entry.addValidators(this.request);
+    }
+
+    /** Start the refresh in a thread task.
+     */
+    public void start() {
+        proxy.getNioHandler().runThreadTask(new Runnable() {
+            @Override
+            public void run() {
+                establish();
+            }
+        }, new DefaultTaskIdentifier(getClass().getSimpleName(), entry.getKey()));
+    }
+
+    private void establish() {
+        attempts++;
+        // one retry, a pooled connection may have been closed.
+        if (attempts > 2) {
+            done("Cache refreshes failed");
+            return;
+        }
+        requestTime = System.currentTimeMillis();
+        proxy.getWebConnection(request, this);
+    }
+
+    @Override
+    public void connectionEstablished(final WebConnection wc) {
+        this.wc = wc;
+        try {
+            final boolean fullURI =
+                    proxy.getProxyChain().getResolver(request.getRequestURI()).isProxyConnected();
+            final HttpHeaderSender hhs =
+                    new HttpHeaderSender(wc.getChannel(), proxy.getNioHandler(),
+                                         tlh.getNetwork(), request, fullURI, this);
+            hhs.sendHeader();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void httpHeaderSent() {
+        try {
+            final HttpHeaderReader hhr =
+                    new HttpHeaderReader(wc.getChannel(), webHandle, proxy.getNioHandler(),
+                                         tlh.getNetwork(), false, proxy.getStrictHttp(), this);
+            hhr.readHeader();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void httpHeaderRead(final HttpHeader header, final BufferHandle wbh,
+                               final boolean keepalive, final boolean isChunked,
+                               final long dataSize) {
+        webHandle = wbh;
+        wc.setKeepalive(keepalive);
+        proxy.getConnectionHandler().originSucceeded(wc.getAddress());
+        final String status = header.getStatusCode().trim();
+        if (status.startsWith("1")) {
+            httpHeaderSent();
+            return;
+        }
+        new WarningsHandler().removeWarnings(header, false);
+        content = new WebConnectionResourceSource(proxy.getConnectionHandler(),
+                                                  proxy.getNioHandler(), wc, wbh,
+                                                  tlh.getNetwork(), isChunked, dataSize,
+                                                  proxy.getStrictHttp());
+        final long now = System.currentTimeMillis();
+        final String key = entry.getKey();
+        if (status.equals("304")) {
+            cache.revalidated(entry, header, requestTime, now);
+            done("Cache refreshes");
+        } else if (status.startsWith("5")) {
+            // keep the stale entry, it may be used if the error persists.
+            wc.setKeepalive(false);
+            done("Cache refreshes failed");
+        } else if (HttpCache.isStorable(header, now) && cache.isStorableSize(dataSize)) {
+            final String storeKey = cache.getStoreKey(key, request, header);
+            if (key.equals(storeKey)) {
+                content = new CachingResourceSource(content, cache, key, header,
+                                                    requestTime, dataSize);
+                content.addBlockListener(new Reader());
+            } else {
+                // the response varies in another way now or may not be
+                // used for the requests that select this entry.
+                if (storeKey == null) {
+                    cache.remove(key);
+                }
+                done("Cache refreshes");
+            }
+        } else {
+            cache.remove(key);
+            done("Cache refreshes");
+        }
+    }
+
+    /** Reads the new body, it is stored by the CachingResourceSource.
+     */
+    private class Reader implements BlockListener {
+        @Override
+        public void bufferRead(final BufferHandle bufHandle) {
+            final ByteBuffer buffer = bufHandle.getBuffer();
+            buffer.position(buffer.limit());
+            bufHandle.possiblyFlush();
+            content.addBlockListener(this);
+        }
+
+        @Override
+        public void finishedRead() {
+            done("Cache refreshes");
+        }
+
+        @Override
+        public void failed(final Exception cause) {
+            log.debug("Failed to read refreshed resource: {}: {}",
+                      entry.getKey(), cause.toString());
+            wc.setKeepalive(false);
+            done("Cache refreshes failed");
+        }
+
+        @Override
+        public void timeout() {
+            failed(new IOException("timeout"));
+        }
+    }
+
+    private void done(final String event) {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+        }
+        if (content != null) {
+            content.release();
+        } else {
+            closeDownWebConnection();
+        }
+        cache.refreshDone(entry.getKey());
+        proxy.getCounter().inc(event);
+        proxy.updateTrafficLog(tlh);
+    }
+
+    private void closeDownWebConnection() {
+        final WebConnection c = wc;
+        wc = null;
+        if (c != null) {
+            proxy.getNioHandler().close(c.getChannel());
+            Closer.close(c);
+        }
+    }
+
+    @Override
+    public void closed() {
+        closeDownWebConnection();
+        establish();
+    }
+
+    @Override
+    public void timeout() {
+        failed(new IOException("timeout"));
+    }
+
+    @Override
+    public void failed(final Exception e) {
+        log.debug("Failed to refresh: {}: {}", entry.getKey(), e.toString());
+        // a new connection that fails means that the origin has problems.
+        if (wc != null && !wc.isReused()) {
+            proxy.getConnectionHandler().originFailed(wc.getAddress());
+        }
+        closeDownWebConnection();
+        establish();
+    }
+}
@@ -0,0 +1,224 @@
+package rabbit.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import rabbit.cache.CacheEntry;
+import rabbit.cache.DiskCache;
+import rabbit.cache.HttpCache;
+import rabbit.http.HttpHeader;
+import rabbit.httpio.BlockListener;
+import rabbit.httpio.ResourceSource;
+import rabbit.io.BufferHandle;
+
+/** A resource source that keeps a copy of the data it reads and
+ *  stores the response in the cache once all of it has been read.
+ *
+ *  <p>Resources that fit in memory are copied to a direct buffer.
+ *  If the cache has a disk tier and the size of the resource is
+ *  known the data is also written to disk as it is read, resources
+ *  of unknown size are written to disk from the memory copy.
+ *  The copy is given up if the resource grows larger than the
+ *  largest entry the cache takes or if reading it fails.
+ *
+ *  <p>If other requests wait for this resource the data is also
+ *  given to their SharedFetch as it is read.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class CachingResourceSource implements ResourceSource {
+    private final ResourceSource source;
+    private final HttpCache cache;
+    private final String key;
+    private final HttpHeader header;
+    private final long requestTime;
+    private final long responseTime;
+    private final long expectedSize;
+    private final long maxSize;
+    private ByteBuffer copy;
+    private DiskCache.Writer writer;
+    private boolean stored = false;
+    private SharedFetch fetch;
+
+    /** Create a new CachingResourceSource
+     * @param source the real resource
+     * @param cache the cache to store the response in
+     * @param key the cache key of the request
+     * @param header the response header to store
+     * @param requestTime the time the request was sent, in milliseconds
+     * @param expectedSize the size of the resource or -1 if unknown
+     */
+    public CachingResourceSource(final ResourceSource source, final HttpCache cache,
+                                 final String key, final HttpHeader header,
+                                 final long requestTime, final long expectedSize) {
+        this.source = source;
+        this.cache = cache;
+        this.key = key;
+        this.header = header;
+        this.requestTime = requestTime;
+        this.responseTime = System.currentTimeMillis();
+        this.expectedSize = expectedSize;
+        this.maxSize = cache.getMaxEntrySize();
+        if (expectedSize <= maxSize) {
+            final int size = expectedSize >= 0 ? (int) expectedSize : 8192;
+            copy = ByteBuffer.allocateDirect(size);
+        }
+        final DiskCache disk = cache.getDiskCache();
+        if (disk != null && expectedSize >= 0) {
+            fixHeader(expectedSize);
+            writer = disk.reserve(key, header, requestTime, responseTime, expectedSize);
+        }
+    }
+
+    /** Give the data to a shared fetch as it is read.
+     * @param fetch the fetch that shares this resource
+     */
+    public void setSharedFetch(final SharedFetch fetch) {
+        this.fetch = fetch;
+    }
+
+    private void fixHeader(final long size) {
+        header.removeHeader("Transfer-Encoding");
+        header.setHeader("Content-Length", Long.toString(size));
+    }
+
+    /** The data has to pass through this source, so never use transfer.
+     * @return false
+     */
+    @Override
+    public boolean supportsTransfer() {
+        return false;
+    }
+
+    @Override
+    public long length() {
+        return source.length();
+    }
+
+    @Override
+    public long transferTo(final long position, final long count,
+                           final WritableByteChannel target)
+            throws IOException {
+        return source.transferTo(position, count, target);
+    }
+
+    @Override
+    public void addBlockListener(final BlockListener listener) {
+        source.addBlockListener(new Tee(listener));
+    }
+
+    @Override
+    public void release() {
+        drop();
+        source.release();
+    }
+
+    private synchronized void drop() {
+        if (fetch != null) {
+            fetch.fail();
+            fetch = null;
+        }
+        copy = null;
+        if (writer != null) {
+            writer.abort();
+            writer = null;
+        }
+    }
+
+    private synchronized void append(final ByteBuffer buf) {
+        if (fetch != null) {
+            fetch.append(buf);
+        }
+        if (writer != null && !writer.write(buf)) {
+            writer = null;
+        }
+        if (copy == null) {
+            return;
+        }
+        final int len = buf.remaining();
+        if (copy.remaining() < len) {
+            final long needed = (long) copy.position() + len;
+            if (needed > maxSize) {
+                copy = null;
+                return;
+            }
+            final long grown = Math.min(maxSize, Math.max(needed, 2L * copy.capacity()));
+            final ByteBuffer larger = ByteBuffer.allocateDirect((int) grown);
+            copy.flip();
+            larger.put(copy);
+            copy = larger;
+        }
+        copy.put(buf.duplicate());
+    }
+
+    private synchronized void store() {
+        if (stored) {
+            return;
+        }
+        stored = true;
+        if (fetch != null) {
+            fetch.finish();
+            fetch = null;
+        }
+        if (writer != null) {
+            writer.commit();
+            writer = null;
+        }
+        if (copy == null) {
+            return;
+        }
+        if (expectedSize >= 0 && copy.position() != expectedSize) {
+            copy = null;
+            return;
+        }
+        copy.flip();
+        final ByteBuffer body;
+        if (copy.limit() == copy.capacity()) {
+            body = copy;
+        } else {
+            body = ByteBuffer.allocateDirect(copy.limit());
+            body.put(copy);
+            body.flip();
+        }
+        copy = null;
+        fixHeader(body.limit());
+        cache.put(new CacheEntry(key, header, body, requestTime, responseTime));
+        final DiskCache disk = cache.getDiskCache();
+        if (disk != null && expectedSize < 0) {
+            disk.store(key, header, requestTime, responseTime, body.duplicate());
+        }
+    }
+
+    private class Tee implements BlockListener {
+        private final BlockListener listener;
+
+        public Tee(final BlockListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void bufferRead(final BufferHandle bufHandle) {
+            append(bufHandle.getBuffer());
+            listener.bufferRead(bufHandle);
+        }
+
+        @Override
+        public void finishedRead() {
+            store();
+            listener.finishedRead();
+        }
+
+        @Override
+        public void failed(final Exception cause) {
+            drop();
+            listener.failed(cause);
+        }
+
+        @Override
+        public void timeout() {
+            drop();
+            listener.timeout();
+        }
+    }
+}
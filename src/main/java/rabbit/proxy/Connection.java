@@ -2,6 +2,7 @@ package rabbit.proxy;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.List;
 import java.util.Locale;
 import java.io.IOException;
 import java.net.UnknownHostException;
@@ -13,18 +14,29 @@ import rabbit.rnio.NioHandler;
 import rabbit.rnio.TaskIdentifier;
 import rabbit.rnio.impl.Closer;
 import rabbit.rnio.impl.DefaultTaskIdentifier;
+import rabbit.cache.CacheControl;
+import rabbit.cache.CacheEntry;
+import rabbit.cache.HttpCache;
 import rabbit.handler.BaseHandler;
 import rabbit.handler.Handler;
 import rabbit.handler.MultiPartHandler;
 import rabbit.http.HttpHeader;
+import rabbit.httpio.ByteBufferResourceSource;
+import rabbit.httpio.HeaderTooLargeException;
 import rabbit.httpio.HttpHeaderListener;
 import rabbit.httpio.HttpHeaderReader;
 import rabbit.httpio.HttpHeaderSender;
 import rabbit.httpio.HttpHeaderSentListener;
+import rabbit.httpio.RangeResourceSource;
 import rabbit.httpio.RequestLineTooLongException;
+import rabbit.httpio.ResourceSource;
+import rabbit.httpio.WebConnectionResourceSource;
 import rabbit.io.BufferHandle;
 import rabbit.io.CacheBufferHandle;
+import rabbit.io.CircuitOpenException;
+import rabbit.io.ConnectionQueueFullException;
 import rabbit.io.ProxyChain;
+import rabbit.io.Range;
 import rabbit.io.Resolver;
 import rabbit.util.Counter;
 
@@ -117,7 +129,8 @@ public class Connection {
             final HttpHeaderReader hr =
                     new HttpHeaderReader(channel, requestHandle, getNioHandler(),
                                          tlh.getClient(), true,
-                                         proxy.getStrictHttp(), clientListener);
+                                         proxy.getStrictHttp(),
+                                         proxy.getHeaderLimits(), clientListener);
             hr.readHeader();
         } catch (Throwable ex) {
             handleFailedRequestRead(ex);
@@ -133,6 +146,10 @@ public class Connection {
             final HttpHeader err = responseHandler.get414();
             // Send response and close
             sendAndClose(err);
+        } else if (t instanceof HeaderTooLargeException) {
+            final HttpHeader err = responseHandler.get400((Exception) t);
+            // Send response and close
+            sendAndClose(err);
         } else if (connectionReset(t)) {
             log.info("Exception when reading request: {}", t);
             closeDown();
@@ -263,9 +280,263 @@ public class Connection {
     private void handleRequest() {
         status = "Handling request";
         final RequestHandler rh = new RequestHandler(this);
+        rh.setRequestTime(System.currentTimeMillis());
+        final HttpCache cache = proxy.getCache();
+        if (cache != null && checkCache(cache, rh)) {
+            return;
+        }
         handleRequestBottom(rh);
     }
 
+    /** Look for the resource in the cache. A fresh entry is set as
+     *  the content of the request handler, a miss sets the cache key
+     *  if the response may be stored. Resources that vary are looked
+     *  up with the key of the variant the request selects.
+     * @param cache the cache to use
+     * @param rh the RequestHandler for the current request
+     * @return true if the request has already been answered
+     */
+    private boolean checkCache(final HttpCache cache, final RequestHandler rh) {
+        final String resource = HttpCache.getKey(request.getRequestURI());
+        if (resource == null) {
+            return false;
+        }
+        if (HttpCache.isUnsafeRequest(request)) {
+            cache.remove(resource);
+            return false;
+        }
+        if (clientResourceHandler != null || !HttpCache.isCacheableRequest(request)) {
+            return false;
+        }
+        final String key = cache.getLookupKey(resource, request);
+        final CacheControl cc = CacheControl.parse(request);
+        final long now = rh.getRequestTime();
+        final CacheEntry ce = cache.get(key);
+        boolean fresh = ce != null && ce.isFresh(now, cc);
+        if (ce != null && !fresh && cache.mayServeWhileRevalidate(ce, now, cc)) {
+            fresh = true;
+            getCounter().inc("Cache hits, stale while revalidate");
+            if (cache.startRefresh(key)) {
+                new CacheRefresher(proxy, bufHandler, request, ce).start();
+            }
+        }
+        cache.countLookup(key, fresh);
+        if (fresh && ce.isNotModified(request)) {
+            getCounter().inc("Cache hits, not modified");
+            rh.setWebHeader(ce.getNotModifiedHeader(now));
+            rh.setSize(0);
+            rh.setContent(new ByteBufferResourceSource(ByteBuffer.allocate(0)));
+            return false;
+        }
+        if (fresh) {
+            try {
+                rh.setContent(ce.getResourceSource(getNioHandler(), bufHandler));
+                rh.setWebHeader(ce.getResponseHeader(now));
+                rh.setSize(ce.getBodySize());
+                getCounter().inc("Cache hits");
+                if (request.getHeader("Range") != null && request.getMethod().equals("GET")) {
+                    setupRanges(rh, ce);
+                }
+                return false;
+            } catch (IOException e) {
+                log.debug("Failed to use cache entry for: {}: {}", key, e.toString());
+            }
+        }
+        if (cc.isOnlyIfCached()) {
+            getCounter().inc("Cache misses");
+            doGateWayTimeout(new IOException("Not in cache: " + key));
+            return true;
+        }
+        if (ce != null && cache.mayServeOnError(ce, now, cc)) {
+            rh.setErrorEntry(ce);
+        }
+        if (!request.isHeadOnlyRequest()) {
+            rh.setCacheKey(key);
+            if (ce != null && ce.hasValidators() && !CacheEntry.isConditional(request)) {
+                // ask the origin server if our copy is still good.
+                getCounter().inc("Cache revalidations");
+                ce.addValidators(request);
+                rh.setStaleEntry(ce);
+                return false;
+            }
+        }
+        getCounter().inc("Cache misses");
+        return rh.getCacheKey() != null && collapse(key, rh);
+    }
+
+    /** Let concurrent misses for the same resource share one fetch.
+     * @param key the cache key of the request
+     * @param rh the RequestHandler for the current request
+     * @return true if the request waits for another fetch
+     */
+    private boolean collapse(final String key, final RequestHandler rh) {
+        final RequestCollapser collapser = proxy.getRequestCollapser();
+        // partial and conditional responses can not be shared.
+        if (collapser == null || request.getHeader("Range") != null ||
+            CacheEntry.isConditional(request)) {
+            return false;
+        }
+        final SharedFetch fetch = collapser.join(key, new CollapsedRequest(rh));
+        if (fetch == null) {
+            status = "Handling request - waiting for shared fetch";
+            return true;
+        }
+        rh.setSharedFetch(fetch);
+        return false;
+    }
+
+    /** Handles a request that waits for the response of another request.
+     */
+    private class CollapsedRequest implements SharedFetch.Listener {
+        private final RequestHandler rh;
+
+        public CollapsedRequest(final RequestHandler rh) {
+            this.rh = rh;
+        }
+
+        @Override
+        public void shared(final HttpHeader header, final long size,
+                           final ResourceSource content) {
+            getCounter().inc("Collapsed requests");
+            // the other request stores the response.
+            rh.setCacheKey(null);
+            rh.setWebHeader(header);
+            rh.setSize(size);
+            rh.setContent(content);
+            resourceEstablished(rh);
+        }
+
+        @Override
+        public void released() {
+            handleRequestBottom(rh);
+        }
+    }
+
+    /** Answer a Range request from a stored entry, the response is
+     *  changed to a 206 with the ranges or to a 416 if none of the ranges
+     *  can be satisfied. The whole entry is sent if the Range can not be
+     *  used or if the If-Range does not match.
+     * @param rh the RequestHandler holding the stored entry
+     * @param ce the stored entry
+     */
+    private void setupRanges(final RequestHandler rh, final CacheEntry ce) {
+        final HttpHeader header = rh.getWebHeader();
+        if (!header.getStatusCode().trim().equals("200") || !ce.isRangeValid(request)) {
+            return;
+        }
+        final long length = rh.getSize();
+        final List<Range> ranges = Range.parse(request.getHeader("Range"), length);
+        if (ranges == null) {
+            return;
+        }
+        if (ranges.isEmpty()) {
+            getCounter().inc("Cache hits, range not satisfiable");
+            rh.getContent().release();
+            header.setStatusLine("HTTP/1.1 416 Requested Range Not Satisfiable");
+            header.setHeader("Content-Range", "bytes */" + length);
+            header.setHeader("Content-Length", "0");
+            rh.setSize(0);
+            rh.setContent(new ByteBufferResourceSource(ByteBuffer.allocate(0)));
+            return;
+        }
+        getCounter().inc("Cache hits, ranges");
+        final RangeResourceSource rrs =
+                new RangeResourceSource(rh.getContent(), ranges, length,
+                                        header.getHeader("Content-Type"));
+        header.setStatusLine("HTTP/1.1 206 Partial Content");
+        if (ranges.size() == 1) {
+            header.setHeader("Content-Range", ranges.get(0).getContentRange(length));
+        } else {
+            header.setHeader("Content-Type", rrs.getMultipartContentType());
+        }
+        header.setHeader("Content-Length", Long.toString(rrs.length()));
+        rh.setSize(rrs.length());
+        rh.setContent(rrs);
+    }
+
+    /** Use the stored entry if the origin server said that it has not
+     *  been modified.
+     * @param rh the RequestHandler for the current request
+     * @throws IOException if the stored body can not be used
+     */
+    private void checkRevalidation(final RequestHandler rh) throws IOException {
+        final HttpHeader webHeader = rh.getWebHeader();
+        if (!webHeader.getStatusCode().trim().equals("304")) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final CacheEntry ce = proxy.getCache().revalidated(rh.getStaleEntry(), webHeader,
+                                                           rh.getRequestTime(), now);
+        final ResourceSource content = ce.getResourceSource(getNioHandler(), bufHandler);
+        rh.getContent().release();
+        rh.setWebHeader(ce.getResponseHeader(now));
+        rh.setSize(ce.getBodySize());
+        rh.setContent(content);
+        // the updated entry is already stored.
+        rh.setCacheKey(null);
+    }
+
+    /** Use the stale entry instead of an error from the origin server,
+     *  if the request has an entry that may be used on errors.
+     * @param rh the RequestHandler for the current request
+     * @return true if the stale entry is set as the resource
+     */
+    private boolean useErrorEntry(final RequestHandler rh) {
+        final CacheEntry ce = rh.getErrorEntry();
+        if (ce == null) {
+            return false;
+        }
+        rh.setErrorEntry(null);
+        final long now = System.currentTimeMillis();
+        final ResourceSource content;
+        try {
+            content = ce.getResourceSource(getNioHandler(), bufHandler);
+        } catch (IOException e) {
+            log.debug("Failed to use stale cache entry for: {}: {}", ce.getKey(), e.toString());
+            return false;
+        }
+        if (rh.getContent() != null) {
+            rh.getContent().release();
+        }
+        final HttpHeader header = ce.getResponseHeader(now);
+        header.addHeader("Warning", "111 RabbIT \"Revalidation failed\"");
+        rh.setWebHeader(header);
+        rh.setSize(ce.getBodySize());
+        rh.setContent(content);
+        rh.setCacheKey(null);
+        rh.setStaleEntry(null);
+        getCounter().inc("Cache hits, stale if error");
+        return true;
+    }
+
+    /** Get a copy of the response header to store, if the response
+     *  should be stored. The copy is taken before the output filters
+     *  are run since they are run again when the entry is used. The
+     *  cache key is changed to the key of the variant to store.
+     * @param rh the RequestHandler for the current request
+     * @return the header to store or null if the response is not stored
+     */
+    private HttpHeader getHeaderToStore(final RequestHandler rh) {
+        final HttpCache cache = proxy.getCache();
+        if (cache == null || rh.getCacheKey() == null || rh.getWebHeader() == null) {
+            return null;
+        }
+        final HttpHeader header = rh.getWebHeader();
+        if (!cache.isStorableSize(rh.getSize()) ||
+            !HttpCache.isStorable(header, System.currentTimeMillis())) {
+            return null;
+        }
+        final String key = cache.getStoreKey(rh.getCacheKey(), request, header);
+        if (key == null) {
+            return null;
+        }
+        rh.setCacheKey(key);
+        final HttpHeader copy = new HttpHeader();
+        copy.setStatusLine(header.getStatusLine());
+        header.copyHeader(copy);
+        return copy;
+    }
+
     private void handleRequestBottom(final RequestHandler rh) {
         if (rh.getContent() == null) {
             status = "Handling request - setting up web connection";
@@ -285,6 +556,22 @@ public class Connection {
      * @param cause the Exception that signaled the problem
      */
     public void webConnectionSetupFailed(final RequestHandler rh, final Exception cause) {
+        if (rh.getSharedFetch() != null) {
+            rh.getSharedFetch().fail();
+            rh.setSharedFetch(null);
+        }
+        if (useErrorEntry(rh)) {
+            log.warn("Failed to set up web connection to: {}, using stale entry, cause: {}",
+                     request.getRequestURI(), cause.toString());
+            resourceEstablished(rh);
+            return;
+        }
+        if (cause instanceof ConnectionQueueFullException ||
+            cause instanceof CircuitOpenException) {
+            log.warn("{}: {}", cause.toString(), request.getRequestURI());
+            doServiceUnavailable(cause);
+            return;
+        }
         if (cause instanceof UnknownHostException) {
             log.warn("{}: {}", cause.toString(), request.getRequestURI());
         } else {
@@ -324,6 +611,9 @@ public class Connection {
 
     private void resourceEstablished(final RequestHandler rh) {
         status = "Handling request - got resource";
+        final SharedFetch fetch = rh.getSharedFetch();
+        rh.setSharedFetch(null);
+        boolean shared = false;
         try {
             // and now we filter the response header if any.
             if (!request.isDot9Request()) {
@@ -332,7 +622,16 @@ public class Connection {
                     return;
                 }
 
+                if (rh.getStaleEntry() != null) {
+                    checkRevalidation(rh);
+                }
+                if (rh.getErrorEntry() != null &&
+                    rh.getWebHeader().getStatusCode().trim().startsWith("5")) {
+                    useErrorEntry(rh);
+                }
                 final String status = rh.getWebHeader().getStatusCode().trim();
+                final String lookupKey = rh.getCacheKey();
+                final HttpHeader toStore = getHeaderToStore(rh);
 
                 final HttpHeaderFilterer filterer =
                         proxy.getHttpHeaderFilterer();
@@ -348,10 +647,36 @@ public class Connection {
 
                 if (status.length() > 0 && (status.equals("304") || status.equals("204") || status.charAt(0) == '1')) {
                     rh.getContent().release();
-                    // Send success response and close
-                    sendAndClose(rh.getWebHeader());
+                    if (status.equals("304") && rh.getWebConnection() == null) {
+                        // our own answer to a conditional request, keep the client
+                        setConnectionHeaders(rh.getWebHeader());
+                        sendAndRestart(rh.getWebHeader());
+                    } else {
+                        // Send success response and close
+                        sendAndClose(rh.getWebHeader());
+                    }
                     return;
                 }
+
+                if (toStore != null) {
+                    final CachingResourceSource crs =
+                            new CachingResourceSource(rh.getContent(), proxy.getCache(),
+                                                      rh.getCacheKey(), toStore,
+                                                      rh.getRequestTime(), rh.getSize());
+                    // the waiting requests only selected the same variant
+                    // if the response varies the way the lookup assumed.
+                    if (fetch != null && rh.getCacheKey().equals(lookupKey) &&
+                        fetch.share(toStore, rh.getSize())) {
+                        // the body is read by the fetch, this client reads
+                        // it from the fetch like the waiting ones.
+                        crs.setSharedFetch(fetch);
+                        fetch.readBody(crs);
+                        rh.setContent(fetch.getReader());
+                        shared = true;
+                    } else {
+                        rh.setContent(crs);
+                    }
+                }
             }
 
             if (rh.getWebHeader() != null) {
@@ -389,7 +714,15 @@ public class Connection {
                 }
             }
         } catch (Throwable t) {
+            if (fetch != null && !shared) {
+                fetch.fail();
+            }
             handleInternalError(t);
+        } finally {
+            if (fetch != null) {
+                // release any waiting requests if the response was not shared.
+                fetch.abandon();
+            }
         }
     }
 
@@ -398,21 +731,48 @@ public class Connection {
             return;
         }
         if (chunk) {
-            if (rh.getSize() < 0 || handler.changesContentSize()) {
+            if (!handler.changesContentSize() && relayChunkedContent(rh)) {
+                // the upstream chunks are sent as they are.
+                rh.getWebHeader().removeHeader("Content-Length");
+                rh.getWebHeader().setHeader("Transfer-Encoding", "chunked");
+                setChunking(false);
+            } else if (rh.getSize() < 0 || handler.changesContentSize()) {
                 rh.getWebHeader().removeHeader("Content-Length");
                 rh.getWebHeader().setHeader("Transfer-Encoding", "chunked");
             } else {
                 setChunking(false);
             }
         } else {
-            if (keepalive) {
-                rh.getWebHeader().setHeader("Proxy-Connection", "Keep-Alive");
-                rh.getWebHeader().setHeader("Connection", "Keep-Alive");
-            } else {
-                rh.getWebHeader().setHeader("Proxy-Connection", "close");
-                rh.getWebHeader().setHeader("Connection", "close");
-            }
+            setConnectionHeaders(rh.getWebHeader());
+        }
+    }
+
+    private void setConnectionHeaders(final HttpHeader header) {
+        if (keepalive) {
+            header.setHeader("Proxy-Connection", "Keep-Alive");
+            header.setHeader("Connection", "Keep-Alive");
+        } else {
+            header.setHeader("Proxy-Connection", "close");
+            header.setHeader("Connection", "close");
+        }
+    }
+
+    private boolean relayChunkedContent(final RequestHandler rh) {
+        if (request.isHeadOnlyRequest()) {
+            return false;
+        }
+        final ResourceSource content = rh.getContent();
+        if (!(content instanceof WebConnectionResourceSource)) {
+            return false;
+        }
+        final WebConnectionResourceSource wrs =
+                (WebConnectionResourceSource) content;
+        if (!wrs.isChunked()) {
+            return false;
         }
+        wrs.relayChunks();
+        getCounter().inc("Chunked resources relayed");
+        return true;
     }
 
     private class TDL implements TunnelDoneListener {
@@ -460,6 +820,24 @@ public class Connection {
         sendAndClose(header);
     }
 
+    /** Send a 503 Service Unavailable to the client, with a Retry-After
+     *  if the circuit to the server is open.
+     * @param e the exception to tell the client.
+     */
+    private void doServiceUnavailable(final Exception e) {
+        this.statusCode = "503";
+        extraInfo = (extraInfo != null ?
+                     extraInfo + e.toString() :
+                     e.toString());
+        final HttpHeader header =
+                responseHandler.get503(request.getRequestURI(), e);
+        if (e instanceof CircuitOpenException) {
+            final long ms = ((CircuitOpenException) e).getRetryAfter();
+            header.setHeader("Retry-After", Long.toString(Math.max(1, (ms + 999) / 1000)));
+        }
+        sendAndClose(header);
+    }
+
     /** Send an error (400 Bad Request or 504) to the client.
      * @param e the exception to tell the client.
      */
@@ -739,7 +1117,8 @@ public class Connection {
     private class SendAndRestartListener extends SendAndDoListener {
         @Override
         public void httpHeaderSent() {
-            readRequest();
+            status = "Response sent, logging and restarting.";
+            logAndRestart();
         }
     }
 
@@ -770,12 +1149,14 @@ public class Connection {
         if (rh != null && rh.getWebConnection() != null) {
             proxy.releaseWebConnection(rh.getWebConnection());
         }
+        logTraffic();
         closeDown();
     }
 
     /** Log the current request and start to listen for a new request.
      */
     public void logAndRestart() {
+        logTraffic();
         if (keepalive) {
             readRequest();
         } else {
@@ -783,6 +1164,13 @@ public class Connection {
         }
     }
 
+    /** Add the traffic of the current request to the proxy totals.
+     */
+    private void logTraffic() {
+        proxy.updateTrafficLog(tlh);
+        tlh.clear();
+    }
+
     private class SendAndCloseListener extends SendAndDoListener {
         @Override
         public void httpHeaderSent() {
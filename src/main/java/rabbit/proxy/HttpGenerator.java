@@ -52,6 +52,13 @@ public interface HttpGenerator {
      */
     HttpHeader get500(String requestURL, Throwable exception);
 
+    /** Get a 503 Service Unavailable for the given exception.
+     * @param requestURL the url of the request
+     * @param exception the Exception made.
+     * @return a suitable HttpHeader.
+     */
+    HttpHeader get503(String requestURL, Throwable exception);
+
     /** Get a 504 Gateway Timeout for the given exception.
      * @param requestURL the url of the request
      * @param exception the Exception made.
@@ -17,6 +17,8 @@ import java.util.List;
 import java.util.StringTokenizer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -32,11 +34,19 @@ import rabbit.rnio.impl.BasicStatisticsHolder;
 import rabbit.rnio.impl.CachingBufferHandler;
 import rabbit.rnio.impl.MultiSelectorNioHandler;
 import rabbit.rnio.impl.SimpleThreadFactory;
+import rabbit.cache.DiskCache;
+import rabbit.cache.HttpCache;
 import rabbit.http.HttpDateParser;
 import rabbit.http.HttpHeader;
+import rabbit.dns.DnsClient;
+import rabbit.dns.ResolvConf;
+import rabbit.httpio.DnsCache;
+import rabbit.httpio.HttpHeaderLimits;
 import rabbit.httpio.ProxiedProxyChain;
+import rabbit.httpio.RoutingProxyChain;
 import rabbit.httpio.SimpleProxyChain;
 import rabbit.io.ConnectionHandler;
+import rabbit.io.ConnectionObserver;
 import rabbit.io.ProxyChain;
 import rabbit.io.ProxyChainFactory;
 import rabbit.io.WebConnection;
@@ -84,12 +94,27 @@ public class HttpProxy {
 
     private NioHandler nioHandler;
 
+    /** The non blocking dns client, null if the system resolver is used. */
+    private DnsClient dnsClient;
+
+    /** The response cache, null if caching is turned off. */
+    private HttpCache cache;
+
+    /** The collapser for concurrent cache misses, null if not used. */
+    private RequestCollapser collapser;
+
+    /** The scheduler for delayed and periodic tasks. */
+    private ScheduledExecutorService scheduler;
+
     /** The buffer handlers. */
     private final BufferHandler bufferHandler = new CachingBufferHandler();
 
     /** If this proxy is using strict http parsing. */
     private boolean strictHttp = true;
 
+    /** The size limits for client request headers. */
+    private HttpHeaderLimits headerLimits = HttpHeaderLimits.DEFAULT;
+
     /** The counter of events. */
     private final Counter counter = new Counter();
 
@@ -169,6 +194,32 @@ public class HttpProxy {
         return null;
     }
 
+    private void setupDnsCache() {
+        final DnsCache dc = DnsCache.getSharedInstance();
+        final String section = dc.getClass().getName();
+        dc.setup(config.getProperties(section));
+        closeDnsClient();
+        final String resolver = config.getProperty(section, "resolver", "system").trim();
+        if (resolver.equals("nio") && nioHandler != null) {
+            dnsClient = new DnsClient(nioHandler, ResolvConf.read());
+            dnsClient.setup(config.getProperties(dnsClient.getClass().getName()));
+            if (dnsClient.getNameservers().isEmpty()) {
+                log.warn("No name servers found, will use the system resolver");
+            }
+        } else if (!resolver.equals("system")) {
+            log.warn("Unknown resolver: '{}', will use the system resolver", resolver);
+        }
+        dc.setDnsClient(dnsClient);
+    }
+
+    private void closeDnsClient() {
+        if (dnsClient != null) {
+            DnsCache.getSharedInstance().setDnsClient(null);
+            dnsClient.close();
+            dnsClient = null;
+        }
+    }
+
     /** Configure the chained proxy rabbit is using (if any).
      */
     private void setupProxyConnection() {
@@ -227,6 +278,13 @@ public class HttpProxy {
         this.strictHttp = b;
     }
 
+    /** Get the size limits to use when reading client request headers.
+     * @return the header limits
+     */
+    public HttpHeaderLimits getHeaderLimits() {
+        return headerLimits;
+    }
+
     /** Check if strict http is turned on or off.
      * @return the strict http flag
      */
@@ -234,14 +292,62 @@ public class HttpProxy {
         return strictHttp;
     }
 
+    private void setupCache() {
+        closeCache();
+        final HttpCache hc = new HttpCache(counter);
+        hc.setup(config.getProperties(hc.getClass().getName()));
+        if (nioHandler != null) {
+            final DiskCache dc = new DiskCache(counter, nioHandler);
+            dc.setup(config.getProperties(dc.getClass().getName()));
+            if (dc.isEnabled()) {
+                dc.setStaleGrace(hc.getStaleGrace());
+                try {
+                    dc.open();
+                    dc.startGc(getScheduler());
+                    hc.setDiskCache(dc);
+                } catch (IOException e) {
+                    log.warn("Failed to open disk cache, will only cache in memory: {}",
+                             e.toString());
+                }
+            }
+        }
+        cache = hc.isEnabled() ? hc : null;
+    }
+
+    private void setupRequestCollapser() {
+        collapser = null;
+        if (cache == null || nioHandler == null) {
+            return;
+        }
+        final RequestCollapser rc = new RequestCollapser(counter, nioHandler, getScheduler());
+        rc.setup(config.getProperties(rc.getClass().getName()));
+        if (rc.isEnabled()) {
+            collapser = rc;
+        }
+    }
+
+    private void closeCache() {
+        if (cache != null && cache.getDiskCache() != null) {
+            cache.getDiskCache().close();
+        }
+        cache = null;
+    }
+
     private void setupConnectionHandler() {
         if (nioHandler == null) {
             log.info("nioHandler == null");
             return;
         }
-        conhandler = new ConnectionHandler(counter, proxyChain, nioHandler);
+        conhandler = new ConnectionHandler(counter, proxyChain, nioHandler,
+                                           getScheduler());
         final String section = conhandler.getClass().getName();
         conhandler.setup(config.getProperties(section));
+        if (proxyChain instanceof ConnectionObserver) {
+            conhandler.setConnectionObserver((ConnectionObserver) proxyChain);
+        }
+        if (proxyChain instanceof RoutingProxyChain) {
+            ((RoutingProxyChain) proxyChain).startHealthChecks(getScheduler());
+        }
     }
 
     private void setupHttpGeneratorFactory() {
@@ -264,18 +370,34 @@ public class HttpProxy {
         this.config = config;
         setupDateParsing();
         setupNioHandler();
+        setupDnsCache();
         setupProxyConnection();
         final String cn = getClass().getName();
         serverIdentity = config.getProperty(cn, "serverIdentity", VERSION);
         setStrictHttp(false);
+        setupHeaderLimits();
         setupSSLSupport();
         loadClasses();
         openSocket();
+        setupCache();
+        setupRequestCollapser();
         setupConnectionHandler();
         setupHttpGeneratorFactory();
         log.info("{}: Configuration loaded: ready for action.", serverIdentity);
     }
 
+    private void setupHeaderLimits() {
+        final String section = getClass().getName();
+        final HttpHeaderLimits def = HttpHeaderLimits.DEFAULT;
+        headerLimits =
+                new HttpHeaderLimits(getInt(section, "max_request_line",
+                                            def.getMaxRequestLine()),
+                                     getInt(section, "max_header_line",
+                                            def.getMaxHeaderLine()),
+                                     getInt(section, "max_header_size",
+                                            def.getMaxHeaderSize()));
+    }
+
     private int getInt(final String section, final String key, final int defaultValue) {
         final String defVal = Integer.toString(defaultValue);
         final String configValue = config.getProperty(section, key, defVal).trim();
@@ -330,6 +452,31 @@ public class HttpProxy {
         }
     }
 
+    /** Get the scheduler to use for delayed and periodic tasks.
+     *  The tasks should be short, longer work should be handed to
+     *  the NioHandler as thread tasks.
+     * @return the ScheduledExecutorService of this proxy
+     */
+    public synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "HttpProxy scheduler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    private synchronized void closeScheduler() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
     private void closeNioHandler() {
         if (nioHandler != null) {
             nioHandler.shutdown();
@@ -364,7 +511,10 @@ public class HttpProxy {
             closeSocket();
             // TODO: wait for remaining connections.
             // TODO: as it is now, it will just close connections in the middle.
+            closeDnsClient();
+            closeCache();
             closeNioHandler();
+            closeScheduler();
         }
     }
 
@@ -425,6 +575,20 @@ public class HttpProxy {
         return proxyChain;
     }
 
+    /** Get the response cache.
+     * @return the HttpCache in use or null if caching is turned off
+     */
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    /** Get the collapser that lets concurrent cache misses share a fetch.
+     * @return the RequestCollapser or null if requests are not collapsed
+     */
+    RequestCollapser getRequestCollapser() {
+        return collapser;
+    }
+
     /** Get a WebConnection.
      * @param header the http header to get the host and port from
      * @param wcl the listener that wants to get the connection.
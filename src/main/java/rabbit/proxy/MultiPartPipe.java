@@ -2,8 +2,7 @@ package rabbit.proxy;
 
 import java.nio.ByteBuffer;
 import java.util.StringTokenizer;
-import rabbit.httpio.LineListener;
-import rabbit.httpio.LineReader;
+import rabbit.httpio.MultiPartBoundaryScanner;
 
 /** A helper class for dealing with multipart data.
  *
@@ -11,7 +10,7 @@ import rabbit.httpio.LineReader;
  */
 public class MultiPartPipe {
     private String boundary;
-    private boolean endFound = false;
+    private final MultiPartBoundaryScanner scanner;
 
     /** Create a new MultiPartPipe
      * @param ctHeader the content type header hodling the boundary
@@ -30,46 +29,28 @@ public class MultiPartPipe {
                                                "boundary in: '" + ctHeader +
                                                "'");
         }
+        if (boundary.length() > 1 && boundary.startsWith("\"") &&
+            boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        scanner = new MultiPartBoundaryScanner(boundary);
     }
 
-    /** Parse the buffer, will set the position and the limit.
+    /** Parse the buffer, will set the limit if the end of the
+     *  multipart data is found in this buffer.
      * @param buf the ByteBuffer to parse
      */
     public void parseBuffer(final ByteBuffer buf) {
-        final int pos = buf.position();
-        final LineReader lr = new LineReader(true);
-        final LineListener lh = new LineHandler(buf);
-        do {
-            lr.readLine(buf, lh);
-        } while (!endFound && buf.hasRemaining());
-
-        // send the block.
-        buf.position(pos);
+        final int end = scanner.scan(buf);
+        if (end >= 0) {
+            buf.limit(end);
+        }
     }
 
     /** Check if the multipart data has been fully handled.
      * @return true if all multipart data has been handled
      */
     public boolean isFinished() {
-        return endFound;
-    }
-
-    private class LineHandler implements LineListener {
-        private final ByteBuffer buf;
-
-        public LineHandler(final ByteBuffer buf) {
-            this.buf = buf;
-        }
-
-        // check for end line and if it is found we limit the buffer to
-        // this position.
-        @Override
-        public void lineRead(final String line) {
-            if (line.startsWith("--") && line.endsWith("--") &&
-                line.substring(2, line.length() - 2).equals(boundary)) {
-                buf.limit(buf.position());
-                endFound = true;
-            }
-        }
+        return scanner.isFinished();
     }
 }
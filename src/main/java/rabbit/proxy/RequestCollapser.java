@@ -0,0 +1,146 @@
+package rabbit.proxy;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import rabbit.rnio.NioHandler;
+import rabbit.rnio.impl.DefaultTaskIdentifier;
+import rabbit.util.Counter;
+import rabbit.util.SProperties;
+
+/** Keeps track of the cacheable resources that are currently fetched
+ *  so that concurrent misses for the same resource can share one
+ *  fetch instead of each getting the resource from the web.
+ *
+ *  <p>Requests that wait for a fetch are released after wait_timeout
+ *  milliseconds if the fetch has not got its response header by then,
+ *  a fetch that is still waiting for its response after that time is
+ *  replaced by the next request for the resource.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+@Slf4j
+class RequestCollapser {
+    private final Counter counter;
+    private final NioHandler nioHandler;
+    private final ScheduledExecutorService scheduler;
+
+    /** The time to wait for a shared response, 0 to disable collapsing. */
+    private long waitTimeout = 5000;
+    /** The largest body to share. */
+    private long maxBodySize = 4 * 1024 * 1024;
+
+    private final Map<String, SharedFetch> fetches = new HashMap<>();
+
+    /** Create a new RequestCollapser.
+     * @param counter the Counter to update with statistics
+     * @param nioHandler the NioHandler to run the waiting requests with
+     * @param scheduler the scheduler to use for the wait timeouts
+     */
+    public RequestCollapser(final Counter counter, final NioHandler nioHandler,
+                            final ScheduledExecutorService scheduler) {
+        this.counter = counter;
+        this.nioHandler = nioHandler;
+        this.scheduler = scheduler;
+    }
+
+    /** Configure this collapser.
+     * @param config the properties to read the settings from
+     */
+    public void setup(final SProperties config) {
+        if (config == null) {
+            return;
+        }
+        waitTimeout = Math.max(0, getLong(config, "wait_timeout", waitTimeout));
+        maxBodySize = Math.min(Integer.MAX_VALUE,
+                               getLong(config, "max_body_size", maxBodySize));
+    }
+
+    /** Check if requests should be collapsed.
+     * @return true if requests may wait for each other
+     */
+    public boolean isEnabled() {
+        return waitTimeout > 0 && maxBodySize > 0;
+    }
+
+    /** Get the largest body that may be shared.
+     * @return the maximum body size in bytes
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /** Join the fetch for the given resource. If there is no fetch for
+     *  the resource a new one is started and returned, the caller has
+     *  to get the resource and give it to the fetch.
+     * @param key the cache key of the resource
+     * @param listener the listener to tell when a running fetch has a response
+     * @return the new fetch to run or null if the request waits for
+     *         another fetch
+     */
+    public synchronized SharedFetch join(final String key,
+                                         final SharedFetch.Listener listener) {
+        SharedFetch fetch = fetches.get(key);
+        if (fetch != null) {
+            if (fetch.isStale(System.currentTimeMillis(), waitTimeout)) {
+                fetch.abandon();
+            } else if (fetch.addListener(listener)) {
+                return null;
+            }
+        }
+        fetch = new SharedFetch(this, key);
+        fetches.put(key, fetch);
+        return fetch;
+    }
+
+    /** Remove a fetch that is done.
+     * @param fetch the fetch to remove
+     */
+    synchronized void remove(final SharedFetch fetch) {
+        if (fetches.get(fetch.getKey()) == fetch) {
+            fetches.remove(fetch.getKey());
+        }
+    }
+
+    /** Get the number of fetches that are running.
+     * @return the number of running fetches
+     */
+    public synchronized int getFetchCount() {
+        return fetches.size();
+    }
+
+    Counter getCounter() {
+        return counter;
+    }
+
+    void runTask(final Runnable r, final String key) {
+        nioHandler.runThreadTask(r, new DefaultTaskIdentifier(getClass().getSimpleName(), key));
+    }
+
+    void schedule(final Runnable r) {
+        try {
+            scheduler.schedule(r, waitTimeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("Failed to schedule collapsed request timeout: {}", e.toString());
+        }
+    }
+
+    private long getLong(final SProperties config, final String key,
+                         final long defaultValue) {
+        final String val = config.getProperty(key);
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Bad number for RequestCollapser {}: '{}'", key, val);
+            return defaultValue;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package rabbit.proxy;
 
+import rabbit.cache.CacheEntry;
 import rabbit.handler.HandlerFactory;
 import rabbit.http.HttpHeader;
 import rabbit.httpio.ResourceSource;
@@ -19,6 +20,11 @@ class RequestHandler {
     private HandlerFactory handlerFactory = null;
     private long size = -1;
     private WebConnection wc = null;
+    private String cacheKey = null; // set if the response may be stored
+    private long requestTime = 0;
+    private CacheEntry staleEntry = null; // the entry that is revalidated
+    private SharedFetch sharedFetch = null; // set if others wait for this fetch
+    private CacheEntry errorEntry = null; // the stale entry to use if the origin fails
 
     public RequestHandler(final Connection con) {
         webHandle = new CacheBufferHandle(con.getBufferHandler());
@@ -79,4 +85,44 @@ class RequestHandler {
     public synchronized void setSize(final long size) {
         this.size = size;
     }
+
+    public synchronized String getCacheKey() {
+        return cacheKey;
+    }
+
+    public synchronized void setCacheKey(final String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    public synchronized long getRequestTime() {
+        return requestTime;
+    }
+
+    public synchronized void setRequestTime(final long requestTime) {
+        this.requestTime = requestTime;
+    }
+
+    public synchronized CacheEntry getStaleEntry() {
+        return staleEntry;
+    }
+
+    public synchronized void setStaleEntry(final CacheEntry staleEntry) {
+        this.staleEntry = staleEntry;
+    }
+
+    public synchronized SharedFetch getSharedFetch() {
+        return sharedFetch;
+    }
+
+    public synchronized void setSharedFetch(final SharedFetch sharedFetch) {
+        this.sharedFetch = sharedFetch;
+    }
+
+    public synchronized CacheEntry getErrorEntry() {
+        return errorEntry;
+    }
+
+    public synchronized void setErrorEntry(final CacheEntry errorEntry) {
+        this.errorEntry = errorEntry;
+    }
 }
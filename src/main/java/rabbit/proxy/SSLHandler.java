@@ -195,6 +195,7 @@ public class SSLHandler implements TunnelDoneListener {
     }
 
     private void sendOkReplyAndTunnel(final BufferHandle server2client) {
+        proxy.getConnectionHandler().originSucceeded(wc.getAddress());
         final HttpHeader reply = new HttpHeader();
         reply.setStatusLine("HTTP/1.0 200 Connection established");
         reply.setHeader("Proxy-agent", proxy.getServerIdentity());
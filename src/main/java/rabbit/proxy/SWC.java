@@ -15,7 +15,10 @@ import rabbit.httpio.HttpHeaderSender;
 import rabbit.httpio.HttpHeaderSentListener;
 import rabbit.httpio.WebConnectionResourceSource;
 import rabbit.io.BufferHandle;
+import rabbit.io.CircuitOpenException;
 import rabbit.io.ConnectionHandler;
+import rabbit.io.ConnectionQueueFullException;
+import rabbit.io.ConnectionQueueTimeoutException;
 import rabbit.io.Resolver;
 import rabbit.io.WebConnection;
 import rabbit.io.WebConnectionListener;
@@ -172,6 +175,7 @@ public class SWC implements HttpHeaderSentListener,
         rh.setWebHeader(header);
         rh.setWebHandle(wbh);
         rh.getWebConnection().setKeepalive(keepalive);
+        con.getProxy().getConnectionHandler().originSucceeded(rh.getWebConnection().getAddress());
 
         final String sc = rh.getWebHeader().getStatusCode();
         //if client is using http/1.1
@@ -279,6 +283,18 @@ public class SWC implements HttpHeaderSentListener,
         }
     }
 
+    /* A new connection that fails means that the origin has problems,
+     * a pooled connection may just have been closed by the origin.
+     * Connections that could not be set up are noted by the
+     * ConnectionHandler.
+     */
+    private void noteOriginFailure() {
+        final WebConnection wc = rh.getWebConnection();
+        if (wc != null && !wc.isReused()) {
+            con.getProxy().getConnectionHandler().originFailed(wc.getAddress());
+        }
+    }
+
     private void closeDownWebConnection() {
         final WebConnection wc = rh.getWebConnection();
         rh.setWebConnection(null);
@@ -292,6 +308,7 @@ public class SWC implements HttpHeaderSentListener,
     public void timeout() {
         // retry
         lastException = new IOException("timeout");
+        noteOriginFailure();
         closeDownWebConnection();
         establish();
     }
@@ -299,6 +316,14 @@ public class SWC implements HttpHeaderSentListener,
     @Override
     public void failed(final Exception e) {
         lastException = e;
+        if (e instanceof ConnectionQueueFullException ||
+            e instanceof ConnectionQueueTimeoutException ||
+            e instanceof CircuitOpenException) {
+            // the origin is overloaded or down, retrying will not help.
+            con.webConnectionSetupFailed(rh, e);
+            return;
+        }
+        noteOriginFailure();
         con.getCounter().inc("WebConnections failed: " +
                              attempts + ": " + e);
         closeDownWebConnection();
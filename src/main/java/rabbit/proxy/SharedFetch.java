@@ -0,0 +1,401 @@
+package rabbit.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import rabbit.http.HttpHeader;
+import rabbit.httpio.BlockListener;
+import rabbit.httpio.ResourceSource;
+import rabbit.io.BufferHandle;
+import rabbit.io.SimpleBufferHandle;
+
+/** A response that is read once from the web and sent to all the
+ *  clients that asked for the same resource while it was read.
+ *
+ *  <p>The first request for a resource runs the fetch, requests that
+ *  arrive while it runs wait for its response header. If the response
+ *  is shared the fetch reads the body into memory on its own, as fast
+ *  as the server sends it, and every client, the one that started the
+ *  fetch included, gets its own resource source that reads the body
+ *  as it arrives. A slow client only slows itself down. If the
+ *  response can not be shared the waiting clients are released and
+ *  have to get the resource themselves.
+ *
+ * @author <a href="mailto:robo@khelekore.org">Robert Olofsson</a>
+ */
+class SharedFetch {
+    private final RequestCollapser collapser;
+    private final String key;
+    private final long created;
+
+    private HttpHeader header;
+    private long size = -1;
+    private ByteBuffer data;
+    private boolean finished = false;
+    private boolean failed = false;
+    private boolean done = false;
+    private final List<Listener> waiting = new ArrayList<>();
+    private final List<Reader> readers = new ArrayList<>();
+
+    /** The listener for a request that waits for a fetch.
+     *  The methods are called from a thread task.
+     */
+    interface Listener {
+        /** The response is shared.
+         * @param header a copy of the response header
+         * @param size the size of the body
+         * @param content the body of the response
+         */
+        void shared(HttpHeader header, long size, ResourceSource content);
+
+        /** The response will not be shared, the resource has to be
+         *  fetched by the waiting request.
+         */
+        void released();
+    }
+
+    /** Create a new SharedFetch
+     * @param collapser the RequestCollapser that keeps track of this fetch
+     * @param key the cache key of the resource
+     */
+    public SharedFetch(final RequestCollapser collapser, final String key) {
+        this.collapser = collapser;
+        this.key = key;
+        this.created = System.currentTimeMillis();
+    }
+
+    /** Get the cache key of this fetch.
+     * @return the cache key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /** Check if this fetch has waited for its response header for longer
+     *  than the given time.
+     * @param now the current time, in milliseconds
+     * @param timeout the longest time to wait, in milliseconds
+     * @return true if this fetch has no response and has waited too long
+     */
+    public synchronized boolean isStale(final long now, final long timeout) {
+        return header == null && now - created > timeout;
+    }
+
+    /** Add a request that waits for this fetch.
+     * @param listener the listener to tell about the response
+     * @return false if this fetch is done and the request can not wait for it
+     */
+    public boolean addListener(final Listener listener) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            if (header == null) {
+                waiting.add(listener);
+                collapser.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeout(listener);
+                    }
+                });
+                return true;
+            }
+        }
+        share(listener);
+        return true;
+    }
+
+    private void timeout(final Listener listener) {
+        synchronized (this) {
+            if (!waiting.remove(listener)) {
+                return;
+            }
+        }
+        collapser.getCounter().inc("Collapsed request timeouts");
+        release(listener);
+    }
+
+    /** Share the response with the waiting requests. The body is only
+     *  shared if its size is known and not larger than the collapser
+     *  allows, otherwise the waiting requests are released.
+     * @param header the response header, the header is copied
+     * @param size the size of the body, -1 if unknown
+     * @return true if the response is shared and the body has to be
+     *         given to this fetch as it is read
+     */
+    public boolean share(final HttpHeader header, final long size) {
+        if (size < 0 || size > collapser.getMaxBodySize()) {
+            abandon();
+            return false;
+        }
+        final List<Listener> ls;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.header = copy(header);
+            this.header.removeHeader("Transfer-Encoding");
+            this.header.setHeader("Content-Length", Long.toString(size));
+            this.size = size;
+            data = ByteBuffer.allocateDirect((int) size);
+            ls = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Listener l : ls) {
+            share(l);
+        }
+        return true;
+    }
+
+    private void share(final Listener listener) {
+        final HttpHeader h;
+        final long s;
+        synchronized (this) {
+            h = copy(header);
+            s = size;
+        }
+        final Reader reader = new Reader();
+        collapser.runTask(new Runnable() {
+            @Override
+            public void run() {
+                listener.shared(h, s, reader);
+            }
+        }, key);
+    }
+
+    private void release(final Listener listener) {
+        collapser.runTask(new Runnable() {
+            @Override
+            public void run() {
+                listener.released();
+            }
+        }, key);
+    }
+
+    /** Read the shared body from the web. The source has to give the
+     *  data to this fetch, it is released once the body has been read.
+     * @param source the resource to read
+     */
+    public void readBody(final ResourceSource source) {
+        source.addBlockListener(new BodyReader(source));
+    }
+
+    /** Get a resource source for the request that runs this fetch.
+     * @return a resource source that reads the shared body
+     */
+    public ResourceSource getReader() {
+        return new Reader();
+    }
+
+    private static HttpHeader copy(final HttpHeader header) {
+        final HttpHeader ret = new HttpHeader();
+        ret.setStatusLine(header.getStatusLine());
+        header.copyHeader(ret);
+        return ret;
+    }
+
+    /** Add data to the shared body.
+     * @param buf the data that was read, the buffer is not modified
+     */
+    public void append(final ByteBuffer buf) {
+        final List<Reader> rs;
+        synchronized (this) {
+            if (done || data == null) {
+                return;
+            }
+            if (buf.remaining() > data.remaining()) {
+                // more data than the header said.
+                failed = true;
+                rs = null;
+            } else {
+                data.put(buf.duplicate());
+                rs = new ArrayList<>(readers);
+                readers.clear();
+            }
+        }
+        if (rs == null) {
+            end();
+        } else {
+            wake(rs);
+        }
+    }
+
+    /** The whole body has been read.
+     */
+    public void finish() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            if (data != null && !data.hasRemaining()) {
+                finished = true;
+            } else {
+                failed = true;
+            }
+        }
+        end();
+    }
+
+    /** Reading the response failed, any waiting requests are released
+     *  and any shared bodies will fail.
+     */
+    public void fail() {
+        synchronized (this) {
+            failed = true;
+        }
+        end();
+    }
+
+    /** The response will not be shared, release the waiting requests.
+     *  Does nothing if the response is already shared.
+     */
+    public void abandon() {
+        synchronized (this) {
+            if (header != null) {
+                return;
+            }
+        }
+        end();
+    }
+
+    private void end() {
+        final List<Listener> ls;
+        final List<Reader> rs;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            ls = new ArrayList<>(waiting);
+            waiting.clear();
+            rs = new ArrayList<>(readers);
+            readers.clear();
+        }
+        collapser.remove(this);
+        if (!ls.isEmpty()) {
+            collapser.getCounter().inc("Collapsed requests released");
+        }
+        for (Listener l : ls) {
+            release(l);
+        }
+        wake(rs);
+    }
+
+    private void wake(final List<Reader> rs) {
+        for (final Reader r : rs) {
+            collapser.runTask(new Runnable() {
+                @Override
+                public void run() {
+                    read(r, r.listener);
+                }
+            }, key);
+        }
+    }
+
+    private void read(final Reader reader, final BlockListener listener) {
+        final ByteBuffer block;
+        synchronized (this) {
+            if (reader.released) {
+                return;
+            }
+            if (reader.position < data.position()) {
+                block = data.duplicate();
+                block.limit(block.position());
+                block.position(reader.position);
+                reader.position = block.limit();
+            } else if (finished || failed) {
+                block = null;
+            } else {
+                reader.listener = listener;
+                readers.add(reader);
+                return;
+            }
+        }
+        if (block != null) {
+            listener.bufferRead(new SimpleBufferHandle(block));
+        } else if (finished) {
+            listener.finishedRead();
+        } else {
+            listener.failed(new IOException("Shared fetch failed: " + key));
+        }
+    }
+
+    /** Reads the body from the web, the source gives the data to
+     *  this fetch.
+     */
+    private class BodyReader implements BlockListener {
+        private final ResourceSource source;
+
+        public BodyReader(final ResourceSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void bufferRead(final BufferHandle bufHandle) {
+            final ByteBuffer buffer = bufHandle.getBuffer();
+            buffer.position(buffer.limit());
+            bufHandle.possiblyFlush();
+            source.addBlockListener(this);
+        }
+
+        @Override
+        public void finishedRead() {
+            source.release();
+        }
+
+        @Override
+        public void failed(final Exception cause) {
+            fail();
+            source.release();
+        }
+
+        @Override
+        public void timeout() {
+            fail();
+            source.release();
+        }
+    }
+
+    /** A resource source that reads the shared body.
+     */
+    private class Reader implements ResourceSource {
+        private int position = 0;
+        private BlockListener listener;
+        private boolean released = false;
+
+        @Override
+        public boolean supportsTransfer() {
+            return false;
+        }
+
+        @Override
+        public long length() {
+            synchronized (SharedFetch.this) {
+                return size;
+            }
+        }
+
+        @Override
+        public long transferTo(final long position, final long count,
+                               final WritableByteChannel target)
+                throws IOException {
+            throw new IllegalStateException("transferTo can not be used.");
+        }
+
+        @Override
+        public void addBlockListener(final BlockListener listener) {
+            read(this, listener);
+        }
+
+        @Override
+        public void release() {
+            synchronized (SharedFetch.this) {
+                released = true;
+                readers.remove(this);
+            }
+        }
+    }
+}
@@ -157,6 +157,23 @@ class StandardResponseHeaders implements HttpGenerator {
         return header;
     }
 
+    /** Get a 503 Service Unavailable for the given exception.
+     * @param uri the url of the request
+     * @param exception the Exception made.
+     * @return a suitable HttpHeader.
+     */
+    @Override
+    public HttpHeader get503(final String uri, final Throwable exception) {
+        final HttpHeader header = getHeader(rabbit.http.StatusCode._503);
+        header.setHeader("Retry-After", "5");
+        final String page = HtmlPage.getPageHeader(con, rabbit.http.StatusCode._503) +
+                            "Server too busy:<br><b>" +
+                            StringEscapeUtils.escapeHtml(exception.getMessage()) +
+                            "</b></body></html>\n";
+        header.setContent(page, UTF8);
+        return header;
+    }
+
     private static final String WWW = "www.";
     private static final String[][] placeTransformers = {
             {WWW, ""},
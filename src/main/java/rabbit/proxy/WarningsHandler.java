@@ -4,6 +4,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.util.Date;
 import java.util.List;
+import rabbit.http.HeaderValueTokenizer;
 import rabbit.http.HttpDateParser;
 import rabbit.http.HttpHeader;
 
@@ -13,89 +14,80 @@ import rabbit.http.HttpHeader;
  */
 @Slf4j
 class WarningsHandler {
-    private int nextNonBlank(final CharSequence s, int start) {
-        char c;
-        final int len = s.length();
-        while (start < len && ((c = s.charAt(start)) == ' ' || c == '\n' || c == '\r' || c == '\t')) {
-            start++;
-        }
-        return start;
-    }
-
-    private int nextBlank(final CharSequence s, int start) {
-        char c;
-        final int len = s.length();
-        while (start < len && !((c = s.charAt(start)) == ' ' || c == '\n' || c == '\r' || c == '\t')) {
-            start++;
-        }
-        return start;
-    }
-
     public void removeWarnings(final HttpHeader header, final boolean remove1xx) {
-        final String rdate = header.getHeader("Date");
         final List<String> ws = header.getHeaders("Warning");
+        if (ws.isEmpty()) {
+            return;
+        }
+        final String rdate = header.getHeader("Date");
+        Date d2 = null;
+        boolean d2Parsed = false;
+        final HeaderValueTokenizer hvt = new HeaderValueTokenizer(null);
         for (final String val : ws) {
-            try {
-                final StringBuilder sb = new StringBuilder();
-                boolean first = true;
-                int start = 0;
-                while (start < val.length()) {
-                    int i = nextNonBlank(val, start);
-                    i = nextBlank(val, i);
-                    final String code = val.substring(start, i);
-                    int j = nextNonBlank(val, i + 1);
-                    j = nextBlank(val, j);
-                    final String agent = val.substring(i + 1, j);
-                    final int k = val.indexOf('"', j);
-                    final int l = val.indexOf('"', k + 1);
-                    // StringIndexOutOfBoundsException: -1
-                    final String text = val.substring(k + 1, l);
-                    final int c = val.indexOf(',', l);
-                    final int m = val.indexOf('"', l + 1);
-                    String date = null;
-                    if (((c == -1 && m == -1) || (c < m))) {
-                        start = l + 1;
-                    } else {
-                        final int n = val.indexOf('"', m + 1);
-                        date = val.substring(m + 1, n);
-                        final int c2 = val.indexOf(',', n + 1);
-                        if (c2 != -1) {
-                            start = c2;
-                        } else {
-                            start = n + 1;
+            hvt.reset(val);
+            // only build a new value if some warning is removed.
+            StringBuilder sb = null;
+            int kept = 0;
+            while (hvt.nextElement()) {
+                boolean keep = true;
+                // warning-value = warn-code SP warn-agent SP warn-text [SP warn-date]
+                if (hvt.nextWord() && !hvt.isWordQuoted()) {
+                    final char code = val.charAt(hvt.getWordStart());
+                    final boolean agentIsRabbit = hvt.nextWord() && hvt.wordIs("RabbIT");
+                    if (remove1xx && code == '1' && !agentIsRabbit) {
+                        keep = false;
+                    } else if (hvt.nextWord() && hvt.nextWord() && hvt.isWordQuoted()) {
+                        final int ds = hvt.getWordStart();
+                        final int de = hvt.getWordEnd();
+                        final boolean sameText = rdate != null &&
+                                                 rdate.length() == de - ds &&
+                                                 rdate.regionMatches(0, val, ds, de - ds);
+                        if (!sameText) {
+                            final Date d1 = HttpDateParser.getDate(hvt.getWord());
+                            if (!d2Parsed) {
+                                d2 = rdate != null ? HttpDateParser.getDate(rdate) : null;
+                                d2Parsed = true;
+                            }
+                            keep = d1 == null || d1.equals(d2);
                         }
                     }
-                    char s;
-                    while (start < val.length() && ((s = val.charAt(start)) == ' ' || s == ',')) {
-                        start++;
-                    }
-
-                    Date d1 = null, d2 = null;
-                    if (date != null) {
-                        d1 = HttpDateParser.getDate(date);
-                    }
-                    if (rdate != null) {
-                        d2 = HttpDateParser.getDate(rdate);
-                    }
-                    if (!((d1 != null && !d1.equals(d2)) ||
-                          (remove1xx && code.charAt(0) == '1') &&
-                          !"RabbIT".equals(agent))) {
-                        if (!first) {
+                } else {
+                    log.warn("bad warning header: '{}'", val);
+                }
+                if (!keep && sb == null) {
+                    sb = new StringBuilder(val.length());
+                    appendKept(sb, val, kept);
+                }
+                if (keep) {
+                    if (sb != null) {
+                        if (sb.length() > 0) {
                             sb.append(", ");
                         }
-                        sb.append(code).append(" ").append(agent).append(" \"").append(text);
-                        sb.append(date != null ? "\" \"" + date + "\"" : "\"");
-                        first = false;
+                        sb.append(val, hvt.getElementStart(), hvt.getElementEnd());
                     }
+                    kept = hvt.getElementEnd();
                 }
-                if (sb.length() != 0) {
-                    header.setExistingValue(val, sb.toString());
-                } else {
-                    header.removeValue(val);
-                }
-            } catch (StringIndexOutOfBoundsException e) {
-                log.warn("bad warning header: '{}'", val);
             }
+            if (sb == null) {
+                continue;
+            }
+            if (sb.length() != 0) {
+                header.setExistingValue(val, sb.toString());
+            } else {
+                header.removeValue(val);
+            }
+        }
+    }
+
+    /* Copy the warnings kept so far, that is everything up to end.
+     */
+    private void appendKept(final StringBuilder sb, final String val, final int end) {
+        final HeaderValueTokenizer hvt = new HeaderValueTokenizer(val);
+        while (hvt.nextElement() && hvt.getElementEnd() <= end) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(val, hvt.getElementStart(), hvt.getElementEnd());
         }
     }
 